@@ -41,9 +41,16 @@ import hudson.security.PermissionScope;
 import hudson.security.ProjectMatrixAuthorizationStrategy;
 import hudson.security.SidACL;
 import hudson.util.FormValidation;
-import hudson.util.RobustReflectionConverter;
 import net.sf.json.JSONObject;
 import org.acegisecurity.acls.sid.Sid;
+import org.jenkinsci.plugins.matrixauth.AuthorizationContainer;
+import org.jenkinsci.plugins.matrixauth.CompiledMatrix;
+import org.jenkinsci.plugins.matrixauth.GrantExpiry;
+import org.jenkinsci.plugins.matrixauth.MatrixACL;
+import org.jenkinsci.plugins.matrixauth.MatrixColumns;
+import org.jenkinsci.plugins.matrixauth.PermissionSet;
+import org.jenkinsci.plugins.matrixauth.PropertyMatrix;
+import org.jenkinsci.plugins.matrixauth.SidPatterns;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
@@ -51,62 +58,46 @@ import org.kohsuke.stapler.StaplerRequest;
 import javax.servlet.ServletException;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import jenkins.model.Jenkins;
 
 /**
  * Holds ACL for {@link ProjectMatrixAuthorizationStrategy}.
  */
-public class AuthorizationMatrixProperty extends AbstractFolderProperty<AbstractFolder<?>> {
+public class AuthorizationMatrixProperty extends AbstractFolderProperty<AbstractFolder<?>> implements AuthorizationContainer {
 
     private transient SidACL acl = new AclImpl();
 
     /**
-     * List up all permissions that are granted.
-     *
-     * Strings are either the granted authority or the principal, which is not
-     * distinguished.
+     * The grants of this matrix.
      */
-    private final Map<Permission, Set<String>> grantedPermissions = new HashMap<Permission, Set<String>>();
-
-    private Set<String> sids = new HashSet<String>();
+    private final PropertyMatrix matrix;
 
     protected AuthorizationMatrixProperty() {
+        this(new PropertyMatrix());
+    }
+
+    private AuthorizationMatrixProperty(PropertyMatrix matrix) {
+        this.matrix = matrix;
     }
 
     public AuthorizationMatrixProperty(Map<Permission,? extends Set<String>> grantedPermissions) {
-        // do a deep copy to be safe
-        for (Entry<Permission,? extends Set<String>> e : grantedPermissions.entrySet())
-            this.grantedPermissions.put(e.getKey(),new HashSet<String>(e.getValue()));
+        this(new PropertyMatrix(grantedPermissions));
     }
 
     public Set<String> getGroups() {
-        return sids;
+        return getCompiledMatrix().getSids();
     }
 
     /**
      * Returns all SIDs configured in this matrix, minus "anonymous"
      *
-     * @return Always non-null.
+     * @return Always non-null, sorted and read-only.
      */
     public List<String> getAllSIDs() {
-        Set<String> r = new HashSet<String>();
-        for (Set<String> set : grantedPermissions.values())
-            r.addAll(set);
-        r.remove("anonymous");
-
-        String[] data = r.toArray(new String[r.size()]);
-        Arrays.sort(data);
-        return Arrays.asList(data);
+        return getCompiledMatrix().getAllSIDs();
     }
 
     /**
@@ -116,24 +107,95 @@ public class AuthorizationMatrixProperty extends AbstractFolderProperty<Abstract
      *      read-only. never null.
      */
     public Map<Permission,Set<String>> getGrantedPermissions() {
-        return Collections.unmodifiableMap(grantedPermissions);
+        return matrix.getGrantedPermissions();
+    }
+
+    public AuthorizationMatrixProperty withGrantedPermissions(Map<Permission, ? extends Set<String>> grantedPermissions) {
+        return new AuthorizationMatrixProperty(matrix.withGrantedPermissions(grantedPermissions));
+    }
+
+    public AuthorizationMatrixProperty withPermissionSetGrants(Map<String, ? extends Set<String>> permissionSetGrants) {
+        return new AuthorizationMatrixProperty(matrix.withPermissionSetGrants(permissionSetGrants));
+    }
+
+    public String getMatrixVersion() {
+        return matrix.getMatrixVersion();
     }
 
     /**
-     * Adds to {@link #grantedPermissions}. Use of this method should be limited
+     * Adds to {@link #getGrantedPermissions()}. Use of this method should be limited
      * during construction, as this object itself is considered immutable once
      * populated.
      */
     protected void add(Permission p, String sid) {
-        Set<String> set = grantedPermissions.get(p);
-        if (set == null)
-            grantedPermissions.put(p, set = new HashSet<String>());
-        set.add(sid);
-        sids.add(sid);
+        matrix.add(p, sid);
+    }
+
+    /**
+     * Adds to {@link #getGrantedPermissions()} a grant that {@linkplain GrantExpiry expires} at the given time.
+     * If the grant already exists without expiry, it stays permanent.
+     * Use of this method should be limited during construction,
+     * as this object itself is considered immutable once populated.
+     */
+    protected void add(Permission p, String sid, long expiresAt) {
+        matrix.add(p, sid, expiresAt);
+    }
+
+    public Map<String, Long> getGrantExpiries() {
+        return matrix.getGrantExpiries();
+    }
+
+    /**
+     * Returns {@link #getGrantExpiries()} in the form edited on the configuration page.
+     */
+    public String getGrantExpiriesText() {
+        return GrantExpiry.formatLines(getGrantExpiries());
+    }
+
+    /**
+     * Returns the {@link PermissionSet}s granted by this matrix, with the SIDs they are granted to.
+     *
+     * @return
+     *      read-only. never null.
+     */
+    public Map<String, Set<String>> getPermissionSetGrants() {
+        return matrix.getPermissionSetGrants();
+    }
+
+    /**
+     * Returns {@link #getPermissionSetGrants()} in the form edited on the configuration page.
+     */
+    public String getPermissionSetGrantsText() {
+        return PermissionSet.formatGrants(getPermissionSetGrants());
+    }
+
+    /**
+     * Returns the permissions granted to {@link SidPatterns}, with the patterns they are granted to.
+     *
+     * @return
+     *      read-only. never null.
+     */
+    public Map<Permission, Set<String>> getSidPatterns() {
+        return matrix.getSidPatterns();
+    }
+
+    /**
+     * Returns {@link #getSidPatterns()} in the form edited on the configuration page.
+     */
+    public String getSidPatternsText() {
+        return SidPatterns.formatGrants(getSidPatterns());
+    }
+
+    /**
+     * Returns the lookup structures derived from the grants of this matrix,
+     * building them on first use, and again when the {@link PermissionSet}s are redefined.
+     */
+    public CompiledMatrix getCompiledMatrix() {
+        return matrix.getCompiledMatrix(this, owner);
     }
 
     @Extension
-    public static class DescriptorImpl extends AbstractFolderPropertyDescriptor {
+    public static class DescriptorImpl extends AbstractFolderPropertyDescriptor implements MatrixColumns.Source {
         @Override
         public AbstractFolderProperty<?> newInstance(StaplerRequest req, JSONObject formData) throws FormException {
             formData = formData.getJSONObject("useProjectSecurity");
@@ -141,18 +203,8 @@ public class AuthorizationMatrixProperty extends AbstractFolderProperty<Abstract
                 return null;
 
             AuthorizationMatrixProperty amp = new AuthorizationMatrixProperty();
-            for (Map.Entry<String, Object> r : (Set<Map.Entry<String, Object>>) formData.getJSONObject("data").entrySet()) {
-                String sid = r.getKey();
-                if (r.getValue() instanceof JSONObject) {
-                    for (Map.Entry<String, Boolean> e : (Set<Map.Entry<String, Boolean>>) ((JSONObject) r
-                            .getValue()).entrySet()) {
-                        if (e.getValue()) {
-                            Permission p = Permission.fromId(e.getKey());
-                            amp.add(p, sid);
-                        }
-                    }
-                }
-            }
+            AbstractFolder<?> folder = req == null ? null : req.findAncestorObject(AbstractFolder.class);
+            amp.matrix.fromForm(formData, folder == null ? null : folder.getProperties().get(AuthorizationMatrixProperty.class));
             return amp;
         }
 
@@ -186,12 +238,23 @@ public class AuthorizationMatrixProperty extends AbstractFolderProperty<Abstract
             return p.getEnabled() && p.isContainedBy(PermissionScope.ITEM_GROUP);
         }
 
+        private transient volatile MatrixColumns columns;
+
+        /**
+         * Returns the permission columns of the matrix editor.
+         * This is only recomputed from {@link #getAllGroups()} and {@link #showPermission(Permission)}
+         * when permissions were registered, enabled or disabled.
+         */
+        public MatrixColumns getColumns() {
+            return columns = MatrixColumns.of(this, columns);
+        }
+
         public FormValidation doCheckName(@AncestorInPath AbstractFolder<?> folder, @QueryParameter String value) throws IOException, ServletException {
             return GlobalMatrixAuthorizationStrategy.DESCRIPTOR.doCheckName_(value, folder, AbstractProject.CONFIGURE);
         }
     }
 
-    private final class AclImpl extends SidACL {
+    private final class AclImpl extends MatrixACL {
         @edu.umd.cs.findbugs.annotations.SuppressWarnings(value = "NP_BOOLEAN_RETURN_NULL",
                 justification = "Because that is the way this SPI works")
         protected Boolean hasPermission(Sid sid, Permission p) {
@@ -199,6 +262,16 @@ public class AuthorizationMatrixProperty extends AbstractFolderProperty<Abstract
                 return true;
             return null;
         }
+
+        @Override
+        public CompiledMatrix getCompiledMatrix() {
+            return AuthorizationMatrixProperty.this.getCompiledMatrix();
+        }
+
+        @Override
+        protected String getFolderFullName() {
+            return owner == null ? "" : owner.getFullName();
+        }
     }
 
     public SidACL getACL() {
@@ -209,32 +282,17 @@ public class AuthorizationMatrixProperty extends AbstractFolderProperty<Abstract
      * Checks if the given SID has the given permission.
      */
     public boolean hasPermission(String sid, Permission p) {
-        for (; p != null; p = p.impliedBy) {
-            Set<String> set = grantedPermissions.get(p);
-            if (set != null && set.contains(sid))
-                return true;
-        }
-        return false;
+        CompiledMatrix c = getCompiledMatrix();
+        return c.hasPermission(c.getSidNormalizer().normalize(sid), p);
     }
 
     /**
      * Checks if the permission is explicitly given, instead of implied through {@link Permission#impliedBy}.
+     * Like {@link #hasPermission(String, Permission)}, this compares SIDs as normalized by the current policy.
      */
     public boolean hasExplicitPermission(String sid, Permission p) {
-        Set<String> set = grantedPermissions.get(p);
-        return set != null && set.contains(sid);
-    }
-
-    /**
-     * Works like {@link #add(Permission, String)} but takes both parameters
-     * from a single string of the form <tt>PERMISSIONID:sid</tt>
-     */
-    private void add(String shortForm) {
-        int idx = shortForm.indexOf(':');
-        Permission p = Permission.fromId(shortForm.substring(0, idx));
-        if (p==null)
-            throw new IllegalArgumentException("Failed to parse '"+shortForm+"' --- no such permission");
-        add(p, shortForm.substring(idx + 1));
+        CompiledMatrix c = getCompiledMatrix();
+        return c.hasExplicitPermission(c.getSidNormalizer().normalize(sid), p);
     }
 
     /**
@@ -250,33 +308,14 @@ public class AuthorizationMatrixProperty extends AbstractFolderProperty<Abstract
                 MarshallingContext context) {
             AuthorizationMatrixProperty amp = (AuthorizationMatrixProperty) source;
 
-            for (Entry<Permission, Set<String>> e : amp.grantedPermissions
-                    .entrySet()) {
-                String p = e.getKey().getId();
-                for (String sid : e.getValue()) {
-                    writer.startNode("permission");
-                    writer.setValue(p + ':' + sid);
-                    writer.endNode();
-                }
-            }
+            amp.matrix.marshal(writer);
         }
 
         public Object unmarshal(HierarchicalStreamReader reader,
                 final UnmarshallingContext context) {
             AuthorizationMatrixProperty as = new AuthorizationMatrixProperty();
 
-            while (reader.hasMoreChildren()) {
-                reader.moveDown();
-                try {
-                    as.add(reader.getValue());
-                } catch (IllegalArgumentException ex) {
-                     Logger.getLogger(AuthorizationMatrixProperty.class.getName())
-                           .log(Level.WARNING,"Skipping a non-existent permission",ex);
-                     RobustReflectionConverter.addErrorInContext(context, ex);
-                }
-                reader.moveUp();
-            }
-
+            as.matrix.unmarshal(reader, context);
             return as;
         }
     }
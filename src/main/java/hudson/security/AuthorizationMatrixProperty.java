@@ -31,24 +31,25 @@ import hudson.model.JobPropertyDescriptor;
 import jenkins.model.Jenkins;
 import hudson.Extension;
 import hudson.util.FormValidation;
-import hudson.util.RobustReflectionConverter;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Collections;
-import java.util.Map.Entry;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import java.io.IOException;
 
 import net.sf.json.JSONObject;
 
 import org.acegisecurity.acls.sid.Sid;
+import org.jenkinsci.plugins.matrixauth.AuthorizationContainer;
+import org.jenkinsci.plugins.matrixauth.CompiledMatrix;
+import org.jenkinsci.plugins.matrixauth.GrantExpiry;
+import org.jenkinsci.plugins.matrixauth.LegacyFormatMigration;
+import org.jenkinsci.plugins.matrixauth.MatrixACL;
+import org.jenkinsci.plugins.matrixauth.MatrixColumns;
+import org.jenkinsci.plugins.matrixauth.PermissionSet;
+import org.jenkinsci.plugins.matrixauth.PropertyMatrix;
+import org.jenkinsci.plugins.matrixauth.SidPatterns;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.AncestorInPath;
@@ -69,49 +70,40 @@ import javax.servlet.ServletException;
  * <p>
  * Once created (and initialized), this object becomes immutable.
  */
-public class AuthorizationMatrixProperty extends JobProperty<Job<?, ?>> {
+public class AuthorizationMatrixProperty extends JobProperty<Job<?, ?>> implements AuthorizationContainer {
 
 	private transient SidACL acl = new AclImpl();
 
 	/**
-	 * List up all permissions that are granted.
-	 * 
-	 * Strings are either the granted authority or the principal, which is not
-	 * distinguished.
+	 * The grants of this matrix.
 	 */
-	private final Map<Permission, Set<String>> grantedPermissions = new HashMap<Permission, Set<String>>();
-
-	private Set<String> sids = new HashSet<String>();
+	private final PropertyMatrix matrix;
 
     private boolean blocksInheritance = false;
 
     private AuthorizationMatrixProperty() {
+        this(new PropertyMatrix());
+    }
+
+    private AuthorizationMatrixProperty(PropertyMatrix matrix) {
+        this.matrix = matrix;
     }
 
-    public AuthorizationMatrixProperty(Map<Permission, Set<String>> grantedPermissions) {
-        // do a deep copy to be safe
-        for (Entry<Permission,Set<String>> e : grantedPermissions.entrySet())
-            this.grantedPermissions.put(e.getKey(),new HashSet<String>(e.getValue()));
+    public AuthorizationMatrixProperty(Map<Permission, ? extends Set<String>> grantedPermissions) {
+        this(new PropertyMatrix(grantedPermissions));
     }
 
 	public Set<String> getGroups() {
-		return sids;
+		return getCompiledMatrix().getSids();
 	}
 
 	/**
 	 * Returns all SIDs configured in this matrix, minus "anonymous"
 	 * 
-	 * @return Always non-null.
+	 * @return Always non-null, sorted and read-only.
 	 */
 	public List<String> getAllSIDs() {
-		Set<String> r = new HashSet<String>();
-		for (Set<String> set : grantedPermissions.values())
-			r.addAll(set);
-		r.remove("anonymous");
-
-		String[] data = r.toArray(new String[r.size()]);
-		Arrays.sort(data);
-		return Arrays.asList(data);
+		return getCompiledMatrix().getAllSIDs();
 	}
 
     /**
@@ -121,24 +113,99 @@ public class AuthorizationMatrixProperty extends JobProperty<Job<?, ?>> {
      *      read-only. never null.
      */
     public Map<Permission,Set<String>> getGrantedPermissions() {
-        return Collections.unmodifiableMap(grantedPermissions);
+        return matrix.getGrantedPermissions();
+    }
+
+    public AuthorizationMatrixProperty withGrantedPermissions(Map<Permission, ? extends Set<String>> grantedPermissions) {
+        AuthorizationMatrixProperty amp = new AuthorizationMatrixProperty(matrix.withGrantedPermissions(grantedPermissions));
+        amp.setBlocksInheritance(blocksInheritance);
+        return amp;
+    }
+
+    public AuthorizationMatrixProperty withPermissionSetGrants(Map<String, ? extends Set<String>> permissionSetGrants) {
+        AuthorizationMatrixProperty amp = new AuthorizationMatrixProperty(matrix.withPermissionSetGrants(permissionSetGrants));
+        amp.setBlocksInheritance(blocksInheritance);
+        return amp;
+    }
+
+    public String getMatrixVersion() {
+        return matrix.getMatrixVersion();
     }
 
     /**
-	 * Adds to {@link #grantedPermissions}. Use of this method should be limited
+	 * Adds to {@link #getGrantedPermissions()}. Use of this method should be limited
 	 * during construction, as this object itself is considered immutable once
 	 * populated.
 	 */
 	protected void add(Permission p, String sid) {
-		Set<String> set = grantedPermissions.get(p);
-		if (set == null)
-			grantedPermissions.put(p, set = new HashSet<String>());
-		set.add(sid);
-		sids.add(sid);
+		matrix.add(p, sid);
 	}
 
+    /**
+     * Adds to {@link #getGrantedPermissions()} a grant that {@linkplain GrantExpiry expires} at the given time.
+     * If the grant already exists without expiry, it stays permanent.
+     * Use of this method should be limited during construction,
+     * as this object itself is considered immutable once populated.
+     */
+    protected void add(Permission p, String sid, long expiresAt) {
+        matrix.add(p, sid, expiresAt);
+    }
+
+    public Map<String, Long> getGrantExpiries() {
+        return matrix.getGrantExpiries();
+    }
+
+    /**
+     * Returns {@link #getGrantExpiries()} in the form edited on the configuration page.
+     */
+    public String getGrantExpiriesText() {
+        return GrantExpiry.formatLines(getGrantExpiries());
+    }
+
+    /**
+     * Returns the {@link PermissionSet}s granted by this matrix, with the SIDs they are granted to.
+     *
+     * @return
+     *      read-only. never null.
+     */
+    public Map<String, Set<String>> getPermissionSetGrants() {
+        return matrix.getPermissionSetGrants();
+    }
+
+    /**
+     * Returns {@link #getPermissionSetGrants()} in the form edited on the configuration page.
+     */
+    public String getPermissionSetGrantsText() {
+        return PermissionSet.formatGrants(getPermissionSetGrants());
+    }
+
+    /**
+     * Returns the permissions granted to {@link SidPatterns}, with the patterns they are granted to.
+     *
+     * @return
+     *      read-only. never null.
+     */
+    public Map<Permission, Set<String>> getSidPatterns() {
+        return matrix.getSidPatterns();
+    }
+
+    /**
+     * Returns {@link #getSidPatterns()} in the form edited on the configuration page.
+     */
+    public String getSidPatternsText() {
+        return SidPatterns.formatGrants(getSidPatterns());
+    }
+
+    /**
+     * Returns the lookup structures derived from the grants of this matrix,
+     * building them on first use, and again when the {@link PermissionSet}s are redefined.
+     */
+    public CompiledMatrix getCompiledMatrix() {
+        return matrix.getCompiledMatrix(this, owner);
+    }
+
     @Extension
-    public static class DescriptorImpl extends JobPropertyDescriptor {
+    public static class DescriptorImpl extends JobPropertyDescriptor implements MatrixColumns.Source {
 		@Override
 		public JobProperty<?> newInstance(StaplerRequest req, JSONObject formData) throws FormException {
             formData = formData.getJSONObject("useProjectSecurity");
@@ -150,23 +217,8 @@ public class AuthorizationMatrixProperty extends JobProperty<Job<?, ?>> {
             // Disable inheritance, if so configured
             amp.setBlocksInheritance(!formData.getJSONObject("blocksInheritance").isNullObject());
 
-            Map<String,Object> data = formData.getJSONObject("data");
-            for (Map.Entry<String, Object> r : data.entrySet()) {
-                String sid = r.getKey();
-                if (!(r.getValue() instanceof JSONObject)) {
-                    throw new FormException("not an object: " + formData, "data");
-                }
-                Map<String,Object> value = (JSONObject) r.getValue();
-                for (Map.Entry<String,Object> e : value.entrySet()) {
-                    if (!(e.getValue() instanceof Boolean)) {
-                        throw new FormException("not a boolean: " + formData, "data");
-                    }
-                    if ((Boolean) e.getValue()) {
-                        Permission p = Permission.fromId(e.getKey());
-                        amp.add(p, sid);
-                    }
-                }
-            }
+            Job<?,?> job = req == null ? null : req.findAncestorObject(Job.class);
+            amp.matrix.fromForm(formData, job == null ? null : job.getProperty(AuthorizationMatrixProperty.class));
 			return amp;
 		}
 
@@ -194,12 +246,23 @@ public class AuthorizationMatrixProperty extends JobProperty<Job<?, ?>> {
             return p.getEnabled() && p.isContainedBy(PermissionScope.ITEM);
         }
 
+        private transient volatile MatrixColumns columns;
+
+        /**
+         * Returns the permission columns of the matrix editor.
+         * This is only recomputed from {@link #getAllGroups()} and {@link #showPermission(Permission)}
+         * when permissions were registered, enabled or disabled.
+         */
+        public MatrixColumns getColumns() {
+            return columns = MatrixColumns.of(this, columns);
+        }
+
         public FormValidation doCheckName(@AncestorInPath Job project, @QueryParameter String value) throws IOException, ServletException {
             return GlobalMatrixAuthorizationStrategy.DESCRIPTOR.doCheckName_(value, project, Item.CONFIGURE);
         }
     }
 
-	private final class AclImpl extends SidACL {
+	private final class AclImpl extends MatrixACL {
                 @CheckForNull
                 @SuppressFBWarnings(value = "NP_BOOLEAN_RETURN_NULL", 
                         justification = "As designed, implements a third state for the ternary logic")
@@ -209,6 +272,16 @@ public class AuthorizationMatrixProperty extends JobProperty<Job<?, ?>> {
                         }
 			return null;
 		}
+
+		@Override
+		public CompiledMatrix getCompiledMatrix() {
+			return AuthorizationMatrixProperty.this.getCompiledMatrix();
+		}
+
+		@Override
+		protected String getFolderFullName() {
+			return owner == null ? "" : owner.getParent().getFullName();
+		}
 	}
 
 	public SidACL getACL() {
@@ -238,32 +311,17 @@ public class AuthorizationMatrixProperty extends JobProperty<Job<?, ?>> {
 	 * Checks if the given SID has the given permission.
 	 */
 	public boolean hasPermission(String sid, Permission p) {
-		for (; p != null; p = p.impliedBy) {
-			Set<String> set = grantedPermissions.get(p);
-			if (set != null && set.contains(sid))
-				return true;
-		}
-		return false;
+        CompiledMatrix c = getCompiledMatrix();
+        return c.hasPermission(c.getSidNormalizer().normalize(sid), p);
 	}
 
     /**
      * Checks if the permission is explicitly given, instead of implied through {@link Permission#impliedBy}.
+     * Like {@link #hasPermission(String, Permission)}, this compares SIDs as normalized by the current policy.
      */
     public boolean hasExplicitPermission(String sid, Permission p) {
-        Set<String> set = grantedPermissions.get(p);
-        return set != null && set.contains(sid);
-    }
-    
-    /**
-     * Works like {@link #add(Permission, String)} but takes both parameters
-     * from a single string of the form <tt>PERMISSIONID:sid</tt>
-     */
-    private void add(String shortForm) {
-        int idx = shortForm.indexOf(':');
-        Permission p = Permission.fromId(shortForm.substring(0, idx));
-        if (p==null)
-            throw new IllegalArgumentException("Failed to parse '"+shortForm+"' --- no such permission");
-        add(p, shortForm.substring(idx + 1));
+        CompiledMatrix c = getCompiledMatrix();
+        return c.hasExplicitPermission(c.getSidNormalizer().normalize(sid), p);
     }
 
 	/**
@@ -285,15 +343,7 @@ public class AuthorizationMatrixProperty extends JobProperty<Job<?, ?>> {
                 writer.endNode();
             }
 
-            for (Entry<Permission, Set<String>> e : amp.grantedPermissions
-					.entrySet()) {
-				String p = e.getKey().getId();
-				for (String sid : e.getValue()) {
-					writer.startNode("permission");
-					writer.setValue(p + ':' + sid);
-					writer.endNode();
-				}
-			}
+            amp.matrix.marshal(writer);
 		}
 
 		public Object unmarshal(HierarchicalStreamReader reader,
@@ -314,19 +364,9 @@ public class AuthorizationMatrixProperty extends JobProperty<Job<?, ?>> {
 			    reader.moveUp();
 			}
 
-			while (reader.hasMoreChildren()) {
-                reader.moveDown();
-                try {
-                    as.add(reader.getValue());
-                } catch (IllegalArgumentException ex) {
-                     Logger.getLogger(AuthorizationMatrixProperty.class.getName())
-                           .log(Level.WARNING,"Skipping a non-existent permission",ex);
-                     RobustReflectionConverter.addErrorInContext(context, ex);
-                }
-                reader.moveUp();
-            }
+            as.matrix.unmarshal(reader, context);
 
-            if (GlobalMatrixAuthorizationStrategy.migrateHudson2324(as.grantedPermissions))
+            if (!LegacyFormatMigration.isCompleted() && GlobalMatrixAuthorizationStrategy.migrateHudson2324(as.matrix))
                 OldDataMonitor.report(context, "1.301");
 
             return as;
@@ -44,7 +44,19 @@ import net.sf.json.JSONObject;
 import org.acegisecurity.AuthenticationException;
 import org.acegisecurity.userdetails.UsernameNotFoundException;
 import org.acegisecurity.acls.sid.Sid;
+import org.jenkinsci.plugins.matrixauth.AuthorizationContainer;
+import org.jenkinsci.plugins.matrixauth.CompiledMatrix;
+import org.jenkinsci.plugins.matrixauth.GrantExpiry;
+import org.jenkinsci.plugins.matrixauth.LegacyFormatMigration;
+import org.jenkinsci.plugins.matrixauth.MatrixACL;
+import org.jenkinsci.plugins.matrixauth.MatrixChangeTracker;
+import org.jenkinsci.plugins.matrixauth.MatrixColumns;
+import org.jenkinsci.plugins.matrixauth.MatrixDelta;
+import org.jenkinsci.plugins.matrixauth.MatrixDigest;
 import org.jenkinsci.plugins.matrixauth.Messages;
+import org.jenkinsci.plugins.matrixauth.PermissionSet;
+import org.jenkinsci.plugins.matrixauth.PropertyMatrix;
+import org.jenkinsci.plugins.matrixauth.SidNormalizer;
 import org.kohsuke.stapler.Stapler;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.QueryParameter;
@@ -52,7 +64,6 @@ import org.springframework.dao.DataAccessException;
 
 import javax.servlet.ServletException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -74,7 +85,7 @@ import javax.annotation.Nonnull;
  * @author Kohsuke Kawaguchi
  */
 // TODO: think about the concurrency commitment of this class
-public class GlobalMatrixAuthorizationStrategy extends AuthorizationStrategy {
+public class GlobalMatrixAuthorizationStrategy extends AuthorizationStrategy implements AuthorizationContainer {
     private transient SidACL acl = new AclImpl();
 
     /**
@@ -85,7 +96,31 @@ public class GlobalMatrixAuthorizationStrategy extends AuthorizationStrategy {
      */
     private final Map<Permission,Set<String>> grantedPermissions = new HashMap<Permission, Set<String>>();
 
-    private final Set<String> sids = new HashSet<String>();
+    /**
+     * Set when the SID sets in {@link #grantedPermissions} are shared with the matrix
+     * a {@link MatrixDelta} was applied to, so they must be copied before being modified.
+     */
+    private transient boolean sharedGrants;
+
+    private transient volatile String matrixVersion;
+
+    private transient volatile CompiledMatrix compiled;
+
+    /**
+     * {@link PermissionSet}s by name, for job and folder matrices to grant.
+     * Replaced, never modified, so that matrices referencing them can tell when they were redefined.
+     */
+    private volatile Map<String,PermissionSet> permissionSets = Collections.emptyMap();
+
+    /**
+     * How SIDs are compared, in this matrix and in job and folder matrices.
+     */
+    private volatile SidNormalizer sidNormalizer = SidNormalizer.IDENTITY;
+
+    /**
+     * When grants of {@link #grantedPermissions} expire, by <tt>PERMISSIONID:sid</tt>.
+     */
+    private Map<String,Long> grantExpiries = new TreeMap<String,Long>();
 
     /**
      * Adds to {@link #grantedPermissions}.
@@ -95,13 +130,76 @@ public class GlobalMatrixAuthorizationStrategy extends AuthorizationStrategy {
     public void add(Permission p, String sid) {
         if (p==null)
             throw new IllegalArgumentException("Permission can not be null for sid:" + sid);
+        sid = sidNormalizer.normalize(sid);
 
         LOGGER.log(Level.FINE, "Grant permission \"{0}\" to \"{1}\")", new Object[]{p, sid});
         Set<String> set = grantedPermissions.get(p);
+        if (set!=null && set.contains(sid))
+            return; // already granted; keep the matrix version so that nothing needs to be saved
+        if (sharedGrants) {
+            for (Entry<Permission,Set<String>> e : grantedPermissions.entrySet())
+                e.setValue(new HashSet<String>(e.getValue()));
+            sharedGrants = false;
+            set = grantedPermissions.get(p);
+        }
         if(set==null)
             grantedPermissions.put(p,set = new HashSet<String>());
         set.add(sid);
-        sids.add(sid);
+        matrixVersion = null;
+        compiled = null;
+        MatrixChangeTracker.granted(this, p, sid);
+    }
+
+    /**
+     * Adds to {@link #grantedPermissions} a grant that {@linkplain GrantExpiry expires} at the given time.
+     * If the grant already exists without expiry, it stays permanent.
+     * Use of this method should be limited during construction,
+     * as this object itself is considered immutable once populated.
+     */
+    public void add(Permission p, String sid, long expiresAt) {
+        String normalized = sidNormalizer.normalize(sid);
+        Set<String> set = grantedPermissions.get(p);
+        if (set != null && set.contains(normalized) && !grantExpiries.containsKey(GrantExpiry.key(p, normalized)))
+            return;
+        addExpiring(p, sid, expiresAt);
+    }
+
+    /**
+     * Like {@link #add(Permission, String, long)}, but also makes a permanent grant expire,
+     * as the expiring grants submitted on the configuration page do.
+     */
+    private void addExpiring(Permission p, String sid, long expiresAt) {
+        add(p, sid);
+        grantExpiries.put(GrantExpiry.key(p, sidNormalizer.normalize(sid)), expiresAt);
+        matrixVersion = null;
+    }
+
+    /**
+     * Adds the expiring grants submitted on the configuration page, skipping those that already expired.
+     */
+    private void addExpiringGrants(JSONObject formData) throws Descriptor.FormException {
+        for (Entry<String,Long> e : GrantExpiry.fromForm(formData).entrySet())
+            addExpiring(GrantExpiry.permissionOf(e.getKey()), GrantExpiry.sidOf(e.getKey()), e.getValue());
+    }
+
+    /**
+     * Populates {@link #grantedPermissions} with SID sets shared with another matrix.
+     */
+    private void addShared(Map<Permission,Set<String>> grants) {
+        grantedPermissions.putAll(grants);
+        sharedGrants = true;
+        matrixVersion = null;
+        compiled = null;
+    }
+
+    /**
+     * Returns the lookup structures derived from {@link #grantedPermissions}, building them on first use.
+     */
+    public CompiledMatrix getCompiledMatrix() {
+        CompiledMatrix c = compiled;
+        if (c == null)
+            compiled = c = CompiledMatrix.compile(grantedPermissions, sidNormalizer);
+        return c;
     }
 
     /**
@@ -109,11 +207,25 @@ public class GlobalMatrixAuthorizationStrategy extends AuthorizationStrategy {
      * from a single string of the form <tt>PERMISSIONID:sid</tt>
      */
     private void add(String shortForm) {
+        add(shortForm, null);
+    }
+
+    /**
+     * Like {@link #add(String)}, for a grant persisted with an expiry time.
+     * Grants that expired while Jenkins was not running are skipped.
+     */
+    private void add(String shortForm, @CheckForNull String expires) {
         int idx = shortForm.indexOf(':');
-        Permission p = Permission.fromId(shortForm.substring(0, idx));
+        Permission p = idx < 0 ? null : Permission.fromId(shortForm.substring(0, idx));
         if (p==null)
             throw new IllegalArgumentException("Failed to parse '"+shortForm+"' --- no such permission");
-        add(p,shortForm.substring(idx+1));
+        if (expires == null) {
+            add(p,shortForm.substring(idx+1));
+        } else {
+            long t = GrantExpiry.parse(expires);
+            if (t > System.currentTimeMillis())
+                add(p, shortForm.substring(idx+1), t);
+        }
     }
 
     @Override
@@ -122,7 +234,129 @@ public class GlobalMatrixAuthorizationStrategy extends AuthorizationStrategy {
     }
 
     public Set<String> getGroups() {
-        return sids;
+        return getCompiledMatrix().getSids();
+    }
+
+    /**
+     * Returns all the (Permission,sid) pairs that are granted, in the multi-map form.
+     *
+     * @return
+     *      read-only. never null.
+     */
+    public Map<Permission,Set<String>> getGrantedPermissions() {
+        return Collections.unmodifiableMap(grantedPermissions);
+    }
+
+    /**
+     * Permission sets are only granted by job and folder matrices.
+     */
+    public Map<String,Set<String>> getPermissionSetGrants() {
+        return Collections.emptyMap();
+    }
+
+    public Map<String,Long> getGrantExpiries() {
+        return Collections.unmodifiableMap(grantExpiries);
+    }
+
+    /**
+     * Returns {@link #getGrantExpiries()} in the form edited on the configuration page.
+     */
+    public String getGrantExpiriesText() {
+        return GrantExpiry.formatLines(grantExpiries);
+    }
+
+    public GlobalMatrixAuthorizationStrategy withGrantedPermissions(Map<Permission,? extends Set<String>> grantedPermissions) {
+        GlobalMatrixAuthorizationStrategy gmas = ((DescriptorImpl) getDescriptor()).create();
+        for (Entry<Permission,? extends Set<String>> e : grantedPermissions.entrySet()) {
+            if (!e.getValue().isEmpty())
+                gmas.grantedPermissions.put(e.getKey(), new HashSet<String>(e.getValue()));
+        }
+        gmas.permissionSets = permissionSets;
+        gmas.setSidNormalizer(sidNormalizer);
+        gmas.grantExpiries.putAll(GrantExpiry.retain(grantExpiries, gmas.grantedPermissions));
+        return gmas;
+    }
+
+    /**
+     * Permission sets are only granted by job and folder matrices, so only an empty map is accepted.
+     */
+    public GlobalMatrixAuthorizationStrategy withPermissionSetGrants(Map<String,? extends Set<String>> permissionSetGrants) {
+        if (!permissionSetGrants.isEmpty())
+            throw new IllegalArgumentException("Permission sets cannot be granted globally");
+        return this;
+    }
+
+    public String getMatrixVersion() {
+        String v = matrixVersion;
+        if (v == null) {
+            Map<String,List<String>> sets = new HashMap<String,List<String>>();
+            for (PermissionSet set : permissionSets.values())
+                sets.put(set.getName(), set.getPermissionIds());
+            if (!sidNormalizer.isIdentity())
+                sets.put(" sidNormalizer", Collections.singletonList(sidNormalizer.toString())); // not a valid set name
+            matrixVersion = v = MatrixDigest.of(grantedPermissions, sets, grantExpiries);
+        }
+        return v;
+    }
+
+    /**
+     * Returns the {@link PermissionSet}s job and folder matrices can grant, by name.
+     *
+     * @return
+     *      read-only. never null.
+     */
+    public Map<String,PermissionSet> getPermissionSets() {
+        return permissionSets;
+    }
+
+    /**
+     * Defines a {@link PermissionSet}, replacing any set of the same name.
+     * Use of this method should be limited during construction,
+     * as this object itself is considered immutable once populated.
+     */
+    public void addPermissionSet(PermissionSet set) {
+        Map<String,PermissionSet> sets = new TreeMap<String,PermissionSet>(permissionSets);
+        sets.put(set.getName(), set);
+        permissionSets = Collections.unmodifiableMap(sets);
+        matrixVersion = null;
+    }
+
+    /**
+     * Returns how SIDs are compared, in this matrix and in job and folder matrices.
+     */
+    public SidNormalizer getSidNormalizer() {
+        return sidNormalizer;
+    }
+
+    /**
+     * Changes how SIDs are compared, merging rows of this matrix that become the same SID.
+     * Use of this method should be limited during construction,
+     * as this object itself is considered immutable once populated.
+     */
+    public void setSidNormalizer(SidNormalizer sidNormalizer) {
+        this.sidNormalizer = sidNormalizer;
+        if (!sidNormalizer.isIdentity()) {
+            for (Entry<Permission,Set<String>> e : grantedPermissions.entrySet()) {
+                Set<String> sids = new HashSet<String>();
+                for (String sid : e.getValue())
+                    sids.add(sidNormalizer.normalize(sid));
+                e.setValue(sids);
+            }
+            sharedGrants = false;
+            Map<String,Long> expiries = new TreeMap<String,Long>();
+            for (Entry<String,Long> e : grantExpiries.entrySet())
+                expiries.put(GrantExpiry.key(GrantExpiry.permissionOf(e.getKey()), sidNormalizer.normalize(GrantExpiry.sidOf(e.getKey()))), e.getValue());
+            grantExpiries = expiries;
+        }
+        matrixVersion = null;
+        compiled = null;
+    }
+
+    /**
+     * Returns the {@link PermissionSet}s in the form edited on the configuration page.
+     */
+    public String getPermissionSetDefinitions() {
+        return PermissionSet.formatDefinitions(permissionSets);
     }
 
     /**
@@ -148,16 +382,30 @@ public class GlobalMatrixAuthorizationStrategy extends AuthorizationStrategy {
         return result;
     }
 
+    /**
+     * Same as {@link #migrateHudson2324(Map)}, for the matrix of a job.
+     */
+    /*package*/ static boolean migrateHudson2324(PropertyMatrix matrix) {
+        return Jenkins.getActiveInstance().isUpgradedFromBefore(new VersionNumber("1.300.*"))
+                && matrix.copyGrants(Jenkins.READ, Item.READ);
+    }
+
     /**
      * Checks if the given SID has the given permission.
+     *
+     * <p>
+     * The SID is looked up as given first, and only normalized if that fails: normalization is idempotent
+     * and the matrix only holds normalized SIDs, so a SID found as given is granted either way.
      */
     public boolean hasPermission(String sid, Permission p) {
-        for(; p!=null; p=p.impliedBy) {
-            Set<String> set = grantedPermissions.get(p);
-            if(set!=null && set.contains(sid) && p.getEnabled())
-                return true;
-        }
-        return false;
+        CompiledMatrix m = getCompiledMatrix();
+        if (m.hasPermission(sid, p))
+            return true;
+        SidNormalizer n = m.getSidNormalizer();
+        if (n.isIdentity())
+            return false;
+        String normalized = n.normalize(sid);
+        return !normalized.equals(sid) && m.hasPermission(normalized, p);
     }
 
     /**
@@ -165,27 +413,20 @@ public class GlobalMatrixAuthorizationStrategy extends AuthorizationStrategy {
      */
     public boolean hasExplicitPermission(String sid, Permission p) {
         Set<String> set = grantedPermissions.get(p);
-        return set != null && set.contains(sid) && p.getEnabled();
+        return set != null && set.contains(sidNormalizer.normalize(sid)) && p.getEnabled();
     }
 
     /**
      * Returns all SIDs configured in this matrix, minus "anonymous"
      *
      * @return
-     *      Always non-null.
+     *      Always non-null, sorted and read-only.
      */
     public List<String> getAllSIDs() {
-        Set<String> r = new HashSet<String>();
-        for (Set<String> set : grantedPermissions.values())
-            r.addAll(set);
-        r.remove("anonymous");
-
-        String[] data = r.toArray(new String[r.size()]);
-        Arrays.sort(data);
-        return Arrays.asList(data);
+        return getCompiledMatrix().getAllSIDs();
     }
 
-    private final class AclImpl extends SidACL {
+    private final class AclImpl extends MatrixACL {
         @CheckForNull
         @SuppressFBWarnings(value = "NP_BOOLEAN_RETURN_NULL", 
                         justification = "As designed, implements a third state for the ternary logic")
@@ -194,6 +435,11 @@ public class GlobalMatrixAuthorizationStrategy extends AuthorizationStrategy {
                 return true;
             return null;
         }
+
+        @Override
+        public CompiledMatrix getCompiledMatrix() {
+            return GlobalMatrixAuthorizationStrategy.this.getCompiledMatrix();
+        }
     }
 
     @Extension
@@ -211,6 +457,13 @@ public class GlobalMatrixAuthorizationStrategy extends AuthorizationStrategy {
         public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
             GlobalMatrixAuthorizationStrategy strategy = (GlobalMatrixAuthorizationStrategy)source;
 
+            // first, so that the grants below are normalized as they are read back
+            if (!strategy.sidNormalizer.isIdentity()) {
+                writer.startNode("sidNormalization");
+                writer.setValue(strategy.sidNormalizer.toString());
+                writer.endNode();
+            }
+
             // Output in alphabetical order for readability.
             SortedMap<Permission, Set<String>> sortedPermissions = new TreeMap<Permission, Set<String>>(Permission.ID_COMPARATOR);
             sortedPermissions.putAll(strategy.grantedPermissions);
@@ -220,10 +473,18 @@ public class GlobalMatrixAuthorizationStrategy extends AuthorizationStrategy {
                 Collections.sort(sids);
                 for (String sid : sids) {
                     writer.startNode("permission");
+                    Long expires = strategy.grantExpiries.get(p+':'+sid);
+                    if (expires != null)
+                        writer.addAttribute("expires", GrantExpiry.format(expires));
                     writer.setValue(p+':'+sid);
                     writer.endNode();
                 }
             }
+            for (PermissionSet set : strategy.permissionSets.values()) {
+                writer.startNode("permissionSet");
+                writer.setValue(set.toString());
+                writer.endNode();
+            }
 
         }
 
@@ -233,7 +494,12 @@ public class GlobalMatrixAuthorizationStrategy extends AuthorizationStrategy {
             while (reader.hasMoreChildren()) {
                 reader.moveDown();
                 try {
-                    as.add(reader.getValue());
+                    if ("permissionSet".equals(reader.getNodeName()))
+                        as.addPermissionSet(PermissionSet.fromString(reader.getValue()));
+                    else if ("sidNormalization".equals(reader.getNodeName()))
+                        as.setSidNormalizer(SidNormalizer.fromString(reader.getValue()));
+                    else
+                        as.add(reader.getValue(), reader.getAttribute("expires"));
                 } catch (IllegalArgumentException ex) {
                     Logger.getLogger(GlobalMatrixAuthorizationStrategy.class.getName())
                           .log(Level.WARNING,"Skipping a non-existent permission",ex);
@@ -242,7 +508,7 @@ public class GlobalMatrixAuthorizationStrategy extends AuthorizationStrategy {
                 reader.moveUp();
             }
 
-            if (migrateHudson2324(as.grantedPermissions))
+            if (!LegacyFormatMigration.isCompleted() && migrateHudson2324(as.grantedPermissions))
                 OldDataMonitor.report(context, "1.301");
 
             return as;
@@ -253,7 +519,7 @@ public class GlobalMatrixAuthorizationStrategy extends AuthorizationStrategy {
         }
     }
     
-    public static class DescriptorImpl extends Descriptor<AuthorizationStrategy> {
+    public static class DescriptorImpl extends Descriptor<AuthorizationStrategy> implements MatrixColumns.Source {
         protected DescriptorImpl(Class<? extends GlobalMatrixAuthorizationStrategy> clazz) {
             super(clazz);
         }
@@ -268,6 +534,27 @@ public class GlobalMatrixAuthorizationStrategy extends AuthorizationStrategy {
         @Override
         public AuthorizationStrategy newInstance(StaplerRequest req, JSONObject formData) throws FormException {
             GlobalMatrixAuthorizationStrategy gmas = create();
+
+            if (formData.has("permissionSets")) {
+                try {
+                    gmas.permissionSets = PermissionSet.parseDefinitions(formData.getString("permissionSets"));
+                } catch (IllegalArgumentException e) {
+                    throw new FormException(e.getMessage(), "permissionSets");
+                }
+            }
+
+            MatrixDelta delta = MatrixDelta.fromForm(formData);
+            if (delta != null) {
+                // only the changed cells were submitted; apply them to the matrix currently in effect
+                AuthorizationStrategy current = Jenkins.getActiveInstance().getAuthorizationStrategy();
+                gmas.addShared(delta.applyTo(current.getDescriptor() == this ? (GlobalMatrixAuthorizationStrategy) current : null));
+                gmas.setSidNormalizer(sidNormalizerFromForm(formData));
+                gmas.addExpiringGrants(formData);
+                return gmas;
+            }
+            gmas.setSidNormalizer(sidNormalizerFromForm(formData));
+            gmas.addExpiringGrants(formData);
+
             Map<String,Object> data = formData.getJSONObject("data");
             for(Map.Entry<String,Object> r : data.entrySet()) {
                 String sid = r.getKey();
@@ -296,6 +583,25 @@ public class GlobalMatrixAuthorizationStrategy extends AuthorizationStrategy {
             return new GlobalMatrixAuthorizationStrategy();
         }
 
+        private static SidNormalizer sidNormalizerFromForm(JSONObject formData) {
+            return SidNormalizer.of(formData.optBoolean("caseInsensitiveSids"), formData.optBoolean("stripSidDomains"));
+        }
+
+        /**
+         * Whether {@link PermissionSet}s can be defined, which is only useful when job and folder matrices can grant them.
+         */
+        public boolean isPermissionSetsSupported() {
+            return false;
+        }
+
+        /**
+         * Whether the SID comparison options are shown, which only apply to the global matrix.
+         * Job and folder matrices include the same configuration page, with their own descriptor.
+         */
+        public boolean isSidNormalizationSupported() {
+            return true;
+        }
+
         public List<PermissionGroup> getAllGroups() {
             List<PermissionGroup> groups = new ArrayList<PermissionGroup>(PermissionGroup.getAll());
             groups.remove(PermissionGroup.get(Permission.class));
@@ -306,6 +612,17 @@ public class GlobalMatrixAuthorizationStrategy extends AuthorizationStrategy {
             return p.getEnabled();
         }
 
+        private transient volatile MatrixColumns columns;
+
+        /**
+         * Returns the permission columns of the matrix editor.
+         * This is only recomputed from {@link #getAllGroups()} and {@link #showPermission(Permission)}
+         * when permissions were registered, enabled or disabled.
+         */
+        public MatrixColumns getColumns() {
+            return columns = MatrixColumns.of(this, columns);
+        }
+
         public FormValidation doCheckName(@QueryParameter String value ) throws IOException, ServletException {
             final Jenkins jenkins = Jenkins.getInstance();
             if (jenkins == null) { // Should never happen
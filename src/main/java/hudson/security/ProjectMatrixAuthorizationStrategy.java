@@ -38,6 +38,7 @@ import com.thoughtworks.xstream.mapper.Mapper;
 import com.thoughtworks.xstream.core.JVM;
 import hudson.PluginManager;
 import org.acegisecurity.Authentication;
+import org.jenkinsci.plugins.matrixauth.MatrixACL;
 import org.jenkinsci.plugins.matrixauth.Messages;
 
 import java.util.HashSet;
@@ -69,13 +70,31 @@ public class ProjectMatrixAuthorizationStrategy extends GlobalMatrixAuthorizatio
         }
     }
 
+    /**
+     * Same as {@link #getACL(Job)}, with the ACL of the parent of the job already known,
+     * as when checking many jobs of the same folder.
+     */
+    public ACL getACL(Job<?,?> project, ACL parentAcl) {
+        AuthorizationMatrixProperty amp = project.getProperty(AuthorizationMatrixProperty.class);
+        if (amp == null)
+            return parentAcl;
+        if (amp.isBlocksInheritance())
+            return amp.getACL();
+        return inheritingACL(parentAcl, amp.getACL());
+    }
+
     private static ACL inheritingACL(final ACL parent, final ACL child) {
+        if (parent instanceof MatrixACL && child instanceof MatrixACL) {
+            return ((MatrixACL) child).inheritFrom((MatrixACL) parent);
+        }
         if (parent instanceof SidACL && child instanceof SidACL) {
             return ((SidACL) child).newInheritingACL((SidACL) parent);
         }
         return new ACL() {
             @Override
             public boolean hasPermission(Authentication a, Permission permission) {
+                if (child instanceof MatrixACL)
+                    return ((MatrixACL) child).hasPermission(a, permission, parent);
                 return child.hasPermission(a, permission) || parent.hasPermission(a, permission);
             }
         };
@@ -125,6 +144,11 @@ public class ProjectMatrixAuthorizationStrategy extends GlobalMatrixAuthorizatio
         public String getDisplayName() {
             return Messages.ProjectMatrixAuthorizationStrategy_DisplayName();
         }
+
+        @Override
+        public boolean isPermissionSetsSupported() {
+            return true;
+        }
     };
 
     public static class ConverterImpl extends GlobalMatrixAuthorizationStrategy.ConverterImpl {
@@ -142,7 +166,7 @@ public class ProjectMatrixAuthorizationStrategy extends GlobalMatrixAuthorizatio
         @Override
         public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
             String name = reader.peekNextChild();
-            if(name!=null && (name.equals("permission") || name.equals("useProjectSecurity")))
+            if(name!=null && (name.equals("permission") || name.equals("permissionSet") || name.equals("sidNormalization") || name.equals("useProjectSecurity")))
                 // the proper serialization form
                 return super.unmarshal(reader, context);
             else
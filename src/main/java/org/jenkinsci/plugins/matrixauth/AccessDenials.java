@@ -0,0 +1,340 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import hudson.security.Permission;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.GrantedAuthority;
+
+import javax.annotation.CheckForNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Aggregates the checks denied by {@link MatrixACL}s, so that a storm of denials, such as a bot
+ * account without {@link hudson.model.Item#READ} polling thousands of jobs, is visible without
+ * logging every one of them.
+ *
+ * <p>
+ * Denials are counted by the set of SIDs of the user, the permission and the folder of the matrix
+ * that denied it. The request thread only increments a counter; a summary of the busiest counters is
+ * logged every minute, and the counters start over. At most {@link #MAX_KEYS} distinct counters are kept
+ * per period; further denials are only counted in total.
+ *
+ * <p>
+ * Counting is off unless the system property {@code org.jenkinsci.plugins.matrixauth.AccessDenials.enabled}
+ * is set, or {@link #setEnabled(boolean)} is called from the script console.
+ */
+public final class AccessDenials {
+    private AccessDenials() {}
+
+    private static volatile ConcurrentHashMap<Key,Counter> counters = new ConcurrentHashMap<Key,Counter>();
+
+    /**
+     * Denials not attributed to a counter in the current period because {@link #MAX_KEYS} was reached.
+     */
+    private static volatile AtomicLong overflow = new AtomicLong();
+
+    private static volatile long periodStarted = System.currentTimeMillis();
+
+    private static volatile Summary last;
+
+    /**
+     * Whether denials are being counted.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns counting on or off until the next restart.
+     */
+    public static void setEnabled(boolean enabled) {
+        AccessDenials.enabled = enabled;
+    }
+
+    /**
+     * Counts a check of {@code p} denied to {@code a} by {@code acl}.
+     */
+    static void record(MatrixACL acl, Authentication a, Permission p) {
+        Key k = new Key(sidHash(a), p, acl.getFolderFullName());
+        ConcurrentHashMap<Key,Counter> m = counters;
+        Counter c = m.get(k);
+        if (c == null) {
+            if (m.size() >= MAX_KEYS) {
+                overflow.incrementAndGet();
+                return;
+            }
+            Counter fresh = new Counter(a.getName());
+            c = m.putIfAbsent(k, fresh);
+            if (c == null)
+                c = fresh;
+        }
+        c.hit();
+    }
+
+    private static int sidHash(Authentication a) {
+        String name = a.getName();
+        int h = name == null ? 0 : name.hashCode();
+        for (GrantedAuthority ga : a.getAuthorities()) {
+            String authority = ga.getAuthority();
+            h = 31 * h + (authority == null ? 0 : authority.hashCode());
+        }
+        return h;
+    }
+
+    /**
+     * Returns the summary of the last completed period.
+     *
+     * @return
+     *      null if no period completed yet.
+     */
+    @CheckForNull
+    public static Summary getLastSummary() {
+        return last;
+    }
+
+    /**
+     * Ends the current period and summarizes it.
+     */
+    static Summary flush() {
+        ConcurrentHashMap<Key,Counter> m = counters;
+        AtomicLong o = overflow;
+        long started = periodStarted;
+        counters = new ConcurrentHashMap<Key,Counter>();
+        overflow = new AtomicLong();
+        periodStarted = System.currentTimeMillis();
+
+        List<Denial> denials = new ArrayList<Denial>(m.size());
+        long total = o.get();
+        for (Entry<Key,Counter> e : m.entrySet()) {
+            long n = e.getValue().sum();
+            total += n;
+            denials.add(new Denial(e.getValue().user, e.getKey().permission, e.getKey().folder, n));
+        }
+        Collections.sort(denials, new Comparator<Denial>() {
+            public int compare(Denial a, Denial b) {
+                return a.count < b.count ? 1 : a.count > b.count ? -1 : 0;
+            }
+        });
+        Summary s = new Summary(started, periodStarted, total, o.get(), denials);
+        last = s;
+        return s;
+    }
+
+    /**
+     * Denials counted together during a period.
+     */
+    public static final class Denial {
+        private final String user;
+        private final Permission permission;
+        private final String folder;
+        private final long count;
+
+        Denial(String user, Permission permission, String folder, long count) {
+            this.user = user;
+            this.permission = permission;
+            this.folder = folder;
+            this.count = count;
+        }
+
+        /**
+         * Name of the first user denied, standing for every user with the same SIDs.
+         */
+        public String getUser() {
+            return user;
+        }
+
+        public Permission getPermission() {
+            return permission;
+        }
+
+        /**
+         * Full name of the folder of the matrix that denied the checks, or the empty string for the root.
+         */
+        public String getFolder() {
+            return folder;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return count + " x " + permission.getId() + " denied to '" + user + "'"
+                    + (folder.length() == 0 ? "" : " in '" + folder + "'");
+        }
+    }
+
+    /**
+     * Denials of one period, busiest first.
+     */
+    public static final class Summary {
+        private final long started, ended, total, unattributed;
+        private final List<Denial> denials;
+
+        Summary(long started, long ended, long total, long unattributed, List<Denial> denials) {
+            this.started = started;
+            this.ended = ended;
+            this.total = total;
+            this.unattributed = unattributed;
+            this.denials = Collections.unmodifiableList(denials);
+        }
+
+        public long getStarted() {
+            return started;
+        }
+
+        public long getEnded() {
+            return ended;
+        }
+
+        /**
+         * Number of denials in the period.
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * Number of denials not in {@link #getDenials()} because too many distinct counters were needed.
+         */
+        public long getUnattributed() {
+            return unattributed;
+        }
+
+        public List<Denial> getDenials() {
+            return denials;
+        }
+    }
+
+    private static final class Key {
+        final int sidHash;
+        final Permission permission;
+        final String folder;
+
+        Key(int sidHash, Permission permission, String folder) {
+            this.sidHash = sidHash;
+            this.permission = permission;
+            this.folder = folder;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return sidHash == k.sidHash && permission == k.permission && folder.equals(k.folder);
+        }
+
+        @Override
+        public int hashCode() {
+            return (sidHash * 31 + permission.hashCode()) * 31 + folder.hashCode();
+        }
+    }
+
+    /**
+     * Denial counter of one key, spread over several padded slots like {@link GrantUsage.Counter}.
+     */
+    private static final class Counter {
+        private static final int STRIPES = 8;
+        private static final int PADDING = 8;
+
+        private final AtomicLongArray hits = new AtomicLongArray(STRIPES * PADDING);
+
+        final String user;
+
+        Counter(String user) {
+            this.user = user;
+        }
+
+        void hit() {
+            hits.incrementAndGet((int) (Thread.currentThread().getId() & (STRIPES - 1)) * PADDING);
+        }
+
+        long sum() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++)
+                sum += hits.get(i * PADDING);
+            return sum;
+        }
+    }
+
+    /**
+     * Logs the busiest counters of the period that just ended.
+     */
+    @Extension
+    public static final class FlusherImpl extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void doRun() {
+            if (!enabled)
+                return;
+            Summary s = flush();
+            if (s.getTotal() == 0 || !LOGGER.isLoggable(Level.INFO))
+                return;
+            StringBuilder b = new StringBuilder();
+            b.append(s.getTotal()).append(" permission checks denied by authorization matrices in the last ")
+                    .append(TimeUnit.MILLISECONDS.toSeconds(s.getEnded() - s.getStarted())).append(" s");
+            List<Denial> denials = s.getDenials();
+            for (int i = 0; i < denials.size() && i < LOGGED; i++)
+                b.append("\n  ").append(denials.get(i));
+            if (denials.size() > LOGGED)
+                b.append("\n  and ").append(denials.size() - LOGGED).append(" more");
+            if (s.getUnattributed() > 0)
+                b.append("\n  and ").append(s.getUnattributed()).append(" not attributed");
+            LOGGER.info(b.toString());
+        }
+    }
+
+    /**
+     * Maximum number of distinct counters per period.
+     */
+    static final int MAX_KEYS = Integer.getInteger(AccessDenials.class.getName() + ".maxKeys", 1000);
+
+    /**
+     * Number of counters logged in each summary.
+     */
+    private static final int LOGGED = 20;
+
+    private static volatile boolean enabled = Boolean.getBoolean(AccessDenials.class.getName() + ".enabled");
+
+    private static final Logger LOGGER = Logger.getLogger(AccessDenials.class.getName());
+}
@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.security.Permission;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Common view of a permission matrix, as held by
+ * {@link hudson.security.GlobalMatrixAuthorizationStrategy} and the job and folder
+ * {@code AuthorizationMatrixProperty}.
+ */
+public interface AuthorizationContainer {
+    /**
+     * Returns all the (Permission,sid) pairs that are granted, in the multi-map form.
+     *
+     * @return
+     *      read-only. never null.
+     */
+    Map<Permission,Set<String>> getGrantedPermissions();
+
+    /**
+     * Returns the {@link PermissionSet}s granted by name, with the SIDs they are granted to.
+     *
+     * @return
+     *      read-only. never null, always empty for the global matrix.
+     */
+    Map<String,Set<String>> getPermissionSetGrants();
+
+    /**
+     * Returns when grants of {@link #getGrantedPermissions()} expire, by <tt>PERMISSIONID:sid</tt>.
+     * Grants that are not listed do not expire.
+     *
+     * @return
+     *      read-only. never null.
+     * @see GrantExpiry
+     */
+    Map<String,Long> getGrantExpiries();
+
+    /**
+     * Returns a token that identifies the current content of {@link #getGrantedPermissions()}.
+     * Matrices granting the same permissions to the same SIDs have the same version.
+     *
+     * @see MatrixDigest
+     */
+    String getMatrixVersion();
+
+    /**
+     * Returns the lookup structures derived from {@link #getGrantedPermissions()}, building them on first use.
+     */
+    CompiledMatrix getCompiledMatrix();
+
+    /**
+     * Creates a matrix of the same kind and with the same settings as this one,
+     * granting exactly the given permissions.
+     * Expiries of the grants that remain are kept.
+     *
+     * @param grantedPermissions
+     *      copied, not retained.
+     */
+    AuthorizationContainer withGrantedPermissions(Map<Permission,? extends Set<String>> grantedPermissions);
+
+    /**
+     * Creates a matrix of the same kind, with the same settings and grants as this one,
+     * granting exactly the given {@link PermissionSet}s.
+     *
+     * @param permissionSetGrants
+     *      copied, not retained. Must be empty for the global matrix.
+     */
+    AuthorizationContainer withPermissionSetGrants(Map<String,? extends Set<String>> permissionSetGrants);
+}
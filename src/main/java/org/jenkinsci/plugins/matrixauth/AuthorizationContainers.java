@@ -0,0 +1,230 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import com.cloudbees.hudson.plugins.folder.AbstractFolder;
+import hudson.BulkChange;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Job;
+import hudson.model.Saveable;
+import hudson.security.AuthorizationMatrixProperty;
+import hudson.security.AuthorizationStrategy;
+import hudson.security.GlobalMatrixAuthorizationStrategy;
+import hudson.security.Permission;
+import hudson.security.ProjectMatrixAuthorizationStrategy;
+import jenkins.model.Jenkins;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Locates and replaces the {@link AuthorizationContainer}s of Jenkins:
+ * the global matrix and the job and folder {@code AuthorizationMatrixProperty}.
+ *
+ * <p>
+ * Throughout this class, a null {@link Item} stands for the global matrix.
+ */
+public final class AuthorizationContainers {
+    private AuthorizationContainers() {}
+
+    /**
+     * Callback for {@link #visitAll(Visitor)}.
+     */
+    public interface Visitor {
+        /**
+         * @param item
+         *      the item {@code matrix} is configured on, or null for the global matrix.
+         */
+        void visit(@CheckForNull Item item, AuthorizationContainer matrix) throws IOException;
+    }
+
+    /**
+     * Returns the matrix configured on the given item.
+     *
+     * @param item
+     *      null for the global matrix.
+     * @return
+     *      null if the item has no matrix, or, for the global matrix,
+     *      if matrix-based security is not in use.
+     */
+    @CheckForNull
+    public static AuthorizationContainer of(@CheckForNull Item item) {
+        Jenkins jenkins = Jenkins.getActiveInstance();
+        if (item == null) {
+            AuthorizationStrategy strategy = jenkins.getAuthorizationStrategy();
+            return strategy instanceof GlobalMatrixAuthorizationStrategy ? (GlobalMatrixAuthorizationStrategy) strategy : null;
+        }
+        if (item instanceof Job) {
+            return ((Job<?,?>) item).getProperty(AuthorizationMatrixProperty.class);
+        }
+        if (jenkins.getPlugin("cloudbees-folder") != null) { // optional dependency
+            if (item instanceof AbstractFolder) {
+                return ((AbstractFolder<?>) item).getProperties().get(com.cloudbees.hudson.plugins.folder.properties.AuthorizationMatrixProperty.class);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if a matrix can be configured on the given item.
+     *
+     * @param item
+     *      null for the global matrix.
+     */
+    public static boolean supports(@CheckForNull Item item) {
+        Jenkins jenkins = Jenkins.getActiveInstance();
+        if (item == null) {
+            return jenkins.getAuthorizationStrategy() instanceof GlobalMatrixAuthorizationStrategy;
+        }
+        if (!(jenkins.getAuthorizationStrategy() instanceof ProjectMatrixAuthorizationStrategy)) {
+            return false;
+        }
+        if (item instanceof Job) {
+            return true;
+        }
+        return jenkins.getPlugin("cloudbees-folder") != null && item instanceof AbstractFolder;
+    }
+
+    /**
+     * Creates a new matrix for an item that does not have one yet.
+     *
+     * @param item
+     *      a job or a folder, see {@link #supports(Item)}.
+     */
+    public static AuthorizationContainer newMatrix(Item item, Map<Permission,? extends Set<String>> grantedPermissions) {
+        if (item instanceof Job) {
+            return new AuthorizationMatrixProperty(grantedPermissions);
+        }
+        if (Jenkins.getActiveInstance().getPlugin("cloudbees-folder") != null) { // optional dependency
+            if (item instanceof AbstractFolder) {
+                return new com.cloudbees.hudson.plugins.folder.properties.AuthorizationMatrixProperty(grantedPermissions);
+            }
+        }
+        throw new IllegalArgumentException("Cannot configure an authorization matrix on " + item);
+    }
+
+    /**
+     * Replaces the matrix of the given item, saving its configuration once.
+     *
+     * @param item
+     *      null to replace the global authorization strategy.
+     * @param matrix
+     *      of the kind returned by {@link #of(Item)} for this item.
+     * @return
+     *      false if the item already had an identical matrix, in which case nothing was changed or saved.
+     */
+    public static boolean replace(@CheckForNull Item item, AuthorizationContainer matrix) throws IOException {
+        if (isUnchanged(of(item), matrix))
+            return false;
+        install(item, matrix).save();
+        return true;
+    }
+
+    /**
+     * Like {@link #replace(Item, AuthorizationContainer)}, but the new matrix only takes effect
+     * in memory right away; the item is saved later by the {@link MatrixSaveQueue},
+     * together with other pending changes.
+     */
+    public static boolean replaceLater(@CheckForNull Item item, AuthorizationContainer matrix) throws IOException {
+        if (isUnchanged(of(item), matrix))
+            return false;
+        MatrixSaveQueue.schedule(install(item, matrix));
+        return true;
+    }
+
+    private static boolean isUnchanged(@CheckForNull AuthorizationContainer existing, AuthorizationContainer matrix) {
+        if (existing == null || existing.getClass() != matrix.getClass())
+            return false;
+        if (existing instanceof AuthorizationMatrixProperty
+                && ((AuthorizationMatrixProperty) existing).isBlocksInheritance() != ((AuthorizationMatrixProperty) matrix).isBlocksInheritance())
+            return false;
+        return existing.getMatrixVersion().equals(matrix.getMatrixVersion());
+    }
+
+    /**
+     * Puts the matrix in place without saving, and reports the change to {@link MatrixChangeListener}s.
+     *
+     * @return
+     *      what needs to be saved to persist the change.
+     */
+    private static Saveable install(@CheckForNull Item item, AuthorizationContainer matrix) throws IOException {
+        Saveable saveable = doInstall(item, matrix);
+        MatrixChangeTracker.update(item, matrix);
+        return saveable;
+    }
+
+    private static Saveable doInstall(@CheckForNull Item item, AuthorizationContainer matrix) throws IOException {
+        Jenkins jenkins = Jenkins.getActiveInstance();
+        if (item == null) {
+            jenkins.setAuthorizationStrategy((AuthorizationStrategy) matrix);
+            return jenkins;
+        }
+        BulkChange bc = new BulkChange(item);
+        try {
+            if (item instanceof Job) {
+                Job<?,?> job = (Job<?,?>) item;
+                job.removeProperty(AuthorizationMatrixProperty.class);
+                job.addProperty((AuthorizationMatrixProperty) matrix);
+                return job;
+            }
+            if (jenkins.getPlugin("cloudbees-folder") != null) { // optional dependency
+                if (item instanceof AbstractFolder) {
+                    ((AbstractFolder<?>) item).getProperties().replace((com.cloudbees.hudson.plugins.folder.properties.AuthorizationMatrixProperty) matrix);
+                    return item;
+                }
+            }
+        } finally {
+            bc.abort(); // the caller saves
+        }
+        throw new IllegalArgumentException("Cannot configure an authorization matrix on " + item);
+    }
+
+    /**
+     * Visits the global matrix, then the matrix of every item that has one, parents before children.
+     * Items are visited as they are found, without collecting them first.
+     */
+    public static void visitAll(Visitor visitor) throws IOException {
+        Jenkins jenkins = Jenkins.getActiveInstance();
+        AuthorizationContainer root = of(null);
+        if (root != null) {
+            visitor.visit(null, root);
+        }
+        visitChildren(jenkins, visitor);
+    }
+
+    private static void visitChildren(ItemGroup<?> group, Visitor visitor) throws IOException {
+        for (Item item : group.getItems()) {
+            AuthorizationContainer matrix = of(item);
+            if (matrix != null) {
+                visitor.visit(item, matrix);
+            }
+            if (item instanceof ItemGroup) {
+                visitChildren((ItemGroup<?>) item, visitor);
+            }
+        }
+    }
+}
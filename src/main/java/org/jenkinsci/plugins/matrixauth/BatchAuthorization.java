@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Job;
+import hudson.security.ACL;
+import hudson.security.AuthorizationStrategy;
+import hudson.security.Permission;
+import hudson.security.ProjectMatrixAuthorizationStrategy;
+import jenkins.model.Jenkins;
+import org.acegisecurity.Authentication;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks one permission for one user against many items at once, as when a push or an upstream
+ * build triggers thousands of jobs.
+ *
+ * <p>
+ * With {@link ProjectMatrixAuthorizationStrategy}, the ACL of each folder is built once for the batch
+ * rather than once per job in it, and each distinct {@link CompiledMatrix} is decided once: all the jobs
+ * of a folder that have no matrix of their own share the decision. The user's SIDs are resolved once,
+ * as {@link MatrixACL} does for consecutive checks on a thread.
+ *
+ * <p>
+ * Decisions are not recorded by {@link GrantUsage} or {@link AccessDenials}. A batch reflects the matrices
+ * as they were when it first needed them, so it should be used for one storm and then dropped.
+ * Instances are not thread safe.
+ */
+public final class BatchAuthorization {
+    private final Authentication authentication;
+    private final Permission permission;
+    private final AuthorizationStrategy strategy;
+    private final Map<ItemGroup<?>,ACL> parents = new IdentityHashMap<ItemGroup<?>,ACL>();
+    private final Map<CompiledMatrix,Boolean> decisions = new IdentityHashMap<CompiledMatrix,Boolean>();
+
+    public BatchAuthorization(Authentication authentication, Permission permission) {
+        this.authentication = authentication;
+        this.permission = permission;
+        this.strategy = Jenkins.getActiveInstance().getAuthorizationStrategy();
+    }
+
+    /**
+     * Returns the items the user has the permission on, in the given order.
+     */
+    public static <T extends Item> List<T> filter(Authentication a, Permission p, Iterable<T> items) {
+        return new BatchAuthorization(a, p).filter(items);
+    }
+
+    /**
+     * Returns the items the user has the permission on, in the given order.
+     */
+    public <T extends Item> List<T> filter(Iterable<T> items) {
+        List<T> r = new ArrayList<T>();
+        for (T item : items) {
+            if (hasPermission(item))
+                r.add(item);
+        }
+        return r;
+    }
+
+    /**
+     * Same as {@code item.getACL().hasPermission(a, p)}.
+     */
+    public boolean hasPermission(Item item) {
+        ACL acl;
+        if (strategy instanceof ProjectMatrixAuthorizationStrategy && item instanceof Job) {
+            acl = ((ProjectMatrixAuthorizationStrategy) strategy).getACL((Job<?,?>) item, parentACL(item.getParent()));
+        } else {
+            acl = item.getACL();
+        }
+        if (!(acl instanceof MatrixACL))
+            return acl.hasPermission(authentication, permission);
+        MatrixACL m = (MatrixACL) acl;
+        CompiledMatrix c = m.getCompiledMatrix();
+        Boolean d = decisions.get(c);
+        if (d == null) {
+            d = m.decide(authentication, permission);
+            decisions.put(c, d);
+        }
+        return d;
+    }
+
+    private ACL parentACL(ItemGroup<?> g) {
+        ACL acl = parents.get(g);
+        if (acl == null) {
+            acl = ((ProjectMatrixAuthorizationStrategy) strategy).getACL(g);
+            parents.put(g, acl);
+        }
+        return acl;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.model.Item;
+import hudson.security.Permission;
+import jenkins.model.Jenkins;
+
+import javax.annotation.CheckForNull;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Exports and imports the grants of all {@link AuthorizationContainer}s
+ * as streams of (item, SID, permission) triples in a {@link GrantFormat}.
+ */
+public final class BulkMatrixTransfer {
+    private BulkMatrixTransfer() {}
+
+    /**
+     * Maximum number of problems reported for a rejected import.
+     */
+    private static final int MAX_ERRORS = 100;
+
+    /**
+     * Writes the global matrix, then the matrix of every job and folder, one grant per line.
+     * Only one matrix at a time is held in memory.
+     */
+    public static void export(final GrantFormat format, final Writer w) throws IOException {
+        format.writeHeader(w);
+        AuthorizationContainers.visitAll(new AuthorizationContainers.Visitor() {
+            public void visit(Item item, AuthorizationContainer matrix) throws IOException {
+                String name = item == null ? "" : item.getFullName();
+                SortedMap<Permission,Set<String>> sorted = new TreeMap<Permission,Set<String>>(Permission.ID_COMPARATOR);
+                sorted.putAll(matrix.getGrantedPermissions());
+                for (Entry<Permission,Set<String>> e : sorted.entrySet()) {
+                    String p = e.getKey().getId();
+                    List<String> sids = new ArrayList<String>(e.getValue());
+                    Collections.sort(sids);
+                    for (String sid : sids) {
+                        format.write(w, name, sid, p);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Grants read from an import request, grouped by item.
+     *
+     * <p>
+     * The whole request is validated before anything is applied, so a request with an unknown
+     * permission or item leaves every matrix untouched.
+     */
+    public static final class Import {
+        private final Map<String,Map<Permission,Set<String>>> grants = new LinkedHashMap<String,Map<Permission,Set<String>>>();
+        private final Map<String,Item> items = new HashMap<String,Item>();
+        private final List<String> errors = new ArrayList<String>();
+        private int count;
+        private int changed;
+
+        /**
+         * Reads and validates all the lines of the request.
+         */
+        public Import read(GrantFormat format, BufferedReader r) throws IOException {
+            Jenkins jenkins = Jenkins.getActiveInstance();
+            int n = 0;
+            String line;
+            while ((line = r.readLine()) != null && errors.size() < MAX_ERRORS) {
+                n++;
+                String[] triple;
+                try {
+                    triple = format.parse(line);
+                } catch (IllegalArgumentException e) {
+                    errors.add("line " + n + ": " + e.getMessage());
+                    continue;
+                }
+                if (triple == null)
+                    continue;
+
+                String name = triple[0];
+                if (!grants.containsKey(name)) {
+                    Item item = name.length() == 0 ? null : jenkins.getItemByFullName(name);
+                    if (name.length() > 0 && item == null) {
+                        errors.add("line " + n + ": no such item '" + name + "'");
+                        continue;
+                    }
+                    if (!AuthorizationContainers.supports(item)) {
+                        errors.add("line " + n + ": " + (item == null ? "the global authorization strategy" : "'" + name + "'") + " does not use an authorization matrix");
+                        continue;
+                    }
+                    items.put(name, item);
+                    grants.put(name, new HashMap<Permission,Set<String>>());
+                }
+
+                Permission p = Permission.fromId(triple[2]);
+                if (p == null) {
+                    errors.add("line " + n + ": no such permission '" + triple[2] + "'");
+                    continue;
+                }
+                Map<Permission,Set<String>> m = grants.get(name);
+                Set<String> sids = m.get(p);
+                if (sids == null)
+                    m.put(p, sids = new HashSet<String>());
+                if (sids.add(triple[1]))
+                    count++;
+            }
+            return this;
+        }
+
+        /**
+         * Problems found by {@link #read}. The import must not be applied unless this is empty.
+         */
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        /**
+         * Grants read, by item full name, the empty string standing for the global matrix.
+         */
+        Map<String,Map<Permission,Set<String>>> getGrants() {
+            return grants;
+        }
+
+        /**
+         * Looks up an item named in the request.
+         *
+         * @return
+         *      null for the global matrix.
+         */
+        @CheckForNull
+        Item getItem(String name) {
+            return items.get(name);
+        }
+
+        /**
+         * Number of distinct grants read.
+         */
+        public int getGrantCount() {
+            return count;
+        }
+
+        /**
+         * Number of matrices the grants are imported into.
+         */
+        public int getMatrixCount() {
+            return grants.size();
+        }
+
+        /**
+         * Number of matrices actually modified by {@link #apply}.
+         */
+        public int getChangedCount() {
+            return changed;
+        }
+
+        /**
+         * Applies the grants. Items whose matrix does not change are left alone;
+         * the others are saved once each by the {@link MatrixSaveQueue}.
+         *
+         * @param replace
+         *      if true, the matrices of the imported items end up with exactly the imported grants;
+         *      otherwise the grants are added to what is already configured.
+         */
+        public void apply(boolean replace) throws IOException {
+            if (!errors.isEmpty())
+                throw new IllegalStateException("Refusing to apply an import with errors");
+
+            synchronized (BulkMatrixTransfer.class) {
+                for (Entry<String,Map<Permission,Set<String>>> e : grants.entrySet()) {
+                    Item item = items.get(e.getKey());
+                    AuthorizationContainer existing = AuthorizationContainers.of(item);
+                    Map<Permission,Set<String>> target = e.getValue();
+                    if (!replace && existing != null) {
+                        target = new HashMap<Permission,Set<String>>(existing.getGrantedPermissions());
+                        for (Entry<Permission,Set<String>> g : e.getValue().entrySet()) {
+                            Set<String> sids = target.get(g.getKey());
+                            sids = sids == null ? new HashSet<String>() : new HashSet<String>(sids);
+                            sids.addAll(g.getValue());
+                            target.put(g.getKey(), sids);
+                        }
+                    }
+                    if (AuthorizationContainers.replaceLater(item, existing != null
+                            ? existing.withGrantedPermissions(target)
+                            : AuthorizationContainers.newMatrix(item, target)))
+                        changed++;
+                }
+            }
+        }
+    }
+}
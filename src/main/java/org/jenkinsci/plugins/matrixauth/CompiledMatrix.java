@@ -0,0 +1,550 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.model.Item;
+import hudson.security.Permission;
+
+import javax.annotation.CheckForNull;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Lookup structures derived from the grants of an {@link AuthorizationContainer}.
+ *
+ * <p>
+ * Matrices are considered immutable once populated, so this is built once, on first use,
+ * and shared by all callers until the matrix is modified again.
+ */
+public final class CompiledMatrix {
+    private static final Map<Permission,Set<String>> NONE = Collections.emptyMap();
+    private static final Map<String,BitSet> NO_SETS = Collections.emptyMap();
+    private static final Map<String,Set<String>> NO_SET_SIDS = Collections.emptyMap();
+
+    /**
+     * Grants that only apply while the permission is {@linkplain Permission#getEnabled() enabled},
+     * as in the global matrix.
+     */
+    private final Map<Permission,Set<String>> grants;
+
+    /**
+     * Grants that apply regardless of {@link Permission#getEnabled()}, as job and folder matrices always did.
+     */
+    private final Map<Permission,Set<String>> itemGrants;
+
+    /**
+     * Permissions granted through {@link PermissionSet}s, by SID. Like {@link #itemGrants},
+     * these apply regardless of {@link Permission#getEnabled()}.
+     */
+    private final Map<String,BitSet> setGrants;
+
+    /**
+     * Grants to {@link SidPatterns}, which like {@link #itemGrants} apply regardless of {@link Permission#getEnabled()}.
+     */
+    private final SidPatterns patterns;
+
+    /**
+     * The {@link PermissionSet#registry()} {@link #setGrants} were resolved against,
+     * or null if this matrix does not reference any set.
+     */
+    @CheckForNull
+    private final Map<String,PermissionSet> registry;
+
+    /**
+     * How the SIDs in this matrix were normalized, and how SIDs looked up in it must be.
+     */
+    private final SidNormalizer normalizer;
+
+    /**
+     * Whether {@link #normalizer} was taken from the current strategy, as for job and folder matrices,
+     * rather than from the matrix itself.
+     */
+    private final boolean strategyNormalizer;
+
+    /**
+     * The job or folder whose matrix this was compiled from, or null for the global matrix.
+     */
+    @CheckForNull
+    private final Item item;
+
+    /**
+     * Normalized SIDs granted each defined {@link PermissionSet}, by set name, to tell which set a
+     * permission in {@link #setGrants} comes from.
+     */
+    private final Map<String,Set<String>> setSids;
+
+    /**
+     * The matrices a flattened chain was built from by {@link #inherit}, so that {@link #explain}
+     * can name the one deciding a check; null unless this is one.
+     */
+    @CheckForNull
+    private final CompiledMatrix child, parent;
+
+    private final Set<String> sids;
+    private final List<String> sortedSids;
+
+    /**
+     * Permissions granted to the {@code anonymous} and {@code authenticated} pseudo-SIDs,
+     * by {@link PermissionIndex}. Nearly every check involves one of them.
+     */
+    private final Bits anonymous, authenticated;
+
+    private CompiledMatrix(Map<Permission,Set<String>> grants, Map<Permission,Set<String>> itemGrants,
+                           Map<String,BitSet> setGrants, SidPatterns patterns, @CheckForNull Map<String,PermissionSet> registry,
+                           SidNormalizer normalizer, boolean strategyNormalizer, @CheckForNull Item item,
+                           Map<String,Set<String>> setSids, @CheckForNull CompiledMatrix child, @CheckForNull CompiledMatrix parent) {
+        this.grants = grants;
+        this.itemGrants = itemGrants;
+        this.setGrants = setGrants;
+        this.patterns = patterns;
+        this.registry = registry;
+        this.normalizer = normalizer;
+        this.strategyNormalizer = strategyNormalizer;
+        this.item = item;
+        this.setSids = setSids;
+        this.child = child;
+        this.parent = parent;
+        this.anonymous = new Bits(grants, itemGrants, setGrants.get(ANONYMOUS), patterns.match(ANONYMOUS), ANONYMOUS);
+        this.authenticated = new Bits(grants, itemGrants, setGrants.get(AUTHENTICATED), patterns.match(AUTHENTICATED), AUTHENTICATED);
+
+        Set<String> sids = new HashSet<String>();
+        for (Set<String> set : grants.values())
+            sids.addAll(set);
+        for (Set<String> set : itemGrants.values())
+            sids.addAll(set);
+        List<String> sorted = new ArrayList<String>(sids);
+        sorted.remove(ANONYMOUS);
+        Collections.sort(sorted);
+        sids.addAll(setGrants.keySet());
+
+        this.sids = Collections.unmodifiableSet(sids);
+        this.sortedSids = Collections.unmodifiableList(sorted);
+    }
+
+    /**
+     * Compiles the global matrix, whose grants only apply to enabled permissions.
+     */
+    public static CompiledMatrix compile(Map<Permission,? extends Set<String>> grantedPermissions) {
+        return compile(grantedPermissions, SidNormalizer.IDENTITY);
+    }
+
+    /**
+     * Compiles the global matrix, comparing SIDs as the given policy says.
+     */
+    public static CompiledMatrix compile(Map<Permission,? extends Set<String>> grantedPermissions, SidNormalizer normalizer) {
+        return new CompiledMatrix(copy(grantedPermissions, normalizer), NONE, NO_SETS, SidPatterns.NONE, null, normalizer, false, null, NO_SET_SIDS, null, null);
+    }
+
+    /**
+     * Compiles a job or folder matrix, whose grants also apply to disabled permissions.
+     */
+    public static CompiledMatrix compileItem(Map<Permission,? extends Set<String>> grantedPermissions) {
+        return compileItem(grantedPermissions, Collections.<String,Set<String>>emptyMap());
+    }
+
+    /**
+     * Compiles a job or folder matrix that also grants {@link PermissionSet}s.
+     *
+     * SIDs are compared as the {@link SidNormalizer#current() current strategy} says.
+     *
+     * @param permissionSetGrants
+     *      SIDs by set name. Sets that are not currently defined grant nothing.
+     */
+    public static CompiledMatrix compileItem(Map<Permission,? extends Set<String>> grantedPermissions,
+                                             Map<String,? extends Set<String>> permissionSetGrants) {
+        return compileItem(null, grantedPermissions, permissionSetGrants);
+    }
+
+    /**
+     * Compiles the matrix of the given job or folder, which {@link #explain} names as granting what it grants.
+     */
+    public static CompiledMatrix compileItem(@CheckForNull Item item, Map<Permission,? extends Set<String>> grantedPermissions,
+                                             Map<String,? extends Set<String>> permissionSetGrants) {
+        return compileItem(item, grantedPermissions, permissionSetGrants, NONE);
+    }
+
+    /**
+     * Compiles the matrix of the given job or folder, including grants to {@link SidPatterns}.
+     *
+     * @param sidPatterns
+     *      patterns by permission.
+     */
+    public static CompiledMatrix compileItem(@CheckForNull Item item, Map<Permission,? extends Set<String>> grantedPermissions,
+                                             Map<String,? extends Set<String>> permissionSetGrants,
+                                             Map<Permission,? extends Set<String>> sidPatterns) {
+        SidNormalizer normalizer = SidNormalizer.current();
+        SidPatterns patterns = SidPatterns.compile(sidPatterns, normalizer);
+        if (permissionSetGrants.isEmpty())
+            return new CompiledMatrix(NONE, copy(grantedPermissions, normalizer), NO_SETS, patterns, null, normalizer, true, item, NO_SET_SIDS, null, null);
+
+        Map<String,PermissionSet> registry = PermissionSet.registry();
+        Map<String,BitSet> setGrants = new HashMap<String,BitSet>();
+        Map<String,Set<String>> setSids = new HashMap<String,Set<String>>();
+        for (Entry<String,? extends Set<String>> e : permissionSetGrants.entrySet()) {
+            PermissionSet set = registry.get(e.getKey());
+            if (set == null)
+                continue;
+            Set<String> sids = new HashSet<String>();
+            setSids.put(set.getName(), sids);
+            for (String sid : e.getValue()) {
+                sid = normalizer.normalize(sid);
+                sids.add(sid);
+                BitSet bits = setGrants.get(sid);
+                if (bits == null) {
+                    setGrants.put(sid, set.getBits()); // shared by every matrix granting only this set to the SID
+                } else {
+                    bits = (BitSet) bits.clone();
+                    bits.or(set.getBits());
+                    setGrants.put(sid, bits);
+                }
+            }
+        }
+        return new CompiledMatrix(NONE, copy(grantedPermissions, normalizer), setGrants.isEmpty() ? NO_SETS : setGrants, patterns,
+                registry, normalizer, true, item, setSids, null, null);
+    }
+
+    /**
+     * Recreates a matrix saved by {@link MatrixSnapshot}, whose SIDs are already normalized.
+     *
+     * @param item
+     *      the job or folder of a matrix compiled by {@link #compileItem(Item, Map, Map)}, or null for the global matrix.
+     */
+    static CompiledMatrix restore(Map<Permission,Set<String>> grants, @CheckForNull Item item, SidNormalizer normalizer) {
+        if (grants.isEmpty())
+            grants = NONE;
+        return item != null ? new CompiledMatrix(NONE, grants, NO_SETS, SidPatterns.NONE, null, normalizer, true, item, NO_SET_SIDS, null, null)
+                : new CompiledMatrix(grants, NONE, NO_SETS, SidPatterns.NONE, null, normalizer, false, null, NO_SET_SIDS, null, null);
+    }
+
+    /**
+     * Whether {@link #restore} can recreate this matrix from {@link #getGrants()}.
+     * Flattened chains and matrices granting {@link PermissionSet}s or to {@link SidPatterns} cannot be.
+     */
+    boolean isRestorable() {
+        return child == null && setGrants.isEmpty() && patterns.isEmpty() && registry == null && (grants.isEmpty() || itemGrants.isEmpty());
+    }
+
+    /**
+     * Whether this is a job or folder matrix.
+     */
+    boolean isItem() {
+        return strategyNormalizer;
+    }
+
+    /**
+     * The job or folder whose matrix this was compiled from, or null for the global matrix and flattened chains.
+     */
+    @CheckForNull
+    public Item getItem() {
+        return item;
+    }
+
+    /**
+     * The normalized grants of a {@linkplain #isRestorable() restorable} matrix.
+     */
+    Map<Permission,Set<String>> getGrants() {
+        return grants.isEmpty() ? itemGrants : grants;
+    }
+
+    /**
+     * Returns false if the {@link PermissionSet}s this matrix references were redefined since it was compiled,
+     * or the SID normalization policy of a job or folder matrix changed.
+     */
+    public boolean isCurrent() {
+        return (registry == null || registry == PermissionSet.registry())
+                && (!strategyNormalizer || normalizer == SidNormalizer.current());
+    }
+
+    private static Map<Permission,Set<String>> copy(Map<Permission,? extends Set<String>> grantedPermissions, SidNormalizer normalizer) {
+        Map<Permission,Set<String>> grants = new HashMap<Permission,Set<String>>();
+        for (Entry<Permission,? extends Set<String>> e : grantedPermissions.entrySet()) {
+            if (e.getValue().isEmpty())
+                continue;
+            Set<String> sids = new HashSet<String>();
+            for (String sid : e.getValue())
+                sids.add(normalizer.normalize(sid));
+            grants.put(e.getKey(), sids);
+        }
+        return grants.isEmpty() ? NONE : grants;
+    }
+
+    /**
+     * Flattens a matrix and the one it inherits from, so that permission checks on the result
+     * cost a single lookup instead of one per level of the inheritance chain.
+     *
+     * <p>
+     * Matrices only ever grant, so the combination is simply the union of both.
+     */
+    public static CompiledMatrix inherit(CompiledMatrix child, CompiledMatrix parent) {
+        if (child.isEmpty())
+            return parent;
+        if (parent.isEmpty())
+            return child;
+        return new CompiledMatrix(union(child.grants, parent.grants), union(child.itemGrants, parent.itemGrants),
+                unionBits(child.setGrants, parent.setGrants), SidPatterns.union(child.patterns, parent.patterns), null, child.normalizer, false, null, NO_SET_SIDS, child, parent);
+    }
+
+    private boolean isEmpty() {
+        return grants.isEmpty() && itemGrants.isEmpty() && setGrants.isEmpty() && patterns.isEmpty();
+    }
+
+    private static Map<String,BitSet> unionBits(Map<String,BitSet> child, Map<String,BitSet> parent) {
+        if (child.isEmpty())
+            return parent;
+        if (parent.isEmpty())
+            return child;
+        Map<String,BitSet> bits = new HashMap<String,BitSet>(parent);
+        for (Entry<String,BitSet> e : child.entrySet()) {
+            BitSet b = bits.get(e.getKey());
+            if (b == null) {
+                bits.put(e.getKey(), e.getValue());
+            } else {
+                b = (BitSet) b.clone();
+                b.or(e.getValue());
+                bits.put(e.getKey(), b);
+            }
+        }
+        return bits;
+    }
+
+    private static Map<Permission,Set<String>> union(Map<Permission,Set<String>> child, Map<Permission,Set<String>> parent) {
+        if (child.isEmpty())
+            return parent;
+        if (parent.isEmpty())
+            return child;
+        Map<Permission,Set<String>> grants = new HashMap<Permission,Set<String>>(parent);
+        for (Entry<Permission,Set<String>> e : child.entrySet()) {
+            Set<String> set = grants.get(e.getKey());
+            if (set == null) {
+                grants.put(e.getKey(), e.getValue());
+            } else if (!set.containsAll(e.getValue())) {
+                set = new HashSet<String>(set);
+                set.addAll(e.getValue());
+                grants.put(e.getKey(), set);
+            }
+        }
+        return grants;
+    }
+
+    /**
+     * Same as {@code hasPermission("anonymous", p)}, without SID lookups.
+     * Permissions granted to anonymous are granted to everyone.
+     */
+    public boolean isGrantedToAnonymous(Permission p) {
+        return anonymous.isSet(p);
+    }
+
+    /**
+     * Same as {@code hasPermission("authenticated", p)}, without SID lookups.
+     */
+    public boolean isGrantedToAuthenticated(Permission p) {
+        return authenticated.isSet(p);
+    }
+
+    /**
+     * How SIDs must be {@linkplain SidNormalizer#normalize normalized} before looking them up in this matrix.
+     */
+    public SidNormalizer getSidNormalizer() {
+        return normalizer;
+    }
+
+    /**
+     * Checks if the given SID has the given permission, directly or through {@link Permission#impliedBy}.
+     *
+     * @param sid
+     *      already {@linkplain #getSidNormalizer() normalized}.
+     */
+    public boolean hasPermission(String sid, Permission p) {
+        BitSet fromSets = setGrants.get(sid);
+        for (Permission q = p; q != null; q = q.impliedBy) {
+            Set<String> set = grants.get(q);
+            if (set != null && set.contains(sid) && q.getEnabled())
+                return true;
+            set = itemGrants.get(q);
+            if (set != null && set.contains(sid))
+                return true;
+            if (fromSets != null && fromSets.get(PermissionIndex.of(q)))
+                return true;
+        }
+        if (patterns.isEmpty())
+            return false;
+        BitSet fromPatterns = patterns.match(sid);
+        if (fromPatterns == null)
+            return false;
+        for (Permission q = p; q != null; q = q.impliedBy) {
+            if (fromPatterns.get(PermissionIndex.of(q)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks if the permission itself is granted to the SID in this matrix, not through {@link Permission#impliedBy},
+     * a {@link PermissionSet} or a {@link SidPatterns pattern}.
+     *
+     * @param sid
+     *      already {@linkplain #getSidNormalizer() normalized}.
+     */
+    public boolean hasExplicitPermission(String sid, Permission p) {
+        Set<String> set = grants.get(p);
+        if (set != null && set.contains(sid))
+            return true;
+        set = itemGrants.get(p);
+        return set != null && set.contains(sid);
+    }
+
+    /**
+     * Finds the grant giving the SID the permission, directly or through {@link Permission#impliedBy}.
+     * In a flattened chain, the matrix closest to the item is considered first; in each matrix,
+     * direct grants come before grants through {@link PermissionSet}s, and those before grants to
+     * {@link SidPatterns}, which are reported with the pattern as the SID.
+     *
+     * @param sid
+     *      already {@linkplain #getSidNormalizer() normalized}.
+     * @return
+     *      null if the SID does not have the permission.
+     */
+    @CheckForNull
+    public MatrixGrant explain(String sid, Permission p) {
+        if (child != null && parent != null) {
+            MatrixGrant g = child.explain(sid, p);
+            return g != null ? g : parent.explain(sid, p);
+        }
+        String name = item == null ? null : item.getFullName();
+        for (Permission q = p; q != null; q = q.impliedBy) {
+            Set<String> set = grants.get(q);
+            if (set != null && set.contains(sid) && q.getEnabled())
+                return new MatrixGrant(name, sid, q, null);
+            set = itemGrants.get(q);
+            if (set != null && set.contains(sid))
+                return new MatrixGrant(name, sid, q, null);
+        }
+        if (registry != null && setGrants.containsKey(sid)) {
+            for (Entry<String,Set<String>> e : setSids.entrySet()) {
+                PermissionSet set = registry.get(e.getKey());
+                if (!e.getValue().contains(sid))
+                    continue;
+                for (Permission q = p; q != null; q = q.impliedBy) {
+                    if (set.getPermissions().contains(q))
+                        return new MatrixGrant(name, sid, q, set.getName());
+                }
+            }
+        }
+        if (!patterns.isEmpty()) {
+            for (Permission q = p; q != null; q = q.impliedBy) {
+                String pattern = patterns.find(sid, q);
+                if (pattern != null)
+                    return new MatrixGrant(name, pattern, q, null);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Estimates the heap taken by the structures of this matrix that are not in {@code seen} yet, and adds them to it.
+     * Structures shared with the matrices a flattened chain was built from are only counted once.
+     *
+     * @see MatrixFootprint
+     */
+    long footprint(Map<Object,Boolean> seen) {
+        if (!MatrixFootprint.first(this, seen))
+            return 0;
+        long bytes = MatrixFootprint.COMPILED_MATRIX
+                + MatrixFootprint.grants(grants, seen) + MatrixFootprint.grants(itemGrants, seen)
+                + MatrixFootprint.grants(setSids, seen)
+                + MatrixFootprint.sids(sids, seen) + MatrixFootprint.list(sortedSids, seen)
+                + anonymous.footprint(seen) + authenticated.footprint(seen);
+        if (!setGrants.isEmpty() && MatrixFootprint.first(setGrants, seen)) {
+            bytes += MatrixFootprint.hashMap(setGrants.size());
+            for (Entry<String,BitSet> e : setGrants.entrySet())
+                bytes += MatrixFootprint.string(e.getKey(), seen) + MatrixFootprint.bitSet(e.getValue(), seen);
+        }
+        return bytes;
+    }
+
+    /**
+     * All SIDs that have at least one permission, including through {@link PermissionSet}s.
+     */
+    public Set<String> getSids() {
+        return sids;
+    }
+
+    /**
+     * SIDs granted permissions directly, minus "anonymous", sorted.
+     */
+    public List<String> getAllSIDs() {
+        return sortedSids;
+    }
+
+    /**
+     * Permissions of a single SID, by {@link PermissionIndex}.
+     */
+    private static final class Bits {
+        private final BitSet bits, itemBits;
+
+        Bits(Map<Permission,Set<String>> grants, Map<Permission,Set<String>> itemGrants,
+             @CheckForNull BitSet fromSets, @CheckForNull BitSet fromPatterns, String sid) {
+            this.bits = of(grants, sid);
+            this.itemBits = of(itemGrants, sid);
+            if (fromSets != null)
+                itemBits.or(fromSets);
+            if (fromPatterns != null)
+                itemBits.or(fromPatterns);
+        }
+
+        private static BitSet of(Map<Permission,Set<String>> grants, String sid) {
+            BitSet bits = new BitSet();
+            for (Entry<Permission,Set<String>> e : grants.entrySet()) {
+                if (e.getValue().contains(sid))
+                    bits.set(PermissionIndex.of(e.getKey()));
+            }
+            return bits;
+        }
+
+        long footprint(Map<Object,Boolean> seen) {
+            return MatrixFootprint.BITS + MatrixFootprint.bitSet(bits, seen) + MatrixFootprint.bitSet(itemBits, seen);
+        }
+
+        boolean isSet(Permission p) {
+            if (bits.isEmpty() && itemBits.isEmpty())
+                return false;
+            for (; p != null; p = p.impliedBy) {
+                int i = PermissionIndex.of(p);
+                if (bits.get(i) && p.getEnabled() || itemBits.get(i))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    private static final String ANONYMOUS = "anonymous";
+    private static final String AUTHENTICATED = "authenticated";
+}
@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.Util;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.security.Permission;
+import hudson.security.PermissionGroup;
+import hudson.security.PermissionScope;
+import jenkins.model.Jenkins;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.GrantedAuthority;
+
+import javax.annotation.CheckForNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Computes the permissions a user has on a job, or on a folder and everything in it, for external systems
+ * deciding what to show that user.
+ *
+ * <p>
+ * Items sharing a matrix are decided once per permission, see {@link BatchAuthorization}.
+ * {@link #getETag} identifies the result for as long as no matrix changes, so that callers polling
+ * for it can be told it is unchanged without it being computed again.
+ */
+public final class EffectivePermissions {
+    /**
+     * Distinguishes the entity tags of this run from those of earlier ones, since the
+     * {@linkplain MatrixChangeTracker#getGeneration() generation} starts over on every start
+     * and the configurations may have been changed on disk in between.
+     */
+    private static final String BOOT_ID = UUID.randomUUID().toString();
+
+    private final List<Permission> permissions;
+    private final BatchAuthorization[] batches;
+
+    public EffectivePermissions(Authentication authentication) {
+        this.permissions = getItemPermissions();
+        this.batches = new BatchAuthorization[permissions.size()];
+        for (int i = 0; i < batches.length; i++)
+            batches[i] = new BatchAuthorization(authentication, permissions.get(i));
+    }
+
+    /**
+     * The permissions reported: those that can be granted on jobs and folders and are enabled.
+     */
+    public static List<Permission> getItemPermissions() {
+        List<Permission> r = new ArrayList<Permission>();
+        for (PermissionGroup g : PermissionGroup.getAll()) {
+            for (Permission p : g.getPermissions()) {
+                if (p.getEnabled() && p.isContainedBy(PermissionScope.ITEM))
+                    r.add(p);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Returns the permissions of {@link #getItemPermissions()} the user has on the item.
+     */
+    public List<Permission> of(Item item) {
+        List<Permission> r = new ArrayList<Permission>();
+        for (int i = 0; i < batches.length; i++) {
+            if (batches[i].hasPermission(item))
+                r.add(permissions.get(i));
+        }
+        return r;
+    }
+
+    /**
+     * Returns the permissions the user has on the item and, if it is a folder, on everything in it,
+     * by full name. Items the user has none of the permissions on are left out.
+     *
+     * @param item
+     *      null for every item of the instance.
+     */
+    public Map<String,List<Permission>> ofSubtree(@CheckForNull Item item) {
+        Map<String,List<Permission>> r = new TreeMap<String,List<Permission>>();
+        if (item != null)
+            put(r, item);
+        if (item == null || item instanceof ItemGroup) {
+            String prefix = item == null ? "" : item.getFullName() + '/';
+            for (Item i : Jenkins.getActiveInstance().getAllItems(Item.class)) {
+                if (i.getFullName().startsWith(prefix))
+                    put(r, i);
+            }
+        }
+        return r;
+    }
+
+    private void put(Map<String,List<Permission>> r, Item item) {
+        List<Permission> granted = of(item);
+        if (!granted.isEmpty())
+            r.put(item.getFullName(), granted);
+    }
+
+    /**
+     * Returns the entity tag of what {@link #ofSubtree} returns for the user and item.
+     * It combines the {@linkplain MatrixChangeTracker#getGeneration() matrix generation}
+     * with what it does not cover: the current run of Jenkins, the authorization strategy in effect,
+     * whether saved or not, and the user's authorities.
+     *
+     * @param item
+     *      full name of the item, or empty for the whole instance.
+     */
+    public static String getETag(Authentication authentication, String item) {
+        StringBuilder b = new StringBuilder();
+        b.append(BOOT_ID).append('\n');
+        b.append(item).append('\n');
+        Jenkins jenkins = Jenkins.getActiveInstance();
+        b.append(jenkins.getAuthorizationStrategy().getClass().getName()).append('\n');
+        AuthorizationContainer global = AuthorizationContainers.of(null);
+        if (global != null)
+            b.append(global.getMatrixVersion());
+        b.append('\n').append(authentication.getName()).append('\n');
+        List<String> authorities = new ArrayList<String>();
+        for (GrantedAuthority ga : authentication.getAuthorities())
+            authorities.add(ga.getAuthority());
+        Collections.sort(authorities);
+        for (String a : authorities)
+            b.append(a).append('\n');
+        return '"' + Long.toString(MatrixChangeTracker.getGeneration()) + '-' + Util.getDigestOf(b.toString()) + '"';
+    }
+}
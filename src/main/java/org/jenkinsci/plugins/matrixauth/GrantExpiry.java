@@ -0,0 +1,280 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.model.Descriptor;
+import hudson.model.Item;
+import hudson.security.ACL;
+import hudson.security.Permission;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import net.sf.json.JSONObject;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Removes grants from the matrices in effect when they expire.
+ *
+ * <p>
+ * Matrices list their expiring grants in {@link AuthorizationContainer#getGrantExpiries()}, by
+ * <tt>PERMISSIONID:sid</tt>. Permission checks never look at these times: once a matrix is put in
+ * effect, a task is scheduled for its earliest expiry, which replaces the matrix by one without the
+ * grants that lapsed, and is then rescheduled for the next one.
+ *
+ * <p>
+ * Expiry times are persisted as an {@code expires} attribute of the {@code <permission>} element,
+ * which older versions ignore, keeping the grant.
+ */
+public final class GrantExpiry {
+    private GrantExpiry() {}
+
+    private static final Logger LOGGER = Logger.getLogger(GrantExpiry.class.getName());
+
+    /**
+     * Key of {@link #tasks} for the global matrix.
+     */
+    private static final Object GLOBAL = new Object();
+
+    @GuardedBy("tasks")
+    private static final Map<Object,ScheduledFuture<?>> tasks = new WeakHashMap<Object,ScheduledFuture<?>>();
+
+    public static String key(Permission p, String sid) {
+        return p.getId() + ':' + sid;
+    }
+
+    /**
+     * Formats a time as persisted and shown on the configuration page, as UTC like <tt>2016-05-31T18:00:00Z</tt>.
+     */
+    public static String format(long time) {
+        return utc("yyyy-MM-dd'T'HH:mm:ss'Z'").format(new Date(time));
+    }
+
+    /**
+     * Parses {@link #format(long)}, or just a date, meaning midnight UTC.
+     */
+    public static long parse(String time) {
+        String t = time.trim();
+        try {
+            return utc(t.length() == 10 ? "yyyy-MM-dd" : "yyyy-MM-dd'T'HH:mm:ss'Z'").parse(t).getTime();
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Not a time like 2016-05-31T18:00:00Z: " + time, e);
+        }
+    }
+
+    private static SimpleDateFormat utc(String pattern) {
+        SimpleDateFormat f = new SimpleDateFormat(pattern);
+        f.setTimeZone(TimeZone.getTimeZone("UTC"));
+        f.setLenient(false);
+        return f;
+    }
+
+    /**
+     * Parses expiring grants as edited on the configuration page: one per line,
+     * as the expiry time followed by whitespace and <tt>PERMISSIONID:sid</tt>.
+     *
+     * @return
+     *      expiry times by <tt>PERMISSIONID:sid</tt>, sorted.
+     * @throws IllegalArgumentException
+     *      if a line is malformed or names an unknown permission.
+     */
+    public static Map<String,Long> parseLines(String text) {
+        Map<String,Long> expiries = new TreeMap<String,Long>();
+        BufferedReader r = new BufferedReader(new StringReader(text));
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0)
+                    continue;
+                String[] parts = line.split("\\s+", 2);
+                int idx = parts.length < 2 ? -1 : parts[1].indexOf(':');
+                if (idx <= 0)
+                    throw new IllegalArgumentException("Expected time and PERMISSIONID:sid: " + line);
+                if (Permission.fromId(parts[1].substring(0, idx)) == null)
+                    throw new IllegalArgumentException("No such permission: " + parts[1].substring(0, idx));
+                expiries.put(parts[1], parse(parts[0]));
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e); // reading a string
+        }
+        return expiries;
+    }
+
+    /**
+     * Parses the expiring grants submitted on a configuration page, leaving out those that already expired.
+     */
+    public static Map<String,Long> fromForm(JSONObject formData) throws Descriptor.FormException {
+        if (!formData.has("grantExpiries"))
+            return Collections.emptyMap();
+        Map<String,Long> expiries;
+        try {
+            expiries = parseLines(formData.getString("grantExpiries"));
+        } catch (IllegalArgumentException e) {
+            throw new Descriptor.FormException(e.getMessage(), "grantExpiries");
+        }
+        long now = System.currentTimeMillis();
+        for (Iterator<Long> it = expiries.values().iterator(); it.hasNext(); ) {
+            if (it.next() <= now)
+                it.remove();
+        }
+        return expiries;
+    }
+
+    /**
+     * Formats expiring grants as {@link #parseLines(String)} reads them.
+     */
+    public static String formatLines(Map<String,Long> expiries) {
+        StringBuilder b = new StringBuilder();
+        for (Entry<String,Long> e : new TreeMap<String,Long>(expiries).entrySet())
+            b.append(format(e.getValue())).append(' ').append(e.getKey()).append('\n');
+        return b.toString();
+    }
+
+    /**
+     * Returns the permission of a <tt>PERMISSIONID:sid</tt> key, or null if it is unknown.
+     */
+    @CheckForNull
+    public static Permission permissionOf(String key) {
+        int idx = key.indexOf(':');
+        return idx < 0 ? null : Permission.fromId(key.substring(0, idx));
+    }
+
+    /**
+     * Returns the SID of a <tt>PERMISSIONID:sid</tt> key.
+     */
+    public static String sidOf(String key) {
+        return key.substring(key.indexOf(':') + 1);
+    }
+
+    /**
+     * Keeps the expiries of the grants that are in the given matrix.
+     */
+    public static Map<String,Long> retain(Map<String,Long> expiries, Map<Permission,? extends Set<String>> grantedPermissions) {
+        Map<String,Long> result = new TreeMap<String,Long>();
+        for (Entry<String,Long> e : expiries.entrySet()) {
+            Set<String> sids = grantedPermissions.get(permissionOf(e.getKey()));
+            if (sids != null && sids.contains(sidOf(e.getKey())))
+                result.put(e.getKey(), e.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Schedules the removal of the earliest expiring grant of the matrix now in effect for an item,
+     * replacing any removal scheduled for its previous matrix.
+     *
+     * @param item
+     *      null for the global matrix.
+     * @param matrix
+     *      null if the item has no matrix.
+     */
+    static void track(@CheckForNull final Item item, @CheckForNull AuthorizationContainer matrix) {
+        Long next = null;
+        if (matrix != null) {
+            for (Long t : matrix.getGrantExpiries().values()) {
+                if (next == null || t < next)
+                    next = t;
+            }
+        }
+        Object key = item == null ? GLOBAL : item;
+        synchronized (tasks) {
+            ScheduledFuture<?> previous = next == null ? tasks.remove(key) : tasks.get(key);
+            if (previous != null)
+                previous.cancel(false);
+            if (next == null)
+                return;
+            long delay = Math.max(0, next - System.currentTimeMillis());
+            tasks.put(key, Timer.get().schedule(new Runnable() {
+                public void run() {
+                    try {
+                        expire(item);
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Failed to remove expired grants from " + describe(item), e);
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * Replaces the matrix of the item by one without the grants that expired.
+     */
+    static void expire(@CheckForNull Item item) throws IOException {
+        SecurityContext orig = ACL.impersonate(ACL.SYSTEM);
+        try {
+            if (item != null && Jenkins.getActiveInstance().getItemByFullName(item.getFullName()) != item)
+                return; // deleted
+            AuthorizationContainer matrix = AuthorizationContainers.of(item);
+            if (matrix == null)
+                return;
+            long now = System.currentTimeMillis();
+            Map<Permission,Set<String>> grants = new HashMap<Permission,Set<String>>();
+            for (Entry<Permission,Set<String>> e : matrix.getGrantedPermissions().entrySet())
+                grants.put(e.getKey(), new HashSet<String>(e.getValue()));
+            int n = 0;
+            for (Entry<String,Long> e : matrix.getGrantExpiries().entrySet()) {
+                if (e.getValue() > now)
+                    continue;
+                Set<String> sids = grants.get(permissionOf(e.getKey()));
+                if (sids != null && sids.remove(sidOf(e.getKey())))
+                    n++;
+            }
+            if (n == 0) {
+                track(item, matrix); // woken up early
+                return;
+            }
+            LOGGER.log(Level.INFO, "Removing {0} expired grants from {1}", new Object[] {n, describe(item)});
+            AuthorizationContainers.replaceLater(item, matrix.withGrantedPermissions(grants));
+        } finally {
+            SecurityContextHolder.setContext(orig);
+        }
+    }
+
+    private static String describe(@CheckForNull Item item) {
+        return item == null ? "the global matrix" : item.getFullName();
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import net.sf.json.util.JSONUtils;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Line-oriented formats for streaming (item, SID, permission) triples,
+ * one granted permission per line.
+ *
+ * <p>
+ * The item is the full name of a job or folder, or the empty string for the global matrix.
+ * The permission is given by its {@link hudson.security.Permission#getId() ID}.
+ */
+public enum GrantFormat {
+    /**
+     * Comma separated values with a header line; fields containing commas, quotes
+     * or surrounding blanks are quoted.
+     */
+    CSV("text/csv") {
+        @Override
+        public void writeHeader(Writer w) throws IOException {
+            w.write(HEADER);
+            w.write('\n');
+        }
+
+        @Override
+        public void write(Writer w, String item, String sid, String permission) throws IOException {
+            field(w, item);
+            w.write(',');
+            field(w, sid);
+            w.write(',');
+            field(w, permission);
+            w.write('\n');
+        }
+
+        @Override
+        public void writeChangeHeader(Writer w) throws IOException {
+            w.write("change,");
+            writeHeader(w);
+        }
+
+        @Override
+        public void writeChange(Writer w, boolean added, String item, String sid, String permission) throws IOException {
+            w.write(added ? "+," : "-,");
+            write(w, item, sid, permission);
+        }
+
+        private void field(Writer w, String value) throws IOException {
+            boolean quote = value.length() > 0 && (value.trim().length() != value.length()
+                    || value.indexOf(',') >= 0 || value.indexOf('"') >= 0);
+            if (quote) {
+                w.write('"');
+                w.write(value.replace("\"", "\"\""));
+                w.write('"');
+            } else {
+                w.write(value);
+            }
+        }
+
+        @Override
+        public String[] parse(String line) {
+            if (line.trim().length() == 0 || line.equals(HEADER))
+                return null;
+
+            List<String> fields = new ArrayList<String>(3);
+            StringBuilder b = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (quoted) {
+                    if (c != '"') {
+                        b.append(c);
+                    } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        b.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(b.toString());
+                    b.setLength(0);
+                } else {
+                    b.append(c);
+                }
+            }
+            if (quoted)
+                throw new IllegalArgumentException("unterminated quote");
+            fields.add(b.toString());
+            if (fields.size() != 3)
+                throw new IllegalArgumentException("expected 3 fields but found " + fields.size());
+            return fields.toArray(new String[3]);
+        }
+    },
+
+    /**
+     * One JSON object per line, with {@code item}, {@code sid} and {@code permission} properties.
+     */
+    NDJSON("application/x-ndjson") {
+        @Override
+        public void writeHeader(Writer w) {
+            // none
+        }
+
+        @Override
+        public void write(Writer w, String item, String sid, String permission) throws IOException {
+            w.write("{\"item\":");
+            w.write(JSONUtils.quote(item));
+            w.write(",\"sid\":");
+            w.write(JSONUtils.quote(sid));
+            w.write(",\"permission\":");
+            w.write(JSONUtils.quote(permission));
+            w.write("}\n");
+        }
+
+        @Override
+        public void writeChangeHeader(Writer w) {
+            // none
+        }
+
+        @Override
+        public void writeChange(Writer w, boolean added, String item, String sid, String permission) throws IOException {
+            w.write(added ? "{\"change\":\"+\"," : "{\"change\":\"-\",");
+            w.write("\"item\":");
+            w.write(JSONUtils.quote(item));
+            w.write(",\"sid\":");
+            w.write(JSONUtils.quote(sid));
+            w.write(",\"permission\":");
+            w.write(JSONUtils.quote(permission));
+            w.write("}\n");
+        }
+
+        @Override
+        public String[] parse(String line) {
+            if (line.trim().length() == 0)
+                return null;
+            try {
+                JSONObject o = JSONObject.fromObject(line);
+                if (!o.has("sid") || !o.has("permission"))
+                    throw new IllegalArgumentException("expected sid and permission properties");
+                return new String[] {o.optString("item", ""), o.getString("sid"), o.getString("permission")};
+            } catch (JSONException e) {
+                throw new IllegalArgumentException(e.getMessage(), e);
+            }
+        }
+    };
+
+    private static final String HEADER = "item,sid,permission";
+
+    private final String contentType;
+
+    GrantFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public abstract void writeHeader(Writer w) throws IOException;
+
+    public abstract void write(Writer w, String item, String sid, String permission) throws IOException;
+
+    public abstract void writeChangeHeader(Writer w) throws IOException;
+
+    /**
+     * Writes a grant added or removed by a {@link MatrixDiff}, marked with a leading
+     * {@code change} field of {@code +} or {@code -}.
+     */
+    public abstract void writeChange(Writer w, boolean added, String item, String sid, String permission) throws IOException;
+
+    /**
+     * Parses one line.
+     *
+     * @return
+     *      the item, SID and permission ID, or null if the line carries no grant.
+     * @throws IllegalArgumentException
+     *      if the line is malformed.
+     */
+    @CheckForNull
+    public abstract String[] parse(String line);
+
+    /**
+     * Looks up a format by its (case insensitive) name.
+     *
+     * @param name
+     *      null selects {@link #CSV}.
+     */
+    public static GrantFormat of(@CheckForNull String name) {
+        if (name == null || name.length() == 0)
+            return CSV;
+        try {
+            return valueOf(name.toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unsupported format: " + name);
+        }
+    }
+}
@@ -0,0 +1,475 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Item;
+import hudson.model.PeriodicWork;
+import hudson.model.listeners.ItemListener;
+import hudson.security.ACL;
+import hudson.security.Permission;
+import jenkins.model.Jenkins;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Optionally counts which matrix grants actually decide permission checks, so that grants
+ * nobody has needed for a long time can be found and removed.
+ *
+ * <p>
+ * Recording is off by default. When on, every successful check by a {@link MatrixACL} is
+ * attributed to the grant {@link MatrixACL#explain} names, and that grant's counter is
+ * incremented. Grants through {@link PermissionSet}s are not counted. Counters are kept in
+ * memory and written to {@code JENKINS_HOME} every few minutes.
+ */
+public final class GrantUsage {
+    private static final Logger LOGGER = Logger.getLogger(GrantUsage.class.getName());
+
+    /**
+     * Granularity of the recorded last use, so that busy grants do not write it on every check.
+     */
+    private static final long RESOLUTION = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Grants of this permission are never reported as unused, to avoid locking out administrators.
+     */
+    private static final Permission NEVER_PRUNED = Jenkins.ADMINISTER;
+
+    private static volatile GrantUsage current;
+
+    private static volatile boolean recording;
+
+    private static volatile boolean dirty;
+
+    private boolean enabled;
+
+    /**
+     * When recording was last turned on.
+     */
+    private long since;
+
+    /**
+     * Counts and times of last use by {@link #key}, only filled in when saving.
+     */
+    private Map<String,Long> counts;
+    private Map<String,Long> lastUsed;
+
+    private transient ConcurrentHashMap<MatrixGrant,Counter> counters = new ConcurrentHashMap<MatrixGrant,Counter>();
+
+    private GrantUsage() {}
+
+    private Object readResolve() {
+        counters = new ConcurrentHashMap<MatrixGrant,Counter>();
+        if (counts != null) {
+            for (Entry<String,Long> e : counts.entrySet()) {
+                MatrixGrant g = parseKey(e.getKey());
+                Long t = lastUsed == null ? null : lastUsed.get(e.getKey());
+                if (g != null)
+                    counters.put(g, new Counter(e.getValue(), t == null ? 0 : t));
+            }
+        }
+        counts = lastUsed = null;
+        return this;
+    }
+
+    /**
+     * Whether checks are currently being counted.
+     */
+    public static boolean isEnabled() {
+        return recording;
+    }
+
+    /**
+     * Returns the usage recorded in this Jenkins instance.
+     */
+    public static GrantUsage get() {
+        GrantUsage u = current;
+        return u != null ? u : load();
+    }
+
+    @Initializer(after = InitMilestone.JOB_LOADED, fatal = false)
+    public static void init() {
+        load();
+    }
+
+    private static synchronized GrantUsage load() {
+        GrantUsage u = null;
+        XmlFile f = getConfigFile();
+        if (f.exists()) {
+            try {
+                u = (GrantUsage) f.read();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load " + f, e);
+            }
+        }
+        if (u == null)
+            u = new GrantUsage();
+        current = u;
+        recording = u.enabled;
+        dirty = false;
+        return u;
+    }
+
+    private static XmlFile getConfigFile() {
+        return new XmlFile(Jenkins.XSTREAM2, new File(Jenkins.getActiveInstance().getRootDir(), GrantUsage.class.getName() + ".xml"));
+    }
+
+    /**
+     * Counts the grant that let a check of {@code p} on {@code acl} pass.
+     *
+     * @param sid
+     *      the normalized SID the check was granted to, or the empty string if it passed without any grant.
+     */
+    static void record(MatrixACL acl, String sid, Permission p) {
+        GrantUsage u = current;
+        if (u == null || sid.length() == 0)
+            return;
+        MatrixGrant g = acl.getCompiledMatrix().explain(sid, p);
+        if (g == null || g.getPermissionSet() != null)
+            return;
+        Counter c = u.counters.get(g);
+        if (c == null) {
+            Counter fresh = new Counter(0, 0);
+            c = u.counters.putIfAbsent(g, fresh);
+            if (c == null)
+                c = fresh;
+        }
+        c.hit(System.currentTimeMillis());
+    }
+
+    public boolean isRecording() {
+        return enabled;
+    }
+
+    /**
+     * When recording was last turned on, or 0 if it never was.
+     */
+    public long getSince() {
+        return since;
+    }
+
+    /**
+     * Turns recording on or off.
+     * Turning it on restarts the period grants need to be unused for to be reported.
+     */
+    public synchronized void setRecording(boolean enabled) throws IOException {
+        if (enabled && !this.enabled)
+            since = System.currentTimeMillis();
+        this.enabled = enabled;
+        recording = enabled;
+        save();
+    }
+
+    /**
+     * Lists the direct grants that did not decide any check for the given number of days.
+     *
+     * @return
+     *      empty unless recording has been on for at least that long.
+     */
+    public List<Usage> getUnused(int days) throws IOException {
+        return getUnusedSince(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days));
+    }
+
+    List<Usage> getUnusedSince(final long cutoff) throws IOException {
+        final List<Usage> result = new ArrayList<Usage>();
+        if (!enabled || since > cutoff)
+            return result;
+        SecurityContext orig = ACL.impersonate(ACL.SYSTEM);
+        try {
+            AuthorizationContainers.visitAll(new AuthorizationContainers.Visitor() {
+                public void visit(Item item, AuthorizationContainer matrix) {
+                    String name = item == null ? null : item.getFullName();
+                    for (Entry<Permission,Set<String>> e : matrix.getGrantedPermissions().entrySet()) {
+                        if (e.getKey() == NEVER_PRUNED)
+                            continue;
+                        for (String sid : e.getValue()) {
+                            MatrixGrant g = new MatrixGrant(name, sid, e.getKey(), null);
+                            Counter c = counters.get(g);
+                            if (c == null)
+                                result.add(new Usage(g, 0, 0));
+                            else if (c.lastUsed < cutoff)
+                                result.add(new Usage(g, c.sum(), c.lastUsed));
+                        }
+                    }
+                }
+            });
+        } finally {
+            SecurityContextHolder.setContext(orig);
+        }
+        return result;
+    }
+
+    /**
+     * Removes the grants {@link #getUnused} reports for the given number of days.
+     *
+     * @return
+     *      the number of grants removed.
+     */
+    public int prune(int days) throws IOException {
+        return pruneUnusedSince(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days));
+    }
+
+    int pruneUnusedSince(long cutoff) throws IOException {
+        Map<String,List<MatrixGrant>> byItem = new LinkedHashMap<String,List<MatrixGrant>>();
+        for (Usage u : getUnusedSince(cutoff)) {
+            String name = u.getGrant().getItemFullName();
+            List<MatrixGrant> grants = byItem.get(name);
+            if (grants == null)
+                byItem.put(name, grants = new ArrayList<MatrixGrant>());
+            grants.add(u.getGrant());
+        }
+        int removed = 0;
+        SecurityContext orig = ACL.impersonate(ACL.SYSTEM);
+        try {
+            for (Entry<String,List<MatrixGrant>> e : byItem.entrySet()) {
+                Item item = e.getKey() == null ? null : Jenkins.getActiveInstance().getItemByFullName(e.getKey());
+                if (item == null && e.getKey() != null)
+                    continue;
+                AuthorizationContainer matrix = AuthorizationContainers.of(item);
+                if (matrix == null)
+                    continue;
+                Map<Permission,Set<String>> grants = new HashMap<Permission,Set<String>>();
+                for (Entry<Permission,Set<String>> g : matrix.getGrantedPermissions().entrySet())
+                    grants.put(g.getKey(), new HashSet<String>(g.getValue()));
+                int n = 0;
+                for (MatrixGrant g : e.getValue()) {
+                    Set<String> sids = grants.get(g.getPermission());
+                    if (sids != null && sids.remove(g.getSid()))
+                        n++;
+                }
+                if (n > 0 && AuthorizationContainers.replaceLater(item, matrix.withGrantedPermissions(grants))) {
+                    LOGGER.log(Level.INFO, "Removed {0} unused grants from {1}", new Object[] {n, e.getKey() == null ? "the global matrix" : e.getKey()});
+                    removed += n;
+                }
+            }
+        } finally {
+            SecurityContextHolder.setContext(orig);
+        }
+        return removed;
+    }
+
+    /**
+     * Writes the counters to disk.
+     */
+    public synchronized void save() throws IOException {
+        Map<String,Long> counts = new TreeMap<String,Long>();
+        Map<String,Long> lastUsed = new TreeMap<String,Long>();
+        for (Entry<MatrixGrant,Counter> e : counters.entrySet()) {
+            String key = key(e.getKey());
+            counts.put(key, e.getValue().sum());
+            lastUsed.put(key, e.getValue().lastUsed);
+        }
+        dirty = false;
+        this.counts = counts;
+        this.lastUsed = lastUsed;
+        try {
+            getConfigFile().write(this);
+        } finally {
+            this.counts = this.lastUsed = null;
+        }
+    }
+
+    private static String key(MatrixGrant g) {
+        return (g.getItemFullName() == null ? "" : g.getItemFullName()) + '\t' + g.getSid() + '\t' + g.getPermission().getId();
+    }
+
+    @CheckForNull
+    private static MatrixGrant parseKey(String key) {
+        String[] parts = key.split("\t", 3);
+        if (parts.length != 3)
+            return null;
+        Permission p = Permission.fromId(parts[2]);
+        if (p == null)
+            return null;
+        return new MatrixGrant(parts[0].length() == 0 ? null : parts[0], parts[1], p, null);
+    }
+
+    /**
+     * Usage of one grant.
+     */
+    public static final class Usage {
+        private final MatrixGrant grant;
+        private final long count;
+        private final long lastUsed;
+
+        Usage(MatrixGrant grant, long count, long lastUsed) {
+            this.grant = grant;
+            this.count = count;
+            this.lastUsed = lastUsed;
+        }
+
+        public MatrixGrant getGrant() {
+            return grant;
+        }
+
+        /**
+         * How many checks the grant decided since recording started.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * When the grant last decided a check, to the minute, or 0 if it never did.
+         */
+        public long getLastUsed() {
+            return lastUsed;
+        }
+    }
+
+    /**
+     * Check counter of one grant, spread over several padded slots so that concurrent
+     * checks on different threads do not contend on one value.
+     */
+    static final class Counter {
+        private static final int STRIPES = 8;
+        /**
+         * Slots between two stripes, to keep them on separate cache lines.
+         */
+        private static final int PADDING = 8;
+
+        private final AtomicLongArray hits = new AtomicLongArray(STRIPES * PADDING);
+
+        volatile long lastUsed;
+
+        Counter(long count, long lastUsed) {
+            hits.set(0, count);
+            this.lastUsed = lastUsed;
+        }
+
+        void hit(long now) {
+            hits.incrementAndGet((int) (Thread.currentThread().getId() & (STRIPES - 1)) * PADDING);
+            if (now - lastUsed >= RESOLUTION) {
+                lastUsed = now;
+                dirty = true;
+            }
+        }
+
+        /**
+         * Marks the grant as just used without counting a check, so that new grants get a full period.
+         */
+        void touch(long now) {
+            lastUsed = now;
+            dirty = true;
+        }
+
+        long sum() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++)
+                sum += hits.get(i * PADDING);
+            return sum;
+        }
+    }
+
+    /**
+     * Forgets removed grants and starts the period of added ones.
+     */
+    @Extension
+    public static final class ChangeListenerImpl extends MatrixChangeListener {
+        @Override
+        public void onChanged(MatrixChange change) {
+            GrantUsage u = current;
+            if (u == null || !recording)
+                return;
+            String name = change.getItemFullName();
+            for (Entry<Permission,Set<String>> e : change.getRemoved().entrySet()) {
+                for (String sid : e.getValue())
+                    u.counters.remove(new MatrixGrant(name, sid, e.getKey(), null));
+            }
+            long now = System.currentTimeMillis();
+            for (Entry<Permission,Set<String>> e : change.getAdded().entrySet()) {
+                for (String sid : e.getValue()) {
+                    MatrixGrant g = new MatrixGrant(name, sid, e.getKey(), null);
+                    Counter c = u.counters.get(g);
+                    if (c == null) {
+                        Counter fresh = new Counter(0, now);
+                        c = u.counters.putIfAbsent(g, fresh);
+                        if (c == null)
+                            dirty = true;
+                    }
+                    if (c != null)
+                        c.touch(now);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes changed counters every few minutes.
+     */
+    @Extension
+    public static final class SaverImpl extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return 10 * MIN;
+        }
+
+        @Override
+        protected void doRun() throws Exception {
+            GrantUsage u = current;
+            if (u != null && dirty)
+                u.save();
+        }
+    }
+
+    /**
+     * Writes changed counters when Jenkins shuts down.
+     */
+    @Extension
+    public static final class ShutdownListener extends ItemListener {
+        @Override
+        public void onBeforeShutdown() {
+            GrantUsage u = current;
+            if (u == null || !dirty)
+                return;
+            try {
+                u.save();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save grant usage", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Lists matrix grants that {@link GrantUsage} found unused, and removes them on request.
+ */
+@Extension
+public class GrantUsageLink extends ManagementLink {
+    /**
+     * How long a grant must be unused for to be listed, unless specified otherwise.
+     */
+    public static final int DEFAULT_DAYS = 90;
+
+    @Override
+    public String getIconFileName() {
+        return "secure.png";
+    }
+
+    public String getDisplayName() {
+        return "Matrix Grant Usage";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Find and remove matrix authorization grants that are no longer used.";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "matrixGrantUsage";
+    }
+
+    public GrantUsage getUsage() {
+        return GrantUsage.get();
+    }
+
+    public List<GrantUsage.Usage> getUnused(int days) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        return GrantUsage.get().getUnused(days);
+    }
+
+    @RequirePOST
+    public HttpResponse doRecording(@QueryParameter boolean enabled) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        GrantUsage.get().setRecording(enabled);
+        return HttpResponses.redirectToDot();
+    }
+
+    /**
+     * Exports the grants unused for the given number of days as JSON.
+     */
+    public void doUnused(StaplerResponse rsp, @QueryParameter String days) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        int d = parseDays(days);
+        GrantUsage usage = GrantUsage.get();
+        JSONArray grants = new JSONArray();
+        for (GrantUsage.Usage u : usage.getUnused(d)) {
+            MatrixGrant g = u.getGrant();
+            grants.add(new JSONObject()
+                    .element("item", g.getItemFullName() == null ? "" : g.getItemFullName())
+                    .element("sid", g.getSid())
+                    .element("permission", g.getPermission().getId())
+                    .element("count", u.getCount())
+                    .element("lastUsed", u.getLastUsed()));
+        }
+        JSONObject result = new JSONObject()
+                .element("recording", usage.isRecording())
+                .element("since", usage.getSince())
+                .element("days", d)
+                .element("grants", grants);
+        rsp.setContentType("application/json;charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        w.print(result.toString());
+        w.flush();
+    }
+
+    /**
+     * Removes the grants unused for the given number of days.
+     */
+    @RequirePOST
+    public HttpResponse doPrune(@QueryParameter String days) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        GrantUsage.get().prune(parseDays(days));
+        return HttpResponses.redirectToDot();
+    }
+
+    public static int parseDays(String days) {
+        if (days == null || days.trim().length() == 0)
+            return DEFAULT_DAYS;
+        try {
+            return Math.max(1, Integer.parseInt(days.trim()));
+        } catch (NumberFormatException e) {
+            return DEFAULT_DAYS;
+        }
+    }
+}
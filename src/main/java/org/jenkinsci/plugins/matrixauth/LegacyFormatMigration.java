@@ -0,0 +1,235 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.AbstractItem;
+import hudson.model.Item;
+import hudson.security.ACL;
+import hudson.util.VersionNumber;
+import jenkins.model.Jenkins;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Rewrites every configuration file holding a matrix in a legacy format in the current format, once.
+ *
+ * <p>
+ * Converters still recognize the legacy forms wherever they appear, as in configurations restored from
+ * a backup or copied from another instance, since telling them apart only takes a peek at the first node.
+ * Completion only lets them skip the HUDSON-2324 migration, which depends on the version Jenkins was
+ * upgraded from rather than on the configuration being read.
+ *
+ * <p>
+ * The items already rewritten are recorded in {@link #getProgressFile()} as they are, so a migration
+ * interrupted by a restart resumes where it stopped. Completion is recorded in {@link #getFile()};
+ * deleting it runs the migration again on the next start.
+ */
+public final class LegacyFormatMigration {
+    private LegacyFormatMigration() {}
+
+    /**
+     * Whether the migration has completed, read from disk on first use.
+     */
+    private static volatile Boolean completed;
+
+    /**
+     * Thread running the migration started with Jenkins, if any.
+     */
+    private static volatile Thread running;
+
+    static File getFile() {
+        return new File(Jenkins.getActiveInstance().getRootDir(), LegacyFormatMigration.class.getName() + ".done");
+    }
+
+    static File getProgressFile() {
+        return new File(Jenkins.getActiveInstance().getRootDir(), LegacyFormatMigration.class.getName() + ".progress");
+    }
+
+    /**
+     * Whether all configuration files present at startup were rewritten in the current format,
+     * so that work depending on the upgrade history may be skipped.
+     */
+    public static boolean isCompleted() {
+        Boolean c = completed;
+        if (c == null) {
+            if (DISABLED || Jenkins.getInstance() == null)
+                return false;
+            completed = c = getFile().isFile();
+        }
+        return c;
+    }
+
+    /**
+     * Forgets that the migration completed, so that it runs again.
+     */
+    static synchronized void reset() throws IOException {
+        File f = getFile();
+        if (f.exists() && !f.delete())
+            throw new IOException("Failed to delete " + f);
+        completed = null;
+    }
+
+    @Initializer(after = InitMilestone.JOB_LOADED, fatal = false)
+    public static void start() {
+        if (isCompleted() || DISABLED || AuthorizationContainers.of(null) == null)
+            return;
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    migrate();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to migrate legacy authorization matrix configurations; will resume on next start", e);
+                }
+            }
+        }, "Matrix authorization format migration");
+        t.setDaemon(true);
+        t.start();
+        running = t;
+    }
+
+    /**
+     * Waits for the migration started with Jenkins to finish.
+     */
+    static void awaitStartup() throws InterruptedException {
+        Thread t = running;
+        if (t != null)
+            t.join();
+    }
+
+    /**
+     * Rewrites the global configuration and every item configuration that is not known to be current,
+     * then records completion.
+     *
+     * @return
+     *      the number of item configurations rewritten.
+     */
+    public static synchronized int migrate() throws IOException {
+        if (isCompleted())
+            return 0;
+        long started = System.currentTimeMillis();
+        final Set<String> done = readProgress();
+        final boolean preHudson2324 = Jenkins.getActiveInstance().isUpgradedFromBefore(new VersionNumber("1.300.*"));
+        final int[] n = new int[1];
+        final Writer progress = new OutputStreamWriter(new FileOutputStream(getProgressFile(), true), "UTF-8");
+        SecurityContext orig = ACL.impersonate(ACL.SYSTEM);
+        try {
+            AuthorizationContainers.visitAll(new AuthorizationContainers.Visitor() {
+                public void visit(Item item, AuthorizationContainer matrix) throws IOException {
+                    if (item == null || done.contains(item.getFullName()))
+                        return;
+                    boolean legacy = preHudson2324 || isLegacy(item);
+                    if (legacy) {
+                        item.save();
+                        n[0]++;
+                    }
+                    progress.write(item.getFullName());
+                    progress.write('\n');
+                    if (legacy)
+                        progress.flush(); // items merely checked are cheap to check again
+
+                }
+            });
+            Jenkins.getActiveInstance().save();
+        } finally {
+            SecurityContextHolder.setContext(orig);
+            progress.close();
+        }
+
+        File f = getFile();
+        Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+        try {
+            w.write(String.valueOf(System.currentTimeMillis()));
+            w.write('\n');
+        } finally {
+            w.close();
+        }
+        if (!getProgressFile().delete())
+            LOGGER.log(Level.FINE, "Failed to delete {0}", getProgressFile());
+        completed = true;
+        LOGGER.log(Level.INFO, "Migrated {0} legacy authorization matrix configurations in {1} ms",
+                new Object[] {n[0], System.currentTimeMillis() - started});
+        return n[0];
+    }
+
+    private static Set<String> readProgress() throws IOException {
+        Set<String> done = new HashSet<String>();
+        File f = getProgressFile();
+        if (!f.isFile())
+            return done;
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+        try {
+            String line;
+            while ((line = r.readLine()) != null)
+                done.add(line);
+        } finally {
+            r.close();
+        }
+        return done;
+    }
+
+    /**
+     * Whether the configuration file of the item still has a job matrix with the legacy
+     * {@code useProjectSecurity} node.
+     */
+    private static boolean isLegacy(Item item) throws IOException {
+        if (!(item instanceof AbstractItem))
+            return false;
+        File f = ((AbstractItem) item).getConfigFile().getFile();
+        if (!f.isFile())
+            return false;
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.contains("<useProjectSecurity"))
+                    return true;
+            }
+        } finally {
+            r.close();
+        }
+        return false;
+    }
+
+    /**
+     * Escape hatch to keep the compatibility branches and never migrate.
+     */
+    private static final boolean DISABLED = Boolean.getBoolean(LegacyFormatMigration.class.getName() + ".disabled");
+
+    private static final Logger LOGGER = Logger.getLogger(LegacyFormatMigration.class.getName());
+}
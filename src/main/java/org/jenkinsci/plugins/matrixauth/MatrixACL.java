@@ -0,0 +1,270 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.security.ACL;
+import hudson.security.Permission;
+import hudson.security.SecurityRealm;
+import hudson.security.SidACL;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.acls.sid.GrantedAuthoritySid;
+import org.acegisecurity.acls.sid.PrincipalSid;
+import org.acegisecurity.acls.sid.Sid;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * {@link SidACL} backed by a {@link CompiledMatrix}.
+ *
+ * <p>
+ * Chains built with {@link #inheritFrom(MatrixACL)} are flattened into a single matrix,
+ * which is kept until one of the matrices along the chain changes.
+ */
+public abstract class MatrixACL extends SidACL {
+    /**
+     * Last chain built by {@link #inheritFrom(MatrixACL)}, reused as long as the parent is the same.
+     */
+    private volatile Inheriting inheriting;
+
+    /**
+     * Returns the matrix this ACL currently grants from.
+     */
+    public abstract CompiledMatrix getCompiledMatrix();
+
+    /**
+     * Full name of the folder whose items this ACL guards, or the empty string for the root,
+     * by which {@link AccessDenials} groups denials.
+     */
+    protected String getFolderFullName() {
+        return "";
+    }
+
+    /**
+     * Returns the grant that makes the given check succeed.
+     * As in {@link SidACL}, the user's own SID is considered first, then their authorities,
+     * then the built-in SIDs, and for each SID the matrix closest to the item first.
+     *
+     * <p>
+     * This is answered from the provenance kept by the {@link CompiledMatrix}, without looking
+     * at the matrices along the chain again.
+     *
+     * @return
+     *      null if the check fails, or succeeds without any grant, as for {@link ACL#SYSTEM}.
+     */
+    @CheckForNull
+    public final MatrixGrant explain(Authentication a, Permission p) {
+        CompiledMatrix m = getCompiledMatrix();
+        MatrixGrant g = explain(m, new PrincipalSid(a), p);
+        if (g != null)
+            return g;
+        for (GrantedAuthority ga : a.getAuthorities()) {
+            g = explain(m, new GrantedAuthoritySid(ga), p);
+            if (g != null)
+                return g;
+        }
+        for (Sid sid : AUTOMATIC_SIDS) {
+            g = explain(m, sid, p);
+            if (g != null)
+                return g;
+        }
+        return null;
+    }
+
+    @CheckForNull
+    private MatrixGrant explain(CompiledMatrix m, Sid sid, Permission p) {
+        String s = toString(sid);
+        return s == null ? null : m.explain(m.getSidNormalizer().normalize(s), p);
+    }
+
+    /**
+     * Decides checks covered by the {@code anonymous} and {@code authenticated} grants
+     * before looking up the SIDs of the user one by one.
+     */
+    @Override
+    public boolean hasPermission(Authentication a, Permission permission) {
+        String sid = grantedTo(a, permission);
+        if (sid != null && GrantUsage.isEnabled())
+            GrantUsage.record(this, sid, permission);
+        else if (sid == null && AccessDenials.isEnabled())
+            AccessDenials.record(this, a, permission);
+        return sid != null;
+    }
+
+    /**
+     * Checks whether this ACL or the given parent ACL, which is not a {@link MatrixACL}, grants a permission.
+     * A denial by this ACL is only recorded if the parent denies the check too.
+     */
+    public final boolean hasPermission(Authentication a, Permission permission, ACL parent) {
+        String sid = grantedTo(a, permission);
+        if (sid != null) {
+            if (GrantUsage.isEnabled())
+                GrantUsage.record(this, sid, permission);
+            return true;
+        }
+        if (parent.hasPermission(a, permission))
+            return true;
+        if (AccessDenials.isEnabled())
+            AccessDenials.record(this, a, permission);
+        return false;
+    }
+
+    /**
+     * Decides a check without recording it.
+     */
+    boolean decide(Authentication a, Permission permission) {
+        return grantedTo(a, permission) != null;
+    }
+
+    /**
+     * Decides a check, returning the first SID of the user, in the order of {@link #explain(Authentication, Permission)},
+     * the permission is granted to, so that {@link GrantUsage} only needs to look up that SID.
+     *
+     * @return
+     *      null if the check fails, or the empty string if it succeeds without any grant, as for {@link ACL#SYSTEM}.
+     */
+    @CheckForNull
+    private String grantedTo(Authentication a, Permission permission) {
+        CompiledMatrix m = getCompiledMatrix();
+        if (m.isGrantedToAnonymous(permission))
+            return "anonymous";
+        if (m.isGrantedToAuthenticated(permission) && isAuthenticated(a))
+            return "authenticated";
+        if (a == SYSTEM)
+            return "";
+        for (String sid : resolve(a, m.getSidNormalizer())) {
+            if (m.hasPermission(sid, permission))
+                return sid;
+        }
+        return null;
+    }
+
+    /**
+     * SIDs of the last user checked on each thread, so that consecutive checks for the same
+     * {@link Authentication}, as during a single request, normalize them only once.
+     */
+    private static final ThreadLocal<ResolvedSids> RESOLVED = new ThreadLocal<ResolvedSids>();
+
+    private String[] resolve(Authentication a, SidNormalizer n) {
+        ResolvedSids r = RESOLVED.get();
+        if (r != null && r.authentication == a && r.normalizer == n)
+            return r.sids;
+        GrantedAuthority[] authorities = a.getAuthorities();
+        String[] sids = new String[1 + authorities.length + AUTOMATIC_SIDS.length];
+        int i = 0;
+        sids[i++] = toString(new PrincipalSid(a));
+        for (GrantedAuthority ga : authorities)
+            sids[i++] = toString(new GrantedAuthoritySid(ga));
+        for (Sid sid : AUTOMATIC_SIDS)
+            sids[i++] = toString(sid);
+        for (i = 0; i < sids.length; i++)
+            if (sids[i] != null)
+                sids[i] = n.normalize(sids[i]);
+        RESOLVED.set(new ResolvedSids(a, n, sids));
+        return sids;
+    }
+
+    private static final class ResolvedSids {
+        final Authentication authentication;
+        final SidNormalizer normalizer;
+        final String[] sids;
+
+        ResolvedSids(Authentication authentication, SidNormalizer normalizer, String[] sids) {
+            this.authentication = authentication;
+            this.normalizer = normalizer;
+            this.sids = sids;
+        }
+    }
+
+    private static boolean isAuthenticated(Authentication a) {
+        for (GrantedAuthority ga : a.getAuthorities()) {
+            if (SecurityRealm.AUTHENTICATED_AUTHORITY.getAuthority().equals(ga.getAuthority()))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns an ACL that grants whatever this ACL or the given parent ACL grants.
+     */
+    public final MatrixACL inheritFrom(MatrixACL parent) {
+        Inheriting i = inheriting;
+        if (i == null || i.parent != parent)
+            inheriting = i = new Inheriting(this, parent);
+        return i;
+    }
+
+    private static final class Inheriting extends MatrixACL {
+        private final MatrixACL child;
+        private final MatrixACL parent;
+        private volatile Flattened flattened;
+
+        Inheriting(MatrixACL child, MatrixACL parent) {
+            this.child = child;
+            this.parent = parent;
+        }
+
+        @Override
+        public CompiledMatrix getCompiledMatrix() {
+            CompiledMatrix c = child.getCompiledMatrix();
+            CompiledMatrix p = parent.getCompiledMatrix();
+            Flattened f = flattened;
+            if (f == null || f.child != c || f.parent != p)
+                flattened = f = new Flattened(c, p);
+            return f.matrix;
+        }
+
+        @Override
+        protected String getFolderFullName() {
+            return child.getFolderFullName();
+        }
+
+        @CheckForNull
+        @SuppressFBWarnings(value = "NP_BOOLEAN_RETURN_NULL",
+                justification = "As designed, implements a third state for the ternary logic")
+        @Override
+        protected Boolean hasPermission(Sid sid, Permission p) {
+            CompiledMatrix m = getCompiledMatrix();
+            if (m.hasPermission(m.getSidNormalizer().normalize(toString(sid)), p))
+                return true;
+            return null;
+        }
+    }
+
+    /**
+     * Result of flattening, along with the inputs it was computed from.
+     */
+    private static final class Flattened {
+        final CompiledMatrix child;
+        final CompiledMatrix parent;
+        final CompiledMatrix matrix;
+
+        Flattened(CompiledMatrix child, CompiledMatrix parent) {
+            this.child = child;
+            this.parent = parent;
+            this.matrix = CompiledMatrix.inherit(child, parent);
+        }
+    }
+}
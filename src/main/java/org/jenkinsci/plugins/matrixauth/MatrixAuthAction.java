@@ -0,0 +1,437 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.RootAction;
+import hudson.model.User;
+import hudson.security.ACL;
+import hudson.security.Permission;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.userdetails.UsernameNotFoundException;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import javax.annotation.CheckForNull;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exposes the matrix authorization REST endpoints under <tt>/matrix-auth/</tt>.
+ *
+ * <p>
+ * All endpoints require {@link Jenkins#ADMINISTER}.
+ */
+@Extension
+public class MatrixAuthAction implements RootAction {
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Matrix Authorization";
+    }
+
+    public String getUrlName() {
+        return "matrix-auth";
+    }
+
+    /**
+     * Streams all grants of the global matrix and of every job and folder matrix.
+     *
+     * @param format
+     *      {@code csv} (default) or {@code ndjson}, see {@link GrantFormat}.
+     */
+    public void doExport(StaplerRequest req, StaplerResponse rsp, @QueryParameter String format) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        GrantFormat f;
+        try {
+            f = GrantFormat.of(format);
+        } catch (IllegalArgumentException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        rsp.setContentType(f.getContentType() + ";charset=UTF-8");
+        Writer w = rsp.getWriter();
+        BulkMatrixTransfer.export(f, w);
+        w.flush();
+    }
+
+    /**
+     * Imports grants posted in the request body.
+     * Nothing is changed unless every line of the request is valid.
+     *
+     * @param format
+     *      {@code csv} (default) or {@code ndjson}, see {@link GrantFormat}.
+     * @param mode
+     *      {@code add} (default) to add the grants to the existing matrices, or {@code replace}
+     *      to make each imported matrix grant exactly what was posted for it.
+     */
+    @RequirePOST
+    public void doImport(StaplerRequest req, StaplerResponse rsp, @QueryParameter String format, @QueryParameter String mode) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        GrantFormat f;
+        try {
+            f = GrantFormat.of(format);
+        } catch (IllegalArgumentException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (mode != null && !mode.equals("add") && !mode.equals("replace")) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unsupported mode: " + mode);
+            return;
+        }
+
+        BulkMatrixTransfer.Import imp = new BulkMatrixTransfer.Import()
+                .read(f, new BufferedReader(new InputStreamReader(req.getInputStream(), "UTF-8")));
+
+        JSONObject result = new JSONObject();
+        if (imp.getErrors().isEmpty()) {
+            imp.apply("replace".equals(mode));
+            result.element("matrices", imp.getMatrixCount()).element("changed", imp.getChangedCount()).element("grants", imp.getGrantCount());
+        } else {
+            rsp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            result.element("errors", imp.getErrors());
+        }
+        rsp.setContentType("application/json;charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        w.print(result.toString());
+        w.flush();
+    }
+
+    /**
+     * Compares the live matrices with the desired grants posted in the request body, in the same format
+     * as {@link #doImport}, and streams the grants to add and remove, see {@link MatrixDiff}.
+     *
+     * @param format
+     *      {@code csv} (default) or {@code ndjson}, see {@link GrantFormat}.
+     * @param all
+     *      whether matrices absent from the request are expected to be empty, rather than left out of the comparison.
+     */
+    @RequirePOST
+    public void doDiff(StaplerRequest req, StaplerResponse rsp, @QueryParameter String format, @QueryParameter boolean all) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        GrantFormat f;
+        try {
+            f = GrantFormat.of(format);
+        } catch (IllegalArgumentException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        BulkMatrixTransfer.Import desired = new BulkMatrixTransfer.Import()
+                .read(f, new BufferedReader(new InputStreamReader(req.getInputStream(), "UTF-8")));
+        if (!desired.getErrors().isEmpty()) {
+            rsp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            rsp.setContentType("application/json;charset=UTF-8");
+            PrintWriter w = rsp.getWriter();
+            w.print(new JSONObject().element("errors", desired.getErrors()).toString());
+            w.flush();
+            return;
+        }
+
+        rsp.setContentType(f.getContentType() + ";charset=UTF-8");
+        Writer w = rsp.getWriter();
+        f.writeChangeHeader(w);
+        MatrixDiff.diffAll(desired, all, MatrixDiff.writeTo(f, w));
+        w.flush();
+    }
+
+    /**
+     * Explains which grant, if any, gives a user a permission on an item, see {@link MatrixACL#explain}.
+     *
+     * @param item
+     *      full name of the job or folder, or empty for the root.
+     * @param user
+     *      ID of the user, or empty for anonymous.
+     * @param permission
+     *      ID of the permission checked.
+     */
+    public void doExplain(StaplerRequest req, StaplerResponse rsp, @QueryParameter String item,
+                          @QueryParameter String user, @QueryParameter String permission) throws IOException {
+        Jenkins jenkins = Jenkins.getActiveInstance();
+        jenkins.checkPermission(Jenkins.ADMINISTER);
+        Permission p = permission == null ? null : Permission.fromId(permission);
+        if (p == null) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "No such permission: " + permission);
+            return;
+        }
+        ACL acl;
+        if (item == null || item.length() == 0) {
+            acl = jenkins.getACL();
+        } else {
+            Item i = jenkins.getItemByFullName(item);
+            if (i == null) {
+                rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "No such item: " + item);
+                return;
+            }
+            acl = i.getACL();
+        }
+        if (!(acl instanceof MatrixACL)) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Permissions are not decided by an authorization matrix");
+            return;
+        }
+        Authentication a = authenticationOf(user, rsp);
+        if (a == null)
+            return;
+
+        MatrixGrant g = ((MatrixACL) acl).explain(a, p);
+        JSONObject result = new JSONObject().element("granted", g != null);
+        if (g != null) {
+            String name = g.getItemFullName();
+            JSONArray impliedBy = new JSONArray();
+            for (Permission q = p; q != g.getPermission(); q = q.impliedBy)
+                impliedBy.add(q.impliedBy.getId());
+            result.element("matrix", name == null ? "root" : jenkins.getItemByFullName(name) instanceof Job ? "job" : "folder")
+                    .element("item", name == null ? "" : name)
+                    .element("sid", g.getSid())
+                    .element("permission", g.getPermission().getId())
+                    .element("impliedBy", impliedBy);
+            if (g.getPermissionSet() != null)
+                result.element("permissionSet", g.getPermissionSet());
+        }
+        rsp.setContentType("application/json;charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        w.print(result.toString());
+        w.flush();
+    }
+
+    /**
+     * Returns the authentication of the given user, or sends an error if there is no such user.
+     *
+     * @param user
+     *      ID of the user, or empty for anonymous.
+     */
+    @CheckForNull
+    private static Authentication authenticationOf(@CheckForNull String user, StaplerResponse rsp) throws IOException {
+        if (user == null || user.length() == 0)
+            return Jenkins.ANONYMOUS;
+        User u = User.get(user, false);
+        if (u == null) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "No such user: " + user);
+            return null;
+        }
+        try {
+            return u.impersonate();
+        } catch (UsernameNotFoundException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Reports the permissions a user has on a job, or on a folder and everything in it, see {@link EffectivePermissions}.
+     *
+     * <p>
+     * The response carries an {@code ETag} that stays the same until a matrix changes,
+     * and is not sent again to clients passing it back in {@code If-None-Match}.
+     *
+     * @param item
+     *      full name of the job or folder, or empty for every item.
+     * @param user
+     *      ID of the user, or empty for anonymous.
+     */
+    public void doEffectivePermissions(StaplerRequest req, StaplerResponse rsp, @QueryParameter String item,
+                                       @QueryParameter String user) throws IOException {
+        Jenkins jenkins = Jenkins.getActiveInstance();
+        jenkins.checkPermission(Jenkins.ADMINISTER);
+        if (AuthorizationContainers.of(null) == null) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Permissions are not decided by an authorization matrix");
+            return;
+        }
+        if (item == null)
+            item = "";
+        Item i = null;
+        if (item.length() > 0) {
+            i = jenkins.getItemByFullName(item);
+            if (i == null) {
+                rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "No such item: " + item);
+                return;
+            }
+        }
+        Authentication a = authenticationOf(user, rsp);
+        if (a == null)
+            return;
+
+        String etag = EffectivePermissions.getETag(a, item);
+        rsp.setHeader("ETag", etag);
+        rsp.setHeader("Cache-Control", "private, no-cache");
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null && (ifNoneMatch.trim().equals("*") || Arrays.asList(ifNoneMatch.trim().split("\\s*,\\s*")).contains(etag))) {
+            rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        JSONObject items = new JSONObject();
+        for (Map.Entry<String,List<Permission>> e : new EffectivePermissions(a).ofSubtree(i).entrySet()) {
+            JSONArray permissions = new JSONArray();
+            for (Permission p : e.getValue())
+                permissions.add(p.getId());
+            items.element(e.getKey(), permissions);
+        }
+        JSONObject result = new JSONObject()
+                .element("user", a.getName())
+                .element("item", item)
+                .element("items", items);
+        rsp.setContentType("application/json;charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        w.print(result.toString());
+        w.flush();
+    }
+
+    /**
+     * Lists the SIDs granted anything by a job or folder matrix under a folder, see {@link SubtreeSids}.
+     *
+     * @param folder
+     *      full name of the folder, or empty for the whole instance.
+     */
+    public void doSids(StaplerRequest req, StaplerResponse rsp, @QueryParameter String folder) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        List<String> sids = new ArrayList<String>(SubtreeSids.get(folder == null ? "" : folder));
+        Collections.sort(sids);
+        rsp.setContentType("application/json;charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        w.print(JSONArray.fromObject(sids).toString());
+        w.flush();
+    }
+
+    /**
+     * Reports the permission checks denied by matrices during the last completed period, busiest first,
+     * see {@link AccessDenials}.
+     */
+    public void doDenials(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        JSONObject result = new JSONObject();
+        AccessDenials.Summary s = AccessDenials.getLastSummary();
+        if (s != null) {
+            JSONArray denials = new JSONArray();
+            for (AccessDenials.Denial d : s.getDenials()) {
+                denials.add(new JSONObject()
+                        .element("user", d.getUser())
+                        .element("permission", d.getPermission().getId())
+                        .element("folder", d.getFolder())
+                        .element("count", d.getCount()));
+            }
+            result.element("started", s.getStarted())
+                    .element("ended", s.getEnded())
+                    .element("total", s.getTotal())
+                    .element("unattributed", s.getUnattributed())
+                    .element("denials", denials);
+        }
+        rsp.setContentType("application/json;charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        w.print(result.toString());
+        w.flush();
+    }
+
+    /**
+     * Reports the progress of the ACL warm-up started when Jenkins loaded, see {@link MatrixWarmUp}.
+     */
+    public void doWarmUp(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        JSONObject result = new JSONObject();
+        MatrixWarmUp.Progress p = MatrixWarmUp.getProgress();
+        if (p == null) {
+            result.element("started", false);
+        } else {
+            result.element("started", true)
+                    .element("finished", p.isFinished())
+                    .element("total", p.getTotal())
+                    .element("done", p.getDone())
+                    .element("duration", p.getDuration());
+        }
+        rsp.setContentType("application/json;charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        w.print(result.toString());
+        w.flush();
+    }
+
+    /**
+     * Reports the progress and findings of the current or last scan for SIDs unknown to the security realm,
+     * see {@link StaleSidScanner}.
+     */
+    public void doStaleSids(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        StaleSidScanner s = StaleSidScanner.get();
+        JSONObject result = new JSONObject()
+                .element("running", s.isRunning())
+                .element("started", s.getStarted())
+                .element("finished", s.getFinished())
+                .element("total", s.getTotal())
+                .element("checked", s.getChecked())
+                .element("undecided", s.getUndecided())
+                .element("missing", JSONArray.fromObject(s.getMissing()));
+        rsp.setContentType("application/json;charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        w.print(result.toString());
+        w.flush();
+    }
+
+    /**
+     * Starts a scan for SIDs unknown to the security realm.
+     *
+     * @param remove
+     *      whether to remove the SIDs found missing from all matrices once the scan completes.
+     */
+    @RequirePOST
+    public void doScanStaleSids(StaplerRequest req, StaplerResponse rsp, @QueryParameter boolean remove) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        if (!StaleSidScanner.get().start(remove)) {
+            rsp.sendError(HttpServletResponse.SC_CONFLICT, "A scan is already running");
+            return;
+        }
+        rsp.setStatus(HttpServletResponse.SC_ACCEPTED);
+    }
+
+    /**
+     * Removes the SIDs found missing by the last completed scan from all matrices.
+     */
+    @RequirePOST
+    public void doRemoveStaleSids(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        int removed = StaleSidScanner.get().removeMissing();
+        rsp.setContentType("application/json;charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        w.print(new JSONObject().element("removed", removed).toString());
+        w.flush();
+    }
+}
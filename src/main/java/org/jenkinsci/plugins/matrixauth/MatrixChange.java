@@ -0,0 +1,180 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.security.AuthorizationMatrixProperty;
+import hudson.security.GlobalMatrixAuthorizationStrategy;
+import hudson.security.Permission;
+
+import javax.annotation.CheckForNull;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Describes how the grants of one matrix changed, as reported to {@link MatrixChangeListener}s.
+ */
+public final class MatrixChange {
+    @CheckForNull
+    private final String itemFullName;
+    private final Map<Permission,Set<String>> added, removed;
+    private final Map<String,Set<String>> addedPermissionSetGrants, removedPermissionSetGrants;
+    private final boolean inheritanceChanged, permissionSetsRedefined;
+
+    private MatrixChange(@CheckForNull String itemFullName,
+                         Map<Permission,Set<String>> added, Map<Permission,Set<String>> removed,
+                         Map<String,Set<String>> addedPermissionSetGrants, Map<String,Set<String>> removedPermissionSetGrants,
+                         boolean inheritanceChanged, boolean permissionSetsRedefined) {
+        this.itemFullName = itemFullName;
+        this.added = Collections.unmodifiableMap(added);
+        this.removed = Collections.unmodifiableMap(removed);
+        this.addedPermissionSetGrants = Collections.unmodifiableMap(addedPermissionSetGrants);
+        this.removedPermissionSetGrants = Collections.unmodifiableMap(removedPermissionSetGrants);
+        this.inheritanceChanged = inheritanceChanged;
+        this.permissionSetsRedefined = permissionSetsRedefined;
+    }
+
+    /**
+     * Computes the change from one matrix to another.
+     *
+     * @param before
+     *      null if there was no matrix.
+     * @param after
+     *      null if the matrix was removed.
+     */
+    public static MatrixChange between(@CheckForNull String itemFullName,
+                                       @CheckForNull AuthorizationContainer before, @CheckForNull AuthorizationContainer after) {
+        Map<Permission,Set<String>> b = before == null ? Collections.<Permission,Set<String>>emptyMap() : before.getGrantedPermissions();
+        Map<Permission,Set<String>> a = after == null ? Collections.<Permission,Set<String>>emptyMap() : after.getGrantedPermissions();
+        Map<String,Set<String>> bs = before == null ? Collections.<String,Set<String>>emptyMap() : before.getPermissionSetGrants();
+        Map<String,Set<String>> as = after == null ? Collections.<String,Set<String>>emptyMap() : after.getPermissionSetGrants();
+        return new MatrixChange(itemFullName, minus(a, b), minus(b, a), minus(as, bs), minus(bs, as),
+                blocksInheritance(before) != blocksInheritance(after),
+                !permissionSets(before).equals(permissionSets(after)));
+    }
+
+    /**
+     * A single grant added to a matrix.
+     */
+    public static MatrixChange granted(@CheckForNull String itemFullName, Permission p, String sid) {
+        return new MatrixChange(itemFullName,
+                Collections.singletonMap(p, Collections.singleton(sid)), Collections.<Permission,Set<String>>emptyMap(),
+                Collections.<String,Set<String>>emptyMap(), Collections.<String,Set<String>>emptyMap(), false, false);
+    }
+
+    private static boolean blocksInheritance(@CheckForNull AuthorizationContainer matrix) {
+        return matrix instanceof AuthorizationMatrixProperty && ((AuthorizationMatrixProperty) matrix).isBlocksInheritance();
+    }
+
+    private static Map<String,Set<Permission>> permissionSets(@CheckForNull AuthorizationContainer matrix) {
+        if (!(matrix instanceof GlobalMatrixAuthorizationStrategy))
+            return Collections.emptyMap();
+        Map<String,Set<Permission>> r = new HashMap<String,Set<Permission>>();
+        for (PermissionSet set : ((GlobalMatrixAuthorizationStrategy) matrix).getPermissionSets().values())
+            r.put(set.getName(), set.getPermissions());
+        return r;
+    }
+
+    /**
+     * Returns the grants in {@code a} that are not in {@code b}.
+     */
+    private static <K> Map<K,Set<String>> minus(Map<K,Set<String>> a, Map<K,Set<String>> b) {
+        Map<K,Set<String>> r = new HashMap<K,Set<String>>();
+        for (Entry<K,Set<String>> e : a.entrySet()) {
+            Set<String> other = b.get(e.getKey());
+            Set<String> sids = new HashSet<String>(e.getValue());
+            if (other != null)
+                sids.removeAll(other);
+            if (!sids.isEmpty())
+                r.put(e.getKey(), Collections.unmodifiableSet(sids));
+        }
+        return r;
+    }
+
+    /**
+     * Full name of the job or folder whose matrix changed, or null for the global matrix.
+     */
+    @CheckForNull
+    public String getItemFullName() {
+        return itemFullName;
+    }
+
+    /**
+     * SIDs newly granted each permission.
+     */
+    public Map<Permission,Set<String>> getAdded() {
+        return added;
+    }
+
+    /**
+     * SIDs no longer granted each permission.
+     */
+    public Map<Permission,Set<String>> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * SIDs newly granted each {@link PermissionSet}, by set name.
+     */
+    public Map<String,Set<String>> getAddedPermissionSetGrants() {
+        return addedPermissionSetGrants;
+    }
+
+    /**
+     * SIDs no longer granted each {@link PermissionSet}, by set name.
+     */
+    public Map<String,Set<String>> getRemovedPermissionSetGrants() {
+        return removedPermissionSetGrants;
+    }
+
+    /**
+     * Whether a job matrix started or stopped blocking inheritance, which may change
+     * any permission on the job without changing its grants.
+     */
+    public boolean isInheritanceChanged() {
+        return inheritanceChanged;
+    }
+
+    /**
+     * Whether {@link PermissionSet}s were redefined, which may change permissions on
+     * any job or folder granting them.
+     */
+    public boolean isPermissionSetsRedefined() {
+        return permissionSetsRedefined;
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty()
+                && addedPermissionSetGrants.isEmpty() && removedPermissionSetGrants.isEmpty()
+                && !inheritanceChanged && !permissionSetsRedefined;
+    }
+
+    @Override
+    public String toString() {
+        return "MatrixChange[" + (itemFullName == null ? "(global)" : itemFullName) + ": +" + added + " -" + removed + "]";
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Receives notifications when permissions are granted or revoked in the global matrix
+ * or in a job or folder matrix.
+ *
+ * <p>
+ * Notifications are sent when matrix-based security is enabled or disabled, when a matrix is
+ * added, replaced or removed, when an item with a matrix is renamed, moved or deleted, and when
+ * permissions are granted on the global matrix in effect. Caches of authorization results can use
+ * {@link MatrixChange#getItemFullName()} to only discard what depends on the changed matrix.
+ */
+public abstract class MatrixChangeListener implements ExtensionPoint {
+    /**
+     * Called after a matrix changed. The change is already in effect.
+     */
+    public abstract void onChanged(MatrixChange change);
+
+    public static ExtensionList<MatrixChangeListener> all() {
+        return ExtensionList.lookup(MatrixChangeListener.class);
+    }
+
+    public static void fireOnChanged(MatrixChange change) {
+        for (MatrixChangeListener l : all()) {
+            try {
+                l.onChanged(change);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to notify " + l + " of " + change, e);
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(MatrixChangeListener.class.getName());
+}
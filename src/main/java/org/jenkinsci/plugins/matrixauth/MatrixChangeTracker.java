@@ -0,0 +1,256 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.security.ACL;
+import hudson.security.Permission;
+import jenkins.model.Jenkins;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the matrix in effect for each item, so that {@link MatrixChangeListener}s
+ * can be told exactly what changed when one is replaced.
+ *
+ * <p>
+ * Changes made through {@link AuthorizationContainers} are reported immediately,
+ * others when the item or the global configuration is saved.
+ */
+public final class MatrixChangeTracker {
+    private MatrixChangeTracker() {}
+
+    private static final Object LOCK = new Object();
+
+    @GuardedBy("LOCK")
+    private static final Map<Item,AuthorizationContainer> matrices = new WeakHashMap<Item,AuthorizationContainer>();
+
+    @GuardedBy("LOCK")
+    private static AuthorizationContainer global;
+
+    /**
+     * Nothing is reported until the matrices loaded at startup were recorded.
+     */
+    @GuardedBy("LOCK")
+    private static boolean initialized;
+
+    /**
+     * Incremented under {@link #LOCK} whenever a matrix is replaced, or an item is created, moved or deleted.
+     */
+    private static volatile long generation;
+
+    /**
+     * Records the matrix now in effect for the given item, and reports how it differs from the previous one.
+     *
+     * @param item
+     *      null for the global matrix.
+     * @param matrix
+     *      null if the item has no matrix.
+     */
+    public static void update(@CheckForNull Item item, @CheckForNull AuthorizationContainer matrix) {
+        AuthorizationContainer before;
+        synchronized (LOCK) {
+            before = item == null ? global : matrices.get(item);
+            if (before == matrix)
+                return;
+            record(item, matrix);
+            if (!initialized)
+                return;
+        }
+        fire(MatrixChange.between(item == null ? null : item.getFullName(), before, matrix));
+    }
+
+    /**
+     * Reports a permission granted on the global matrix after it was put in effect,
+     * as {@link hudson.security.PermissionAdder}s do.
+     */
+    public static void granted(AuthorizationContainer matrix, Permission p, String sid) {
+        Jenkins j = Jenkins.getInstance();
+        if (j == null || j.getAuthorizationStrategy() != matrix)
+            return; // still being populated
+        synchronized (LOCK) {
+            if (!initialized)
+                return;
+        }
+        fire(MatrixChange.granted(null, p, sid));
+    }
+
+    /**
+     * Returns a counter that changes whenever a matrix is replaced, or an item is created, moved or deleted,
+     * so that results derived from the matrices can be reused for as long as it stays the same.
+     * It starts over when Jenkins restarts.
+     */
+    public static long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Whether the given matrix is the one last saved or replaced for the item.
+     *
+     * @param item
+     *      null for the global matrix.
+     */
+    static boolean isSaved(@CheckForNull Item item, AuthorizationContainer matrix) {
+        synchronized (LOCK) {
+            return (item == null ? global : matrices.get(item)) == matrix;
+        }
+    }
+
+    @GuardedBy("LOCK")
+    private static void record(@CheckForNull Item item, @CheckForNull AuthorizationContainer matrix) {
+        if (item == null) {
+            global = matrix;
+        } else {
+            AuthorizationContainer before = matrix == null ? matrices.remove(item) : matrices.put(item, matrix);
+            SubtreeSids.replaced(item, before, matrix);
+        }
+        GrantExpiry.track(item, matrix);
+        generation++;
+    }
+
+    private static void fire(MatrixChange change) {
+        if (!change.isEmpty())
+            MatrixChangeListener.fireOnChanged(change);
+    }
+
+    /**
+     * Reports the matrix of an item as removed from its old location and added at its new one.
+     * Core reports each descendant of a moved folder separately, so only the item itself is handled.
+     */
+    private static void relocated(Item item, String oldFullName, String newFullName) {
+        AuthorizationContainer matrix;
+        synchronized (LOCK) {
+            generation++;
+            matrix = matrices.get(item);
+            if (matrix == null)
+                return;
+            SubtreeSids.moved(item, oldFullName, newFullName, matrix);
+            if (!initialized)
+                return;
+        }
+        fire(MatrixChange.between(oldFullName, matrix, null));
+        fire(MatrixChange.between(newFullName, null, matrix));
+    }
+
+    /**
+     * Reports the matrices of a deleted item and of its descendants as removed.
+     * Descendants deleted on their own before were already reported, and are no longer known.
+     */
+    private static void deleted(Item item) {
+        List<MatrixChange> changes = new ArrayList<MatrixChange>();
+        synchronized (LOCK) {
+            generation++;
+            String prefix = item.getFullName() + '/';
+            for (Entry<Item,AuthorizationContainer> e : new ArrayList<Entry<Item,AuthorizationContainer>>(matrices.entrySet())) {
+                Item i = e.getKey();
+                if (i != item && !i.getFullName().startsWith(prefix))
+                    continue;
+                changes.add(MatrixChange.between(i.getFullName(), e.getValue(), null));
+                matrices.remove(i);
+                SubtreeSids.moved(i, i.getFullName(), null, e.getValue());
+            }
+            if (!initialized)
+                return;
+        }
+        for (MatrixChange c : changes)
+            fire(c);
+    }
+
+    @Extension
+    public static final class SaveListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Jenkins) {
+                update(null, AuthorizationContainers.of(null));
+            } else if (o instanceof Item) {
+                update((Item) o, AuthorizationContainers.of((Item) o));
+            }
+        }
+    }
+
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onLoaded() {
+            SubtreeSids.clear();
+            SecurityContext orig = ACL.impersonate(ACL.SYSTEM);
+            try {
+                AuthorizationContainers.visitAll(new AuthorizationContainers.Visitor() {
+                    public void visit(Item item, AuthorizationContainer matrix) {
+                        synchronized (LOCK) {
+                            record(item, matrix);
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to record the authorization matrices", e);
+            } finally {
+                SecurityContextHolder.setContext(orig);
+            }
+            synchronized (LOCK) {
+                initialized = true;
+            }
+        }
+
+        /**
+         * Copied and XML-created items arrive with their matrix already attached and are not saved
+         * through {@link SaveListenerImpl} until changed, so record it here; {@code onCopied} delegates to this.
+         */
+        @Override
+        public void onCreated(Item item) {
+            synchronized (LOCK) {
+                generation++;
+            }
+            update(item, AuthorizationContainers.of(item));
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            deleted(item);
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            relocated(item, oldFullName, newFullName);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(MatrixChangeTracker.class.getName());
+}
@@ -0,0 +1,175 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.security.Permission;
+import hudson.security.PermissionGroup;
+import org.jvnet.localizer.Localizable;
+
+import javax.annotation.CheckForNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The permission columns of a matrix editor: the visible permissions in display order,
+ * and the groups spanning them in the header row.
+ *
+ * <p>
+ * Descriptors keep one instance and reuse it for every page render until {@link #isStale()},
+ * so the per-permission visibility checks do not run once per row.
+ */
+public final class MatrixColumns {
+    /**
+     * The descriptor of a matrix editor, which decides which permissions it shows.
+     */
+    public interface Source {
+        List<PermissionGroup> getAllGroups();
+
+        boolean showPermission(Permission p);
+    }
+
+    private final List<Permission> permissions;
+    private final List<Group> groups;
+
+    /**
+     * {@link Permission#getEnabled()} of everything in {@link Permission#getAll()} at the time this was built.
+     */
+    private final boolean[] enabled;
+
+    private MatrixColumns(List<Permission> permissions, List<Group> groups) {
+        this.permissions = Collections.unmodifiableList(permissions);
+        this.groups = Collections.unmodifiableList(groups);
+        List<Permission> all = Permission.getAll();
+        this.enabled = new boolean[all.size()];
+        for (int i = 0; i < enabled.length; i++)
+            enabled[i] = all.get(i).getEnabled();
+    }
+
+    /**
+     * Returns the columns of the editor of the given descriptor.
+     *
+     * @param cached
+     *      the columns returned last time, returned again unless {@link #isStale()}.
+     */
+    public static MatrixColumns of(Source source, @CheckForNull MatrixColumns cached) {
+        if (cached != null && !cached.isStale())
+            return cached;
+        Builder b = new Builder();
+        for (PermissionGroup g : source.getAllGroups()) {
+            for (Permission p : g.getPermissions()) {
+                if (source.showPermission(p))
+                    b.add(g, p);
+            }
+        }
+        return b.build();
+    }
+
+    /**
+     * Visible permissions, one per column.
+     */
+    public List<Permission> getPermissions() {
+        return permissions;
+    }
+
+    /**
+     * Groups that have at least one visible permission, in column order.
+     */
+    public List<Group> getGroups() {
+        return groups;
+    }
+
+    /**
+     * Returns true if permissions were registered, enabled or disabled since this was built.
+     */
+    public boolean isStale() {
+        List<Permission> all = Permission.getAll();
+        if (all.size() != enabled.length)
+            return true;
+        for (int i = 0; i < enabled.length; i++) {
+            if (all.get(i).getEnabled() != enabled[i])
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * A header cell spanning the columns of one {@link PermissionGroup}.
+     */
+    public static final class Group {
+        private final PermissionGroup group;
+        private final int span;
+
+        private Group(PermissionGroup group, int span) {
+            this.group = group;
+            this.span = span;
+        }
+
+        public PermissionGroup getGroup() {
+            return group;
+        }
+
+        public Localizable getTitle() {
+            return group.title;
+        }
+
+        /**
+         * Number of columns this group covers.
+         */
+        public int getSpan() {
+            return span;
+        }
+    }
+
+    /**
+     * Collects visible permissions group by group, in display order.
+     */
+    private static final class Builder {
+        private final List<Permission> permissions = new ArrayList<Permission>();
+        private final List<Group> groups = new ArrayList<Group>();
+        private PermissionGroup current;
+        private int span;
+
+        Builder add(PermissionGroup g, Permission p) {
+            if (g != current)
+                closeGroup();
+            current = g;
+            span++;
+            permissions.add(p);
+            return this;
+        }
+
+        private void closeGroup() {
+            if (current != null)
+                groups.add(new Group(current, span));
+            current = null;
+            span = 0;
+        }
+
+        MatrixColumns build() {
+            closeGroup();
+            return new MatrixColumns(permissions, groups);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.model.Descriptor.FormException;
+import hudson.security.Permission;
+import net.sf.json.JSONObject;
+
+import javax.annotation.CheckForNull;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cells of an authorization matrix changed in the configuration form.
+ *
+ * <p>
+ * When the editor is rendered for an existing matrix, it submits only the grants that were
+ * added or removed instead of the whole SID &times; permission table, one per line in the form
+ * <tt>+PERMISSIONID:sid</tt> or <tt>-PERMISSIONID:sid</tt>.
+ * Every cell changed since the page was loaded is submitted with its current state, even if
+ * the change was already applied, so the same form can be applied and saved several times.
+ *
+ * <p>
+ * The delta is applied to the matrix in effect when the form is submitted: cells changed by
+ * somebody else in the meantime are kept, and for cells this form changed too, the last writer wins.
+ */
+public final class MatrixDelta {
+    /**
+     * Name of the form field holding the changed cells.
+     */
+    public static final String DELTA_FIELD = "matrixDelta";
+
+    private final Map<Permission,Set<String>> granted = new HashMap<Permission,Set<String>>();
+    private final Map<Permission,Set<String>> revoked = new HashMap<Permission,Set<String>>();
+
+    private MatrixDelta() {
+    }
+
+    /**
+     * Reads the delta submitted with the form, if the editor sent one.
+     *
+     * @return
+     *      null if the form carries the full matrix in its {@code data} object instead.
+     */
+    @CheckForNull
+    public static MatrixDelta fromForm(JSONObject formData) throws FormException {
+        if (!formData.has(DELTA_FIELD))
+            return null;
+
+        MatrixDelta delta = new MatrixDelta();
+        for (String line : formData.optString(DELTA_FIELD, "").split("\n")) {
+            if (line.length() == 0)
+                continue;
+            char op = line.charAt(0);
+            int idx = line.indexOf(':');
+            if ((op != '+' && op != '-') || idx < 0)
+                throw new FormException("malformed matrix change: " + line, DELTA_FIELD);
+
+            String sid = line.substring(idx + 1);
+            Permission p = Permission.fromId(line.substring(1, idx));
+            if (p == null) {
+                LOGGER.log(Level.FINE, "Silently skip unknown permission \"{0}\" for sid:\"{1}\"", new Object[]{line.substring(1, idx), sid});
+                continue;
+            }
+            put(op == '+' ? delta.granted : delta.revoked, p, sid);
+        }
+        return delta;
+    }
+
+    private static void put(Map<Permission,Set<String>> map, Permission p, String sid) {
+        Set<String> set = map.get(p);
+        if (set == null)
+            map.put(p, set = new HashSet<String>());
+        set.add(sid);
+    }
+
+    /**
+     * Applies this delta copy-on-write: SID sets of permissions that were not touched are
+     * shared with {@code base}, only the modified ones are copied.
+     *
+     * @param base
+     *      the matrix currently in effect, or null if there is none.
+     * @throws FormException
+     *      if there is no matrix any more, e.g. because somebody else removed it in the meantime.
+     */
+    public Map<Permission,Set<String>> applyTo(@CheckForNull AuthorizationContainer base) throws FormException {
+        if (base == null)
+            throw new FormException("The authorization matrix was removed since this page was loaded. Reload the page and reapply your changes.", DELTA_FIELD);
+
+        Map<Permission,Set<String>> result = new HashMap<Permission,Set<String>>(base.getGrantedPermissions());
+        Set<Permission> touched = new HashSet<Permission>(granted.keySet());
+        touched.addAll(revoked.keySet());
+        for (Permission p : touched) {
+            Set<String> set = result.get(p);
+            set = set == null ? new HashSet<String>() : new HashSet<String>(set);
+            if (revoked.containsKey(p))
+                set.removeAll(revoked.get(p));
+            if (granted.containsKey(p))
+                set.addAll(granted.get(p));
+            if (set.isEmpty())
+                result.remove(p);
+            else
+                result.put(p, set);
+        }
+        return result;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(MatrixDelta.class.getName());
+}
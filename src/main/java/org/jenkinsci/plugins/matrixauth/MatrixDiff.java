@@ -0,0 +1,169 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.model.Item;
+import hudson.security.Permission;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Computes the (SID, permission) pairs to add and remove to get from one matrix to another,
+ * such as from the live configuration to the desired state kept by configuration-as-code tooling.
+ *
+ * <p>
+ * Both sides are walked in the order used by {@link BulkMatrixTransfer#export}, permission ID then SID,
+ * so the changes come out sorted and a matrix is compared without building any intermediate set.
+ * SIDs are compared as configured, not {@link SidNormalizer normalized}.
+ */
+public final class MatrixDiff {
+    private MatrixDiff() {}
+
+    /**
+     * Receives the changes in order.
+     */
+    public interface Sink {
+        /**
+         * @param added
+         *      true if the SID must be granted the permission, false if the grant must be removed.
+         * @param item
+         *      full name of the job or folder, or the empty string for the global matrix.
+         */
+        void change(boolean added, String item, String sid, Permission p) throws IOException;
+    }
+
+    /**
+     * Returns a sink writing each change as a line in the given format.
+     */
+    public static Sink writeTo(final GrantFormat format, final Writer w) {
+        return new Sink() {
+            public void change(boolean added, String item, String sid, Permission p) throws IOException {
+                format.writeChange(w, added, item, sid, p.getId());
+            }
+        };
+    }
+
+    /**
+     * Compares the grants of a matrix with the desired ones.
+     *
+     * @param live
+     *      null if there is no matrix.
+     * @return
+     *      the number of changes reported.
+     */
+    public static int diff(String item, @CheckForNull AuthorizationContainer live, Map<Permission,Set<String>> desired, Sink sink) throws IOException {
+        return diff(item, live == null ? Collections.<Permission,Set<String>>emptyMap() : live.getGrantedPermissions(), desired, sink);
+    }
+
+    /**
+     * Compares two sets of grants.
+     *
+     * @return
+     *      the number of changes reported.
+     */
+    public static int diff(String item, Map<Permission,Set<String>> from, Map<Permission,Set<String>> to, Sink sink) throws IOException {
+        if (from.equals(to))
+            return 0;
+        SortedSet<Permission> permissions = new TreeSet<Permission>(Permission.ID_COMPARATOR);
+        permissions.addAll(from.keySet());
+        permissions.addAll(to.keySet());
+        int n = 0;
+        for (Permission p : permissions) {
+            String[] a = sorted(from.get(p));
+            String[] b = sorted(to.get(p));
+            int i = 0, j = 0;
+            while (i < a.length || j < b.length) {
+                int c = i == a.length ? 1 : j == b.length ? -1 : a[i].compareTo(b[j]);
+                if (c < 0) {
+                    sink.change(false, item, a[i++], p);
+                    n++;
+                } else if (c > 0) {
+                    sink.change(true, item, b[j++], p);
+                    n++;
+                } else {
+                    i++;
+                    j++;
+                }
+            }
+        }
+        return n;
+    }
+
+    private static String[] sorted(@CheckForNull Set<String> sids) {
+        if (sids == null)
+            return NO_SIDS;
+        String[] r = sids.toArray(new String[sids.size()]);
+        Arrays.sort(r);
+        return r;
+    }
+
+    private static final String[] NO_SIDS = new String[0];
+
+    /**
+     * Compares the live matrices with the desired state read by an {@link BulkMatrixTransfer.Import},
+     * streaming the changes matrix by matrix.
+     *
+     * @param all
+     *      if true, every live matrix absent from the desired state is reported as to be emptied;
+     *      otherwise only the matrices named in the desired state are compared.
+     * @return
+     *      the number of changes reported.
+     */
+    public static int diffAll(BulkMatrixTransfer.Import desired, boolean all, final Sink sink) throws IOException {
+        if (!desired.getErrors().isEmpty())
+            throw new IllegalStateException("Refusing to compare with a desired state with errors");
+        final Map<String,Map<Permission,Set<String>>> grants = desired.getGrants();
+        final int[] n = new int[1];
+        if (all) {
+            final Set<String> visited = new HashSet<String>();
+            AuthorizationContainers.visitAll(new AuthorizationContainers.Visitor() {
+                public void visit(Item item, AuthorizationContainer matrix) throws IOException {
+                    String name = item == null ? "" : item.getFullName();
+                    visited.add(name);
+                    Map<Permission,Set<String>> to = grants.get(name);
+                    n[0] += diff(name, matrix, to == null ? Collections.<Permission,Set<String>>emptyMap() : to, sink);
+                }
+            });
+            for (Entry<String,Map<Permission,Set<String>>> e : grants.entrySet()) {
+                if (!visited.contains(e.getKey()))
+                    n[0] += diff(e.getKey(), Collections.<Permission,Set<String>>emptyMap(), e.getValue(), sink);
+            }
+        } else {
+            for (Entry<String,Map<Permission,Set<String>>> e : grants.entrySet()) {
+                n[0] += diff(e.getKey(), AuthorizationContainers.of(desired.getItem(e.getKey())), e.getValue(), sink);
+            }
+        }
+        return n[0];
+    }
+}
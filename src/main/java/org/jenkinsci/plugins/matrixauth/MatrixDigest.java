@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.Util;
+import hudson.security.Permission;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Computes the content hash used as {@link AuthorizationContainer#getMatrixVersion()}.
+ *
+ * <p>
+ * The hash covers the same <tt>PERMISSIONID:sid</tt> lines the converters persist,
+ * in the same sorted order, so it does not depend on hash set iteration order.
+ */
+public final class MatrixDigest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private MatrixDigest() {}
+
+    public static String of(Map<Permission,? extends Set<String>> grantedPermissions) {
+        return of(grantedPermissions, Collections.<String,Set<String>>emptyMap());
+    }
+
+    /**
+     * Also covers {@link PermissionSet} definitions or grants, as <tt>@name:value</tt> lines.
+     */
+    public static String of(Map<Permission,? extends Set<String>> grantedPermissions, Map<String,? extends Collection<String>> permissionSets) {
+        return of(grantedPermissions, permissionSets, Collections.<String,Long>emptyMap());
+    }
+
+    /**
+     * Also covers {@link GrantExpiry grant expiries}, as <tt>!PERMISSIONID:sid=time</tt> lines.
+     */
+    public static String of(Map<Permission,? extends Set<String>> grantedPermissions, Map<String,? extends Collection<String>> permissionSets,
+                            Map<String,Long> grantExpiries) {
+        return of(grantedPermissions, permissionSets, grantExpiries, Collections.<Permission,Set<String>>emptyMap());
+    }
+
+    /**
+     * Also covers grants to {@link SidPatterns}, as <tt>*PERMISSIONID:pattern</tt> lines.
+     */
+    public static String of(Map<Permission,? extends Set<String>> grantedPermissions, Map<String,? extends Collection<String>> permissionSets,
+                            Map<String,Long> grantExpiries, Map<Permission,? extends Set<String>> sidPatterns) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e); // every JRE has SHA-1
+        }
+
+        SortedMap<Permission,Set<String>> sorted = new TreeMap<Permission,Set<String>>(Permission.ID_COMPARATOR);
+        sorted.putAll(grantedPermissions);
+        for (Entry<Permission,Set<String>> e : sorted.entrySet()) {
+            if (e.getValue().isEmpty())
+                continue;
+            String p = e.getKey().getId();
+            List<String> sids = new ArrayList<String>(e.getValue());
+            Collections.sort(sids);
+            for (String sid : sids) {
+                md.update((p + ':' + sid + '\n').getBytes(UTF8));
+            }
+        }
+        for (Entry<String,? extends Collection<String>> e : new TreeMap<String,Collection<String>>(permissionSets).entrySet()) {
+            List<String> values = new ArrayList<String>(e.getValue());
+            Collections.sort(values);
+            for (String v : values) {
+                md.update(('@' + e.getKey() + ':' + v + '\n').getBytes(UTF8));
+            }
+        }
+        for (Entry<String,Long> e : new TreeMap<String,Long>(grantExpiries).entrySet()) {
+            md.update(('!' + e.getKey() + '=' + e.getValue() + '\n').getBytes(UTF8));
+        }
+        if (!sidPatterns.isEmpty()) {
+            for (String line : SidPatterns.formatGrants(sidPatterns).split("\n")) {
+                if (line.length() > 0)
+                    md.update(('*' + line + '\n').getBytes(UTF8));
+            }
+        }
+        return Util.toHexString(md.digest());
+    }
+}
@@ -0,0 +1,467 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.security.ACL;
+import hudson.security.AccessControlled;
+import hudson.security.Permission;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Estimates how much heap the authorization matrices take, for the global matrix and all job and folder matrices.
+ *
+ * <p>
+ * Reports are computed on a background thread and kept until the next one, so that looking at them is cheap.
+ * The estimate of each matrix is remembered by {@linkplain AuthorizationContainer#getMatrixVersion() version}
+ * as long as a matrix of that version is in effect, so that a new report only measures the matrices that
+ * changed since the last one.
+ *
+ * <p>
+ * Sizes are estimated assuming a 64-bit JVM with compressed references. They include the grants a matrix
+ * holds, its {@link CompiledMatrix}, and for job and folder matrices the matrix flattened with those of the
+ * parents for permission checks, counting only what it does not share with them. Lookup structures that
+ * were not built yet are built to be measured.
+ */
+public final class MatrixFootprint {
+    private MatrixFootprint() {}
+
+    private static volatile Report report;
+
+    @GuardedBy("MatrixFootprint.class")
+    private static boolean computing;
+
+    @GuardedBy("MatrixFootprint.class")
+    private static ExecutorService executor;
+
+    /**
+     * Estimates of the matrices measured so far, by {@link AuthorizationContainer#getMatrixVersion()},
+     * without their flattened matrices, which depend on the parents.
+     */
+    @GuardedBy("sizes")
+    private static final Map<String,Size> sizes = new HashMap<String,Size>();
+
+    /**
+     * Returns the last report computed.
+     *
+     * @return
+     *      null if none was computed yet.
+     */
+    @CheckForNull
+    public static Report getReport() {
+        return report;
+    }
+
+    public static synchronized boolean isComputing() {
+        return computing;
+    }
+
+    /**
+     * Starts computing a new report in the background, unless one is being computed already.
+     */
+    public static synchronized void refresh() {
+        if (computing)
+            return;
+        computing = true;
+        if (executor == null)
+            executor = Executors.newSingleThreadExecutor(
+                    new NamingThreadFactory(new DaemonThreadFactory(), "Matrix footprint"));
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    compute();
+                } catch (Throwable t) {
+                    LOGGER.log(Level.WARNING, "Failed to estimate the size of the authorization matrices", t);
+                } finally {
+                    synchronized (MatrixFootprint.class) {
+                        computing = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Like {@link #refresh()}, if the last report is older than {@link #MAX_AGE} or there is none.
+     */
+    public static void refreshIfStale() {
+        Report r = report;
+        if (r == null || System.currentTimeMillis() - r.computed > MAX_AGE)
+            refresh();
+    }
+
+    /**
+     * Computes a new report on the calling thread.
+     */
+    public static Report compute() throws IOException {
+        final long started = System.currentTimeMillis();
+        final Report r = new Report();
+        final Set<String> itemSids = new HashSet<String>();
+        final Set<String> versions = new HashSet<String>();
+        final Set<String> itemVersions = new HashSet<String>();
+        final List<Matrix> all = new ArrayList<Matrix>();
+        SecurityContext orig = ACL.impersonate(ACL.SYSTEM);
+        try {
+            AuthorizationContainers.visitAll(new AuthorizationContainers.Visitor() {
+                public void visit(Item item, AuthorizationContainer matrix) {
+                    Size s = sizeOf(matrix);
+                    versions.add(matrix.getMatrixVersion());
+                    if (item == null) {
+                        r.global = s;
+                        return;
+                    }
+                    long flattened = flattened(item, matrix);
+                    if (flattened > 0)
+                        s = new Size(s.grants, s.sids, s.bytes + flattened);
+                    r.matrices++;
+                    r.grants += s.grants;
+                    r.bytes += s.bytes;
+                    for (Set<String> sids : matrix.getGrantedPermissions().values())
+                        itemSids.addAll(sids);
+                    for (Set<String> sids : matrix.getPermissionSetGrants().values())
+                        itemSids.addAll(sids);
+                    if (!itemVersions.add(matrix.getMatrixVersion()))
+                        r.duplicates++;
+                    all.add(new Matrix(item.getFullName(), s));
+                }
+            });
+        } finally {
+            SecurityContextHolder.setContext(orig);
+        }
+        synchronized (sizes) {
+            sizes.keySet().retainAll(versions);
+        }
+        r.sids = itemSids.size();
+        Collections.sort(all, new Comparator<Matrix>() {
+            public int compare(Matrix a, Matrix b) {
+                return a.size.bytes < b.size.bytes ? 1 : a.size.bytes > b.size.bytes ? -1 : a.item.compareTo(b.item);
+            }
+        });
+        r.largest = Collections.unmodifiableList(new ArrayList<Matrix>(all.subList(0, Math.min(TOP, all.size()))));
+        r.computed = System.currentTimeMillis();
+        r.duration = r.computed - started;
+        report = r;
+        LOGGER.log(Level.FINE, "Estimated {0} authorization matrices in {1} ms", new Object[] {r.matrices + 1, r.duration});
+        return r;
+    }
+
+    /**
+     * Returns the estimate for the given matrix, measuring it if it was not yet.
+     */
+    static Size sizeOf(AuthorizationContainer matrix) {
+        String version = matrix.getMatrixVersion();
+        synchronized (sizes) {
+            Size s = sizes.get(version);
+            if (s != null)
+                return s;
+        }
+        Size s = measure(matrix);
+        synchronized (sizes) {
+            sizes.put(version, s);
+        }
+        return s;
+    }
+
+    /**
+     * Estimates the part of the flattened matrix permission checks on the item use that is not shared with the matrix of the item or that of its parent.
+     */
+    private static long flattened(Item item, AuthorizationContainer matrix) {
+        ACL acl = item.getACL();
+        ItemGroup<?> parent = item.getParent();
+        if (!(acl instanceof MatrixACL) || !(parent instanceof AccessControlled))
+            return 0;
+        CompiledMatrix m = ((MatrixACL) acl).getCompiledMatrix();
+        CompiledMatrix own = matrix.getCompiledMatrix();
+        if (m == own)
+            return 0; // does not inherit
+        Map<Object,Boolean> seen = new IdentityHashMap<Object,Boolean>();
+        own.footprint(seen);
+        ACL parentAcl = ((AccessControlled) parent).getACL();
+        if (parentAcl instanceof MatrixACL)
+            ((MatrixACL) parentAcl).getCompiledMatrix().footprint(seen);
+        return m.footprint(seen);
+    }
+
+    private static Size measure(AuthorizationContainer matrix) {
+        Map<Object,Boolean> seen = new IdentityHashMap<Object,Boolean>();
+        Set<String> sids = new HashSet<String>();
+        int grants = 0;
+        long bytes = hashMap(matrix.getGrantedPermissions().size());
+        for (Map.Entry<Permission,Set<String>> e : matrix.getGrantedPermissions().entrySet()) {
+            bytes += HASH_SET + hashMap(e.getValue().size());
+            for (String sid : e.getValue())
+                bytes += string(sid, seen);
+            grants += e.getValue().size();
+            sids.addAll(e.getValue());
+        }
+        bytes += TREE_MAP + TREE_ENTRY * matrix.getPermissionSetGrants().size();
+        for (Map.Entry<String,Set<String>> e : matrix.getPermissionSetGrants().entrySet()) {
+            bytes += string(e.getKey(), seen) + TREE_SET + TREE_ENTRY * e.getValue().size();
+            for (String sid : e.getValue())
+                bytes += string(sid, seen);
+            grants += e.getValue().size();
+            sids.addAll(e.getValue());
+        }
+        bytes += TREE_MAP + (TREE_ENTRY + LONG) * matrix.getGrantExpiries().size();
+        for (String key : matrix.getGrantExpiries().keySet())
+            bytes += string(key, seen);
+        bytes += matrix.getCompiledMatrix().footprint(seen);
+        return new Size(grants, sids.size(), bytes);
+    }
+
+    /**
+     * Returns true if the object was not counted yet for the matrix being measured, and marks it as counted.
+     */
+    static boolean first(Object o, Map<Object,Boolean> seen) {
+        return seen.put(o, Boolean.TRUE) == null;
+    }
+
+    /**
+     * Size of a multi-map of SIDs not counted yet, shared empty maps being free.
+     */
+    static long grants(Map<?,Set<String>> grants, Map<Object,Boolean> seen) {
+        if (grants.isEmpty() || !first(grants, seen))
+            return 0;
+        long bytes = hashMap(grants.size());
+        for (Set<String> sids : grants.values())
+            bytes += sids(sids, seen);
+        return bytes;
+    }
+
+    static long sids(Set<String> sids, Map<Object,Boolean> seen) {
+        if (sids.isEmpty() || !first(sids, seen))
+            return 0;
+        long bytes = HASH_SET + hashMap(sids.size());
+        for (String sid : sids)
+            bytes += string(sid, seen);
+        return bytes;
+    }
+
+    static long list(Collection<String> list, Map<Object,Boolean> seen) {
+        if (list.isEmpty() || !first(list, seen))
+            return 0;
+        return ARRAY_LIST + align(ARRAY + REFERENCE * list.size());
+    }
+
+    static long bitSet(BitSet bits, Map<Object,Boolean> seen) {
+        if (!first(bits, seen))
+            return 0;
+        return BIT_SET + align(ARRAY + bits.size() / 8);
+    }
+
+    static long hashMap(int size) {
+        int capacity = 1;
+        while (capacity * 3 < size * 4)
+            capacity <<= 1;
+        return HASH_MAP + align(ARRAY + REFERENCE * Math.max(capacity, 16)) + HASH_ENTRY * size;
+    }
+
+    /**
+     * Size of a string not counted yet for the matrix being measured.
+     */
+    static long string(String s, Map<Object,Boolean> seen) {
+        if (!first(s, seen))
+            return 0;
+        return STRING + align(ARRAY + 2L * s.length());
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /**
+     * Estimated footprint of a single matrix.
+     */
+    public static final class Size {
+        private final int grants;
+        private final int sids;
+        private final long bytes;
+
+        Size(int grants, int sids, long bytes) {
+            this.grants = grants;
+            this.sids = sids;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Number of permissions and permission sets granted, counting each SID separately.
+         */
+        public int getGrants() {
+            return grants;
+        }
+
+        public int getSids() {
+            return sids;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    /**
+     * {@link Size} of the matrix of an item.
+     */
+    public static final class Matrix {
+        private final String item;
+        private final Size size;
+
+        Matrix(String item, Size size) {
+            this.item = item;
+            this.size = size;
+        }
+
+        public String getItem() {
+            return item;
+        }
+
+        public Size getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * Estimates for the global matrix, and aggregated over all job and folder matrices.
+     */
+    public static final class Report {
+        private long computed;
+        private long duration;
+        private Size global;
+        private int matrices;
+        private int grants;
+        private int sids;
+        private int duplicates;
+        private long bytes;
+        private List<Matrix> largest;
+
+        /**
+         * When the report was completed, in milliseconds since the epoch.
+         */
+        public long getComputed() {
+            return computed;
+        }
+
+        /**
+         * How long computing the report took, in milliseconds.
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * @return
+         *      null if matrix-based security is not in use.
+         */
+        @CheckForNull
+        public Size getGlobal() {
+            return global;
+        }
+
+        /**
+         * Number of job and folder matrices.
+         */
+        public int getMatrices() {
+            return matrices;
+        }
+
+        public int getGrants() {
+            return grants;
+        }
+
+        /**
+         * Number of distinct SIDs granted anything by job and folder matrices.
+         */
+        public int getSids() {
+            return sids;
+        }
+
+        /**
+         * Number of job and folder matrices granting exactly the same as another one.
+         */
+        public int getDuplicates() {
+            return duplicates;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Returns the largest job and folder matrices, largest first.
+         */
+        public List<Matrix> getLargest() {
+            return largest;
+        }
+    }
+
+    private static final long REFERENCE = 4;
+    private static final long ARRAY = 16;
+    private static final long STRING = 24;
+    private static final long LONG = 16;
+    private static final long HASH_MAP = 48;
+    private static final long HASH_ENTRY = 32;
+    private static final long HASH_SET = 16;
+    private static final long TREE_MAP = 48;
+    private static final long TREE_ENTRY = 40;
+    private static final long TREE_SET = 16;
+    private static final long ARRAY_LIST = 24;
+    private static final long BIT_SET = 24;
+    static final long BITS = 24;
+    static final long COMPILED_MATRIX = 80;
+
+    /**
+     * Number of matrices listed in {@link Report#getLargest()}.
+     */
+    private static final int TOP = Integer.getInteger(MatrixFootprint.class.getName() + ".top", 20);
+
+    /**
+     * How old a report may get before {@link #refreshIfStale()} computes a new one, in milliseconds.
+     */
+    private static final long MAX_AGE = Long.getLong(MatrixFootprint.class.getName() + ".maxAge", 10 * 60 * 1000);
+
+    private static final Logger LOGGER = Logger.getLogger(MatrixFootprint.class.getName());
+}
@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Shows how much heap the authorization matrices take, as estimated by {@link MatrixFootprint}.
+ */
+@Extension
+public class MatrixFootprintLink extends ManagementLink {
+    @Override
+    public String getIconFileName() {
+        return "secure.png";
+    }
+
+    public String getDisplayName() {
+        return "Matrix Footprint";
+    }
+
+    @Override
+    public String getDescription() {
+        return "See how much memory the authorization matrices use.";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "matrixFootprint";
+    }
+
+    /**
+     * Returns the last report, starting a new one in the background if it is out of date.
+     */
+    @CheckForNull
+    public MatrixFootprint.Report getReport() {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        MatrixFootprint.refreshIfStale();
+        return MatrixFootprint.getReport();
+    }
+
+    public boolean isComputing() {
+        return MatrixFootprint.isComputing();
+    }
+
+    @RequirePOST
+    public HttpResponse doRefresh() {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        MatrixFootprint.refresh();
+        return HttpResponses.redirectToDot();
+    }
+
+    /**
+     * Exports the last report as JSON.
+     */
+    public void doJson(StaplerResponse rsp) throws IOException {
+        JSONObject result = new JSONObject().element("computing", MatrixFootprint.isComputing());
+        MatrixFootprint.Report r = getReport();
+        if (r != null) {
+            JSONArray largest = new JSONArray();
+            for (MatrixFootprint.Matrix m : r.getLargest())
+                largest.add(toJSON(m.getSize()).element("item", m.getItem()));
+            result.element("computed", r.getComputed())
+                    .element("duration", r.getDuration())
+                    .element("global", r.getGlobal() == null ? null : toJSON(r.getGlobal()))
+                    .element("items", new JSONObject()
+                            .element("matrices", r.getMatrices())
+                            .element("grants", r.getGrants())
+                            .element("sids", r.getSids())
+                            .element("duplicates", r.getDuplicates())
+                            .element("bytes", r.getBytes()))
+                    .element("largest", largest);
+        }
+        rsp.setContentType("application/json;charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        w.print(result.toString());
+        w.flush();
+    }
+
+    private static JSONObject toJSON(MatrixFootprint.Size s) {
+        return new JSONObject()
+                .element("grants", s.getGrants())
+                .element("sids", s.getSids())
+                .element("bytes", s.getBytes());
+    }
+}
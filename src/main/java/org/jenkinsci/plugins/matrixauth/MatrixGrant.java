@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.security.Permission;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * A single grant in a matrix: a permission granted to a SID, directly or through a {@link PermissionSet}.
+ *
+ * @see MatrixACL#explain
+ */
+public final class MatrixGrant {
+    @CheckForNull
+    private final String itemFullName;
+    private final String sid;
+    private final Permission permission;
+    @CheckForNull
+    private final String permissionSet;
+
+    public MatrixGrant(@CheckForNull String itemFullName, String sid, Permission permission, @CheckForNull String permissionSet) {
+        this.itemFullName = itemFullName;
+        this.sid = sid;
+        this.permission = permission;
+        this.permissionSet = permissionSet;
+    }
+
+    /**
+     * Full name of the job or folder whose matrix has this grant, or null for the global matrix.
+     */
+    @CheckForNull
+    public String getItemFullName() {
+        return itemFullName;
+    }
+
+    /**
+     * The SID, or the {@link SidPatterns pattern} matching it if the permission is granted to one.
+     */
+    public String getSid() {
+        return sid;
+    }
+
+    /**
+     * The permission granted, which may be one implying the permission that was checked.
+     */
+    public Permission getPermission() {
+        return permission;
+    }
+
+    /**
+     * Name of the {@link PermissionSet} the permission is granted through, or null if it is granted directly.
+     */
+    @CheckForNull
+    public String getPermissionSet() {
+        return permissionSet;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof MatrixGrant))
+            return false;
+        MatrixGrant that = (MatrixGrant) o;
+        return sid.equals(that.sid) && permission == that.permission
+                && (itemFullName == null ? that.itemFullName == null : itemFullName.equals(that.itemFullName))
+                && (permissionSet == null ? that.permissionSet == null : permissionSet.equals(that.permissionSet));
+    }
+
+    @Override
+    public int hashCode() {
+        int h = sid.hashCode() * 31 + permission.hashCode();
+        if (itemFullName != null)
+            h = h * 31 + itemFullName.hashCode();
+        if (permissionSet != null)
+            h = h * 31 + permissionSet.hashCode();
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return (itemFullName == null ? "(global)" : itemFullName) + ": " + permission.getId() + " to " + sid
+                + (permissionSet == null ? "" : " through " + permissionSet);
+    }
+}
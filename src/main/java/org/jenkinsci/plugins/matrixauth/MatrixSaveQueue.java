@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.Extension;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import jenkins.util.Timer;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes configuration modified by bulk matrix operations in the background.
+ *
+ * <p>
+ * Changes take effect in memory right away; the affected {@link Saveable}s are collected and
+ * written in one batch shortly afterwards, so an item modified several times in a row is
+ * only saved once.
+ */
+public final class MatrixSaveQueue {
+    private MatrixSaveQueue() {}
+
+    /**
+     * How long to wait for further modifications before writing, in milliseconds.
+     */
+    private static final long DELAY = Long.getLong(MatrixSaveQueue.class.getName() + ".delay", 1000);
+
+    @GuardedBy("pending")
+    private static final Set<Saveable> pending = new LinkedHashSet<Saveable>();
+
+    @GuardedBy("pending")
+    private static boolean scheduled;
+
+    private static final Runnable FLUSH = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Schedules the given object to be saved with the next batch.
+     */
+    public static void schedule(Saveable saveable) {
+        synchronized (pending) {
+            pending.add(saveable);
+            if (!scheduled) {
+                scheduled = true;
+                Timer.get().schedule(FLUSH, DELAY, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of objects waiting to be saved.
+     */
+    public static int size() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Saves everything scheduled so far, on the calling thread.
+     */
+    public static void flush() {
+        List<Saveable> batch;
+        synchronized (pending) {
+            batch = new ArrayList<Saveable>(pending);
+            pending.clear();
+            scheduled = false;
+        }
+        for (Saveable s : batch) {
+            try {
+                s.save();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save " + s, e);
+            }
+        }
+        if (!batch.isEmpty())
+            LOGGER.log(Level.FINE, "Saved {0} configurations changed by matrix updates", batch.size());
+    }
+
+    /**
+     * Makes sure nothing is lost when Jenkins shuts down.
+     */
+    @Extension
+    public static final class ShutdownListener extends ItemListener {
+        @Override
+        public void onBeforeShutdown() {
+            flush();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(MatrixSaveQueue.class.getName());
+}
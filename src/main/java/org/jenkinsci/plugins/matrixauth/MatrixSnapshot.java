@@ -0,0 +1,383 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Item;
+import hudson.model.listeners.ItemListener;
+import hudson.security.ACL;
+import hudson.security.Permission;
+import jenkins.model.Jenkins;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Saves the compiled job and folder matrices when Jenkins shuts down, so that they need not be compiled
+ * again on the next start. The global matrix is a single one, and is always compiled.
+ *
+ * <p>
+ * The snapshot holds each SID once, and each matrix as lists of SID numbers by permission ID.
+ * It is only used as a whole if the permissions and the SID normalization policy are the same as
+ * when it was written. Each matrix in it is only used if the matrix loaded for its item has the
+ * {@linkplain AuthorizationContainer#getMatrixVersion() version} it was compiled from; this is computed
+ * from the grants already parsed, without reading configuration files again.
+ * Matrices with {@linkplain GrantExpiry expiring grants} are not saved, as grants may lapse before the next start.
+ * Anything else is compiled on first use, as without a snapshot.
+ *
+ * <p>
+ * The snapshot is read with memory-mapped I/O once items are loaded. Restored matrices are handed
+ * to their holders through {@link #take(AuthorizationContainer)} when first needed, and share the
+ * SID strings of the snapshot.
+ */
+public final class MatrixSnapshot {
+    private MatrixSnapshot() {}
+
+    private static final int MAGIC = 0x4d415458; // "MATX"
+    private static final int FORMAT = 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Compiled grants of the matrix of an item, with the version of the matrix they were compiled from.
+     */
+    private static final class Saved {
+        final String item;
+        final String version;
+        final Map<Permission,Set<String>> grants;
+
+        Saved(String item, String version, Map<Permission,Set<String>> grants) {
+            this.item = item;
+            this.version = version;
+            this.grants = grants;
+        }
+    }
+
+    /**
+     * Restored matrices not yet taken by their holders.
+     */
+    @GuardedBy("restored")
+    private static final Map<AuthorizationContainer,CompiledMatrix> restored = new WeakHashMap<AuthorizationContainer,CompiledMatrix>();
+
+    /**
+     * How many restored matrices were taken by their holders.
+     */
+    @GuardedBy("restored")
+    private static int taken;
+
+    /**
+     * Whether {@link #init()} already ran.
+     */
+    @GuardedBy("MatrixSnapshot.class")
+    private static boolean initialized;
+
+    static File getFile() {
+        return new File(Jenkins.getActiveInstance().getRootDir(), MatrixSnapshot.class.getName() + ".bin");
+    }
+
+    /**
+     * Returns the compiled form of the given matrix restored from the snapshot, at most once.
+     *
+     * @return
+     *      null if it was not restored, or was already taken.
+     */
+    @CheckForNull
+    public static CompiledMatrix take(AuthorizationContainer matrix) {
+        synchronized (restored) {
+            if (restored.isEmpty())
+                return null;
+            CompiledMatrix c = restored.remove(matrix);
+            if (c != null)
+                taken++;
+            return c;
+        }
+    }
+
+    static int getTaken() {
+        synchronized (restored) {
+            return taken;
+        }
+    }
+
+    /**
+     * Loads the snapshot written by the previous run, once. {@link MatrixWarmUp} calls this before compiling
+     * anything, as initializers after the same milestone run in no particular order.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED, fatal = false)
+    public static synchronized void init() {
+        if (initialized || DISABLED)
+            return;
+        initialized = true;
+        File f = getFile();
+        if (!f.isFile())
+            return;
+        long started = System.currentTimeMillis();
+        try {
+            int n = load(f);
+            LOGGER.log(Level.FINE, "Restored {0} compiled matrices in {1} ms", new Object[] {n, System.currentTimeMillis() - started});
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Ignoring the compiled matrix snapshot " + f, e);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Ignoring the compiled matrix snapshot " + f, e);
+        }
+    }
+
+    /**
+     * Forgets the restored matrices, so that {@link #init()} loads the snapshot again.
+     */
+    static synchronized void reset() {
+        initialized = false;
+        synchronized (restored) {
+            restored.clear();
+            taken = 0;
+        }
+    }
+
+    /**
+     * Restores the matrices of the snapshot that are still valid.
+     *
+     * @return
+     *      how many were restored.
+     */
+    static int load(File f) throws IOException {
+        final Map<String,Saved> entries;
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            FileChannel ch = raf.getChannel();
+            ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            try {
+                entries = read(buf);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated snapshot", e);
+            }
+        } finally {
+            raf.close();
+        }
+        if (entries == null)
+            return 0;
+
+        final SidNormalizer normalizer = SidNormalizer.current();
+        final Map<AuthorizationContainer,CompiledMatrix> valid = new HashMap<AuthorizationContainer,CompiledMatrix>();
+        SecurityContext orig = ACL.impersonate(ACL.SYSTEM);
+        try {
+            AuthorizationContainers.visitAll(new AuthorizationContainers.Visitor() {
+                public void visit(Item item, AuthorizationContainer matrix) {
+                    if (item == null || !matrix.getPermissionSetGrants().isEmpty())
+                        return;
+                    Saved saved = entries.get(item.getFullName());
+                    if (saved == null || !saved.version.equals(matrix.getMatrixVersion()))
+                        return;
+                    valid.put(matrix, CompiledMatrix.restore(saved.grants, item, normalizer));
+                }
+            });
+        } finally {
+            SecurityContextHolder.setContext(orig);
+        }
+        synchronized (restored) {
+            restored.putAll(valid);
+        }
+        return valid.size();
+    }
+
+    /**
+     * Reads the matrices of the snapshot, by item full name.
+     *
+     * @return
+     *      null if the snapshot does not match the current permissions or SID normalization policy.
+     */
+    @CheckForNull
+    private static Map<String,Saved> read(ByteBuffer buf) throws IOException {
+        if (buf.getInt() != MAGIC || buf.getInt() != FORMAT)
+            throw new IOException("Not a compiled matrix snapshot");
+        if (!readString(buf).equals(fingerprint()))
+            return null; // permissions or normalization changed
+
+        Permission[] permissions = new Permission[buf.getInt()];
+        for (int i = 0; i < permissions.length; i++) {
+            String id = readString(buf);
+            permissions[i] = Permission.fromId(id);
+            if (permissions[i] == null)
+                return null;
+        }
+        String[] sids = new String[buf.getInt()];
+        for (int i = 0; i < sids.length; i++)
+            sids[i] = readString(buf);
+
+        Map<String,Saved> entries = new HashMap<String,Saved>();
+        int n = buf.getInt();
+        for (int i = 0; i < n; i++) {
+            String item = readString(buf);
+            String version = readString(buf);
+            Map<Permission,Set<String>> grants = new HashMap<Permission,Set<String>>();
+            int np = buf.getInt();
+            for (int j = 0; j < np; j++) {
+                Permission p = permissions[buf.getInt()];
+                int ns = buf.getInt();
+                Set<String> set = new HashSet<String>(ns * 4 / 3 + 1);
+                for (int k = 0; k < ns; k++)
+                    set.add(sids[buf.getInt()]);
+                grants.put(p, set);
+            }
+            entries.put(item, new Saved(item, version, grants));
+        }
+        return entries;
+    }
+
+    /**
+     * Writes the compiled form of every job and folder matrix whose configuration is saved
+     * and that has no expiring grants.
+     */
+    static void save(File f) throws IOException {
+        MatrixSaveQueue.flush();
+        final Map<String,Integer> sids = new LinkedHashMap<String,Integer>();
+        final Map<String,Integer> permissions = new LinkedHashMap<String,Integer>();
+        final List<Saved> entries = new ArrayList<Saved>();
+        SecurityContext orig = ACL.impersonate(ACL.SYSTEM);
+        try {
+            AuthorizationContainers.visitAll(new AuthorizationContainers.Visitor() {
+                public void visit(Item item, AuthorizationContainer matrix) {
+                    if (item == null || !MatrixChangeTracker.isSaved(item, matrix))
+                        return; // global, or changed since it was last saved
+                    if (!matrix.getGrantExpiries().isEmpty())
+                        return; // a grant may lapse before it is loaded again
+                    CompiledMatrix c = matrix.getCompiledMatrix();
+                    if (!c.isRestorable() || !c.isItem())
+                        return;
+                    for (Entry<Permission,Set<String>> e : c.getGrants().entrySet()) {
+                        index(permissions, e.getKey().getId());
+                        for (String sid : e.getValue())
+                            index(sids, sid);
+                    }
+                    entries.add(new Saved(item.getFullName(), matrix.getMatrixVersion(), c.getGrants()));
+                }
+            });
+        } finally {
+            SecurityContextHolder.setContext(orig);
+        }
+
+        File tmp = new File(f.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            writeString(out, fingerprint());
+            out.writeInt(permissions.size());
+            for (String id : permissions.keySet())
+                writeString(out, id);
+            out.writeInt(sids.size());
+            for (String sid : sids.keySet())
+                writeString(out, sid);
+            out.writeInt(entries.size());
+            for (Saved e : entries) {
+                writeString(out, e.item);
+                writeString(out, e.version);
+                out.writeInt(e.grants.size());
+                for (Entry<Permission,Set<String>> g : e.grants.entrySet()) {
+                    out.writeInt(permissions.get(g.getKey().getId()));
+                    out.writeInt(g.getValue().size());
+                    for (String sid : g.getValue())
+                        out.writeInt(sids.get(sid));
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(f) && !(f.delete() && tmp.renameTo(f)))
+            throw new IOException("Failed to rename " + tmp + " to " + f);
+        LOGGER.log(Level.FINE, "Saved {0} compiled matrices", entries.size());
+    }
+
+    private static void index(Map<String,Integer> table, String s) {
+        if (!table.containsKey(s))
+            table.put(s, table.size());
+    }
+
+    /**
+     * Identifies the permissions and the SID normalization policy the snapshot was compiled with.
+     */
+    private static String fingerprint() {
+        StringBuilder b = new StringBuilder(SidNormalizer.current().toString());
+        for (Permission p : Permission.getAll())
+            b.append('\n').append(p.getId());
+        return Util.getDigestOf(b.toString());
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] b = new byte[buf.getInt()];
+        buf.get(b);
+        return new String(b, UTF8);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(UTF8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    @Extension
+    public static final class ShutdownListener extends ItemListener {
+        @Override
+        public void onBeforeShutdown() {
+            if (DISABLED)
+                return;
+            try {
+                save(getFile());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save the compiled matrix snapshot", e);
+            }
+        }
+    }
+
+    /**
+     * Escape hatch to neither read nor write snapshots.
+     */
+    private static final boolean DISABLED = Boolean.getBoolean(MatrixSnapshot.class.getName() + ".disabled");
+
+    private static final Logger LOGGER = Logger.getLogger(MatrixSnapshot.class.getName());
+}
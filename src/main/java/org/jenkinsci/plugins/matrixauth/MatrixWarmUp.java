@@ -0,0 +1,203 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Item;
+import hudson.security.ACL;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compiles the ACL of every item with a matrix in the background once items are loaded,
+ * so that the first requests after a restart do not pay for it.
+ *
+ * <p>
+ * Nothing waits for this: ACLs that are needed before they were precompiled are compiled
+ * on demand, as they would be without it.
+ */
+public final class MatrixWarmUp {
+    private MatrixWarmUp() {}
+
+    private static volatile Progress progress;
+
+    /**
+     * Returns the progress of the current or last warm-up.
+     *
+     * @return
+     *      null if no warm-up has been started.
+     */
+    @CheckForNull
+    public static Progress getProgress() {
+        return progress;
+    }
+
+    @Initializer(after = InitMilestone.JOB_LOADED, fatal = false)
+    public static void start() {
+        if (DISABLED || AuthorizationContainers.of(null) == null) {
+            return;
+        }
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    warmUp();
+                } catch (InterruptedException e) {
+                    LOGGER.log(Level.FINE, "Interrupted while precompiling authorization matrices", e);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to precompile authorization matrices", e);
+                }
+            }
+        }, "Matrix authorization warm-up");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Loads the {@link MatrixSnapshot} if that was not done yet, so that the matrices restored from it
+     * are taken instead of compiled again, then runs {@link #compileAll()}.
+     */
+    static Progress warmUp() throws IOException, InterruptedException {
+        MatrixSnapshot.init();
+        return compileAll();
+    }
+
+    /**
+     * Compiles the ACL of every item with a matrix, using {@link #THREADS} threads, and waits for completion.
+     */
+    public static Progress compileAll() throws IOException, InterruptedException {
+        final Progress p = new Progress();
+        progress = p;
+
+        final List<Item> items = new ArrayList<Item>();
+        SecurityContext orig = ACL.impersonate(ACL.SYSTEM);
+        try {
+            AuthorizationContainers.visitAll(new AuthorizationContainers.Visitor() {
+                public void visit(Item item, AuthorizationContainer matrix) {
+                    if (item == null) {
+                        matrix.getCompiledMatrix();
+                    } else {
+                        items.add(item);
+                    }
+                }
+            });
+        } finally {
+            SecurityContextHolder.setContext(orig);
+        }
+        p.total = items.size();
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS,
+                new NamingThreadFactory(new DaemonThreadFactory(), "Matrix authorization warm-up"));
+        try {
+            for (final Item item : items) {
+                pool.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            ACL acl = item.getACL();
+                            if (acl instanceof MatrixACL) {
+                                ((MatrixACL) acl).getCompiledMatrix();
+                            }
+                        } catch (RuntimeException e) {
+                            LOGGER.log(Level.FINE, "Failed to precompile the ACL of " + item.getFullName(), e);
+                        } finally {
+                            p.done.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } finally {
+            pool.shutdownNow();
+        }
+        p.finished = System.currentTimeMillis();
+        LOGGER.log(Level.INFO, "Precompiled {0} authorization matrices in {1} ms", new Object[] {p.getTotal(), p.getDuration()});
+        return p;
+    }
+
+    /**
+     * Progress and timing of a warm-up.
+     */
+    public static final class Progress {
+        private final long started = System.currentTimeMillis();
+        private volatile long finished;
+        private volatile int total = -1;
+        private final AtomicInteger done = new AtomicInteger();
+
+        /**
+         * When the warm-up started, in milliseconds since the epoch.
+         */
+        public long getStarted() {
+            return started;
+        }
+
+        /**
+         * Number of items to compile, or -1 while they are still being listed.
+         */
+        public int getTotal() {
+            return total;
+        }
+
+        public int getDone() {
+            return done.get();
+        }
+
+        public boolean isFinished() {
+            return finished != 0;
+        }
+
+        /**
+         * How long the warm-up took, or has been running so far, in milliseconds.
+         */
+        public long getDuration() {
+            long f = finished;
+            return (f != 0 ? f : System.currentTimeMillis()) - started;
+        }
+    }
+
+    /**
+     * Escape hatch to skip the warm-up entirely.
+     */
+    private static final boolean DISABLED = Boolean.getBoolean(MatrixWarmUp.class.getName() + ".disabled");
+
+    /**
+     * Number of threads compiling ACLs.
+     */
+    private static final int THREADS = Integer.getInteger(MatrixWarmUp.class.getName() + ".threads", Runtime.getRuntime().availableProcessors());
+
+    private static final Logger LOGGER = Logger.getLogger(MatrixWarmUp.class.getName());
+}
@@ -0,0 +1,62 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.security.Permission;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Assigns each {@link Permission} a small, stable integer, so that sets of permissions
+ * can be kept as bit sets.
+ *
+ * <p>
+ * Numbers are handed out as permissions are first seen, and are only valid
+ * for the lifetime of this JVM.
+ */
+public final class PermissionIndex {
+    private PermissionIndex() {}
+
+    /**
+     * Replaced, never modified, when a permission is added.
+     */
+    private static volatile Map<Permission,Integer> index = new IdentityHashMap<Permission,Integer>();
+
+    public static int of(Permission p) {
+        Integer i = index.get(p);
+        return i != null ? i : register(p);
+    }
+
+    private static synchronized int register(Permission p) {
+        Integer i = index.get(p);
+        if (i == null) {
+            Map<Permission,Integer> copy = new IdentityHashMap<Permission,Integer>(index);
+            i = copy.size();
+            copy.put(p, i);
+            index = copy;
+        }
+        return i;
+    }
+}
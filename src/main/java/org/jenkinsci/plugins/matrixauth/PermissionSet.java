@@ -0,0 +1,220 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.security.AuthorizationStrategy;
+import hudson.security.GlobalMatrixAuthorizationStrategy;
+import hudson.security.Permission;
+import jenkins.model.Jenkins;
+
+import javax.annotation.CheckForNull;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Named set of permissions, defined once on {@link GlobalMatrixAuthorizationStrategy}
+ * and granted to SIDs by name from job and folder matrices.
+ *
+ * <p>
+ * The persisted form is <tt>name:PERMISSIONID,PERMISSIONID,...</tt>,
+ * and a grant of a set to a SID is persisted as <tt>name:sid</tt>.
+ */
+public final class PermissionSet {
+    private final String name;
+    private final Set<Permission> permissions;
+    private final BitSet bits = new BitSet();
+
+    public PermissionSet(String name, Collection<Permission> permissions) {
+        if (!isValidName(name))
+            throw new IllegalArgumentException("Invalid permission set name: '" + name + "'");
+        this.name = name;
+        this.permissions = Collections.unmodifiableSet(new LinkedHashSet<Permission>(permissions));
+        for (Permission p : permissions)
+            bits.set(PermissionIndex.of(p));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Set<Permission> getPermissions() {
+        return permissions;
+    }
+
+    /**
+     * The permissions of this set, by {@link PermissionIndex}. Shared, do not modify.
+     */
+    /*package*/ BitSet getBits() {
+        return bits;
+    }
+
+    /**
+     * Returns the sorted IDs of the permissions in this set.
+     */
+    public List<String> getPermissionIds() {
+        List<String> ids = new ArrayList<String>();
+        for (Permission p : permissions)
+            ids.add(p.getId());
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Returns the persisted form, <tt>name:PERMISSIONID,...</tt>.
+     */
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder(name).append(':');
+        List<String> ids = getPermissionIds();
+        for (int i = 0; i < ids.size(); i++) {
+            if (i > 0)
+                b.append(',');
+            b.append(ids.get(i));
+        }
+        return b.toString();
+    }
+
+    /**
+     * Parses the form produced by {@link #toString()}. Permissions that do not exist are skipped.
+     *
+     * @throws IllegalArgumentException
+     *      if the name is missing or invalid.
+     */
+    public static PermissionSet fromString(String s) {
+        int idx = s.indexOf(':');
+        if (idx < 0)
+            throw new IllegalArgumentException("Failed to parse '" + s + "' --- expected name:permissions");
+        List<Permission> permissions = new ArrayList<Permission>();
+        for (String id : s.substring(idx + 1).split(",")) {
+            id = id.trim();
+            if (id.length() == 0)
+                continue;
+            Permission p = Permission.fromId(id);
+            if (p == null) {
+                LOGGER.log(Level.WARNING, "Skipping non-existent permission {0} in permission set {1}", new Object[] {id, s.substring(0, idx)});
+            } else {
+                permissions.add(p);
+            }
+        }
+        return new PermissionSet(s.substring(0, idx).trim(), permissions);
+    }
+
+    /**
+     * Set names are used as keys in the persisted <tt>name:...</tt> forms, so they cannot contain colons.
+     */
+    public static boolean isValidName(@CheckForNull String name) {
+        return name != null && NAME.matcher(name).matches();
+    }
+
+    /**
+     * Parses one set per line, as edited on the global security page.
+     *
+     * @throws IllegalArgumentException
+     *      if a line cannot be parsed or a name is used twice.
+     */
+    public static Map<String,PermissionSet> parseDefinitions(String text) {
+        Map<String,PermissionSet> sets = new TreeMap<String,PermissionSet>();
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.length() == 0)
+                continue;
+            PermissionSet set = fromString(line);
+            if (sets.put(set.getName(), set) != null)
+                throw new IllegalArgumentException("Permission set '" + set.getName() + "' is defined twice");
+        }
+        return Collections.unmodifiableMap(sets);
+    }
+
+    public static String formatDefinitions(Map<String,PermissionSet> sets) {
+        StringBuilder b = new StringBuilder();
+        for (PermissionSet set : sets.values())
+            b.append(set).append('\n');
+        return b.toString();
+    }
+
+    /**
+     * Parses one <tt>name:sid</tt> grant per line, as edited on job and folder configuration pages.
+     *
+     * @return
+     *      SIDs by set name.
+     * @throws IllegalArgumentException
+     *      if a line cannot be parsed.
+     */
+    public static Map<String,Set<String>> parseGrants(String text) {
+        Map<String,Set<String>> grants = new TreeMap<String,Set<String>>();
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.length() == 0)
+                continue;
+            int idx = line.indexOf(':');
+            String name = idx < 0 ? null : line.substring(0, idx).trim();
+            String sid = idx < 0 ? "" : line.substring(idx + 1).trim();
+            if (!isValidName(name) || sid.length() == 0)
+                throw new IllegalArgumentException("Failed to parse '" + line + "' --- expected set:sid");
+            Set<String> sids = grants.get(name);
+            if (sids == null)
+                grants.put(name, sids = new TreeSet<String>());
+            sids.add(sid);
+        }
+        return grants;
+    }
+
+    public static String formatGrants(Map<String,? extends Set<String>> grants) {
+        StringBuilder b = new StringBuilder();
+        for (Map.Entry<String,? extends Set<String>> e : new TreeMap<String,Set<String>>(grants).entrySet()) {
+            for (String sid : new TreeSet<String>(e.getValue()))
+                b.append(e.getKey()).append(':').append(sid).append('\n');
+        }
+        return b.toString();
+    }
+
+    /**
+     * Returns the permission sets currently defined.
+     *
+     * @return
+     *      read-only. The same instance is returned until the sets are redefined,
+     *      so callers can compare it by identity to detect changes.
+     */
+    public static Map<String,PermissionSet> registry() {
+        AuthorizationStrategy s = Jenkins.getActiveInstance().getAuthorizationStrategy();
+        if (s instanceof GlobalMatrixAuthorizationStrategy)
+            return ((GlobalMatrixAuthorizationStrategy) s).getPermissionSets();
+        return Collections.emptyMap();
+    }
+
+    private static final Pattern NAME = Pattern.compile("[\\w.-]+");
+
+    private static final Logger LOGGER = Logger.getLogger(PermissionSet.class.getName());
+}
@@ -0,0 +1,432 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import hudson.model.Descriptor.FormException;
+import hudson.model.Item;
+import hudson.security.Permission;
+import hudson.util.RobustReflectionConverter;
+import net.sf.json.JSONObject;
+
+import javax.annotation.CheckForNull;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The grants of a job or folder {@code AuthorizationMatrixProperty}, with the logic both properties share:
+ * building the matrix, reading it from the configuration form and persisting it.
+ *
+ * <p>
+ * Like the properties, this object is considered immutable once populated.
+ */
+public final class PropertyMatrix {
+    /**
+     * List up all permissions that are granted.
+     *
+     * Strings are either the granted authority or the principal, which is not
+     * distinguished.
+     */
+    private final Map<Permission,Set<String>> grantedPermissions = new HashMap<Permission,Set<String>>();
+
+    /**
+     * Set when the SID sets in {@link #grantedPermissions} are shared with the matrix
+     * a {@link MatrixDelta} was applied to, so they must be copied before being modified.
+     */
+    private transient boolean sharedGrants;
+
+    private transient volatile String matrixVersion;
+
+    private transient volatile CompiledMatrix compiled;
+
+    /**
+     * {@link PermissionSet}s granted by name, with the SIDs they are granted to.
+     */
+    private final Map<String,Set<String>> permissionSetGrants = new TreeMap<String,Set<String>>();
+
+    /**
+     * When grants of {@link #grantedPermissions} expire, by <tt>PERMISSIONID:sid</tt>.
+     */
+    private final Map<String,Long> grantExpiries = new TreeMap<String,Long>();
+
+    /**
+     * Permissions granted to every SID matching a {@link SidPatterns pattern}, by permission.
+     */
+    private final Map<Permission,Set<String>> sidPatterns = new HashMap<Permission,Set<String>>();
+
+    public PropertyMatrix() {
+    }
+
+    public PropertyMatrix(Map<Permission,? extends Set<String>> grantedPermissions) {
+        // do a deep copy to be safe
+        for (Entry<Permission,? extends Set<String>> e : grantedPermissions.entrySet())
+            this.grantedPermissions.put(e.getKey(), new HashSet<String>(e.getValue()));
+    }
+
+    /**
+     * Returns a matrix with the given grants instead of those of this one, keeping the permission set grants,
+     * the SID patterns and the expiries of the grants that remain.
+     */
+    public PropertyMatrix withGrantedPermissions(Map<Permission,? extends Set<String>> grantedPermissions) {
+        PropertyMatrix m = new PropertyMatrix(grantedPermissions);
+        m.addPermissionSetGrants(permissionSetGrants);
+        m.addSidPatterns(sidPatterns);
+        m.grantExpiries.putAll(GrantExpiry.retain(grantExpiries, m.grantedPermissions));
+        return m;
+    }
+
+    /**
+     * Returns a matrix with the given permission set grants instead of those of this one, keeping everything else.
+     */
+    public PropertyMatrix withPermissionSetGrants(Map<String,? extends Set<String>> permissionSetGrants) {
+        PropertyMatrix m = new PropertyMatrix(grantedPermissions);
+        m.addPermissionSetGrants(permissionSetGrants);
+        m.addSidPatterns(sidPatterns);
+        m.grantExpiries.putAll(grantExpiries);
+        return m;
+    }
+
+    /**
+     * @see AuthorizationContainer#getGrantedPermissions()
+     */
+    public Map<Permission,Set<String>> getGrantedPermissions() {
+        return Collections.unmodifiableMap(grantedPermissions);
+    }
+
+    /**
+     * @see AuthorizationContainer#getPermissionSetGrants()
+     */
+    public Map<String,Set<String>> getPermissionSetGrants() {
+        return Collections.unmodifiableMap(permissionSetGrants);
+    }
+
+    public Map<String,Long> getGrantExpiries() {
+        return Collections.unmodifiableMap(grantExpiries);
+    }
+
+    /**
+     * Returns the permissions granted to {@link SidPatterns}, with the patterns they are granted to.
+     *
+     * @return
+     *      read-only. never null.
+     */
+    public Map<Permission,Set<String>> getSidPatterns() {
+        return Collections.unmodifiableMap(sidPatterns);
+    }
+
+    /**
+     * @see AuthorizationContainer#getMatrixVersion()
+     */
+    public String getMatrixVersion() {
+        String v = matrixVersion;
+        if (v == null)
+            matrixVersion = v = MatrixDigest.of(grantedPermissions, permissionSetGrants, grantExpiries, sidPatterns);
+        return v;
+    }
+
+    /**
+     * Returns the lookup structures derived from {@link #grantedPermissions}, {@link #permissionSetGrants} and {@link #sidPatterns},
+     * building them on first use, and again when the {@link PermissionSet}s are redefined.
+     *
+     * @param holder
+     *      the property holding this matrix, whose compiled form may have been restored by {@link MatrixSnapshot}.
+     * @param owner
+     *      the job or folder the property is configured on, if any yet.
+     */
+    public CompiledMatrix getCompiledMatrix(AuthorizationContainer holder, @CheckForNull Item owner) {
+        CompiledMatrix c = compiled;
+        if (c == null)
+            c = MatrixSnapshot.take(holder);
+        if (c == null || !c.isCurrent() || c.getItem() != owner)
+            c = CompiledMatrix.compileItem(owner, grantedPermissions, permissionSetGrants, sidPatterns);
+        compiled = c;
+        return c;
+    }
+
+    /**
+     * Adds to {@link #grantedPermissions}.
+     */
+    public void add(Permission p, String sid) {
+        sid = SidNormalizer.current().normalize(sid);
+        Set<String> set = grantedPermissions.get(p);
+        if (set != null && set.contains(sid))
+            return; // already granted; keep the matrix version
+        if (sharedGrants) {
+            for (Entry<Permission,Set<String>> e : grantedPermissions.entrySet())
+                e.setValue(new HashSet<String>(e.getValue()));
+            sharedGrants = false;
+            set = grantedPermissions.get(p);
+        }
+        if (set == null)
+            grantedPermissions.put(p, set = new HashSet<String>());
+        set.add(sid);
+        matrixVersion = null;
+        compiled = null;
+    }
+
+    /**
+     * Adds to {@link #grantedPermissions} a grant that {@linkplain GrantExpiry expires} at the given time.
+     * If the grant already exists without expiry, it stays permanent.
+     */
+    public void add(Permission p, String sid, long expiresAt) {
+        String normalized = SidNormalizer.current().normalize(sid);
+        Set<String> set = grantedPermissions.get(p);
+        if (set != null && set.contains(normalized) && !grantExpiries.containsKey(GrantExpiry.key(p, normalized)))
+            return;
+        addExpiring(p, sid, expiresAt);
+    }
+
+    /**
+     * Like {@link #add(Permission, String, long)}, but also makes a permanent grant expire,
+     * as the expiring grants submitted on the configuration page do.
+     */
+    private void addExpiring(Permission p, String sid, long expiresAt) {
+        add(p, sid);
+        grantExpiries.put(GrantExpiry.key(p, SidNormalizer.current().normalize(sid)), expiresAt);
+        matrixVersion = null;
+    }
+
+    private void addExpiringGrants(Map<String,Long> expiries) {
+        for (Entry<String,Long> e : expiries.entrySet())
+            addExpiring(GrantExpiry.permissionOf(e.getKey()), GrantExpiry.sidOf(e.getKey()), e.getValue());
+    }
+
+    /**
+     * Grants {@code to} to every SID {@code from} is granted to directly.
+     *
+     * @return
+     *      true if that changed anything.
+     */
+    public boolean copyGrants(Permission from, Permission to) {
+        Set<String> sids = grantedPermissions.get(from);
+        if (sids == null)
+            return false;
+        Set<String> existing = grantedPermissions.get(to);
+        if (existing != null && existing.containsAll(sids))
+            return false;
+        for (String sid : sids.toArray(new String[sids.size()]))
+            add(to, sid);
+        return true;
+    }
+
+    /**
+     * Grants a {@link PermissionSet} by name.
+     */
+    private void addPermissionSetGrant(String name, String sid) {
+        sid = SidNormalizer.current().normalize(sid);
+        Set<String> sids = permissionSetGrants.get(name);
+        if (sids == null)
+            permissionSetGrants.put(name, sids = new TreeSet<String>());
+        if (sids.add(sid)) {
+            matrixVersion = null;
+            compiled = null;
+        }
+    }
+
+    private void addPermissionSetGrants(Map<String,? extends Set<String>> grants) {
+        for (Entry<String,? extends Set<String>> e : grants.entrySet())
+            for (String sid : e.getValue())
+                addPermissionSetGrant(e.getKey(), sid);
+    }
+
+    /**
+     * Grants a permission to every SID matching the pattern.
+     */
+    private void addSidPattern(Permission p, String pattern) {
+        if (!SidPatterns.isPattern(pattern))
+            throw new IllegalArgumentException("Not a SID pattern: '" + pattern + "'");
+        pattern = SidNormalizer.current().normalize(pattern);
+        Set<String> patterns = sidPatterns.get(p);
+        if (patterns == null)
+            sidPatterns.put(p, patterns = new TreeSet<String>());
+        if (patterns.add(pattern)) {
+            matrixVersion = null;
+            compiled = null;
+        }
+    }
+
+    private void addSidPatterns(Map<Permission,? extends Set<String>> grants) {
+        for (Entry<Permission,? extends Set<String>> e : grants.entrySet())
+            for (String pattern : e.getValue())
+                addSidPattern(e.getKey(), pattern);
+    }
+
+    /**
+     * Populates {@link #grantedPermissions} with SID sets shared with another matrix.
+     */
+    private void addShared(Map<Permission,Set<String>> grants) {
+        grantedPermissions.putAll(grants);
+        sharedGrants = true;
+        matrixVersion = null;
+        compiled = null;
+    }
+
+    /**
+     * Reads the matrix submitted on the configuration page.
+     *
+     * @param current
+     *      the matrix currently in effect, to which a {@link MatrixDelta} is applied.
+     */
+    public void fromForm(JSONObject formData, @CheckForNull AuthorizationContainer current) throws FormException {
+        if (formData.has("permissionSetGrants")) {
+            try {
+                addPermissionSetGrants(PermissionSet.parseGrants(formData.getString("permissionSetGrants")));
+            } catch (IllegalArgumentException e) {
+                throw new FormException(e.getMessage(), "permissionSetGrants");
+            }
+        }
+
+        if (formData.has("sidPatterns")) {
+            try {
+                addSidPatterns(SidPatterns.parseGrants(formData.getString("sidPatterns")));
+            } catch (IllegalArgumentException e) {
+                throw new FormException(e.getMessage(), "sidPatterns");
+            }
+        }
+
+        MatrixDelta delta = MatrixDelta.fromForm(formData);
+        if (delta != null) {
+            // only the changed cells were submitted; apply them to the matrix currently in effect
+            addShared(delta.applyTo(current));
+        } else {
+            Map<String,Object> data = formData.getJSONObject("data");
+            for (Map.Entry<String,Object> r : data.entrySet()) {
+                String sid = r.getKey();
+                if (!(r.getValue() instanceof JSONObject)) {
+                    throw new FormException("not an object: " + formData, "data");
+                }
+                Map<String,Object> value = (JSONObject) r.getValue();
+                for (Map.Entry<String,Object> e : value.entrySet()) {
+                    if (!(e.getValue() instanceof Boolean)) {
+                        throw new FormException("not a boolean: " + formData, "data");
+                    }
+                    if ((Boolean) e.getValue()) {
+                        Permission p = Permission.fromId(e.getKey());
+                        add(p, sid);
+                    }
+                }
+            }
+        }
+        addExpiringGrants(GrantExpiry.fromForm(formData));
+    }
+
+    /**
+     * Writes the grants as <tt>permission</tt>, <tt>permissionSet</tt> and <tt>sidPattern</tt> elements.
+     */
+    public void marshal(HierarchicalStreamWriter writer) {
+        for (Entry<Permission,Set<String>> e : grantedPermissions.entrySet()) {
+            String p = e.getKey().getId();
+            for (String sid : e.getValue()) {
+                writer.startNode("permission");
+                Long expires = grantExpiries.get(p + ':' + sid);
+                if (expires != null)
+                    writer.addAttribute("expires", GrantExpiry.format(expires));
+                writer.setValue(p + ':' + sid);
+                writer.endNode();
+            }
+        }
+        for (Entry<String,Set<String>> e : permissionSetGrants.entrySet()) {
+            for (String sid : e.getValue()) {
+                writer.startNode("permissionSet");
+                writer.setValue(e.getKey() + ':' + sid);
+                writer.endNode();
+            }
+        }
+        for (Entry<Permission,Set<String>> e : sidPatterns.entrySet()) {
+            for (String pattern : e.getValue()) {
+                writer.startNode("sidPattern");
+                writer.setValue(e.getKey().getId() + ':' + pattern);
+                writer.endNode();
+            }
+        }
+    }
+
+    /**
+     * Reads the remaining children of {@code reader} as written by {@link #marshal(HierarchicalStreamWriter)}.
+     * Entries that cannot be read are skipped and reported to {@code context}.
+     */
+    public void unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+        while (reader.hasMoreChildren()) {
+            reader.moveDown();
+            try {
+                if ("permissionSet".equals(reader.getNodeName()))
+                    addPermissionSetGrant(reader.getValue());
+                else if ("sidPattern".equals(reader.getNodeName()))
+                    addSidPattern(reader.getValue());
+                else
+                    add(reader.getValue(), reader.getAttribute("expires"));
+            } catch (IllegalArgumentException ex) {
+                LOGGER.log(Level.WARNING, "Skipping a non-existent permission", ex);
+                RobustReflectionConverter.addErrorInContext(context, ex);
+            }
+            reader.moveUp();
+        }
+    }
+
+    /**
+     * Like {@link #add(Permission, String)}, but takes both parameters from a single string of the form
+     * <tt>PERMISSIONID:sid</tt>, for a grant persisted with an optional expiry time.
+     * Grants that expired while Jenkins was not running are skipped.
+     */
+    private void add(String shortForm, @CheckForNull String expires) {
+        int idx = shortForm.indexOf(':');
+        Permission p = idx < 0 ? null : Permission.fromId(shortForm.substring(0, idx));
+        if (p == null)
+            throw new IllegalArgumentException("Failed to parse '" + shortForm + "' --- no such permission");
+        if (expires == null) {
+            add(p, shortForm.substring(idx + 1));
+        } else {
+            long t = GrantExpiry.parse(expires);
+            if (t > System.currentTimeMillis())
+                add(p, shortForm.substring(idx + 1), t);
+        }
+    }
+
+    private void addPermissionSetGrant(String shortForm) {
+        int idx = shortForm.indexOf(':');
+        if (idx < 0 || !PermissionSet.isValidName(shortForm.substring(0, idx)))
+            throw new IllegalArgumentException("Failed to parse '" + shortForm + "' --- expected set:sid");
+        addPermissionSetGrant(shortForm.substring(0, idx), shortForm.substring(idx + 1));
+    }
+
+    private void addSidPattern(String shortForm) {
+        int idx = shortForm.indexOf(':');
+        Permission p = idx < 0 ? null : Permission.fromId(shortForm.substring(0, idx));
+        if (p == null)
+            throw new IllegalArgumentException("Failed to parse '" + shortForm + "' --- no such permission");
+        addSidPattern(p, shortForm.substring(idx + 1));
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PropertyMatrix.class.getName());
+}
@@ -0,0 +1,143 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.security.AuthorizationStrategy;
+import hudson.security.GlobalMatrixAuthorizationStrategy;
+import jenkins.model.Jenkins;
+
+import java.util.Locale;
+
+/**
+ * How SIDs are compared in the matrices, for security realms that do not distinguish
+ * {@code DOMAIN\Developers} from {@code developers}.
+ *
+ * <p>
+ * SIDs are normalized when they are added to a matrix, so that rows differing only in case or
+ * domain are merged, and once for each SID of a user when their permissions are checked.
+ * The policy is configured on the {@link GlobalMatrixAuthorizationStrategy} and applies to
+ * job and folder matrices too.
+ *
+ * <p>
+ * There is a single instance per combination of options, so policies can be compared by identity,
+ * as {@link CompiledMatrix#isCurrent()} does.
+ */
+public final class SidNormalizer {
+    /**
+     * Leaves SIDs as they are, which is the default.
+     */
+    public static final SidNormalizer IDENTITY = new SidNormalizer(false, false);
+
+    private static final String CASE_INSENSITIVE = "caseInsensitive";
+    private static final String STRIP_DOMAIN = "stripDomain";
+
+    /**
+     * All policies, indexed by {@link #index(boolean, boolean)}.
+     */
+    private static final SidNormalizer[] POLICIES = {
+            IDENTITY, new SidNormalizer(true, false), new SidNormalizer(false, true), new SidNormalizer(true, true)
+    };
+
+    private final boolean caseInsensitive;
+    private final boolean stripDomain;
+
+    private SidNormalizer(boolean caseInsensitive, boolean stripDomain) {
+        this.caseInsensitive = caseInsensitive;
+        this.stripDomain = stripDomain;
+    }
+
+    /**
+     * @param caseInsensitive
+     *      whether SIDs differing only in case are the same.
+     * @param stripDomain
+     *      whether the {@code DOMAIN\} prefix of SIDs is ignored.
+     */
+    public static SidNormalizer of(boolean caseInsensitive, boolean stripDomain) {
+        return POLICIES[index(caseInsensitive, stripDomain)];
+    }
+
+    private static int index(boolean caseInsensitive, boolean stripDomain) {
+        return (caseInsensitive ? 1 : 0) | (stripDomain ? 2 : 0);
+    }
+
+    /**
+     * Returns the policy of the current authorization strategy.
+     */
+    public static SidNormalizer current() {
+        Jenkins j = Jenkins.getInstance();
+        if (j == null)
+            return IDENTITY;
+        AuthorizationStrategy s = j.getAuthorizationStrategy();
+        return s instanceof GlobalMatrixAuthorizationStrategy ? ((GlobalMatrixAuthorizationStrategy) s).getSidNormalizer() : IDENTITY;
+    }
+
+    public boolean isCaseInsensitive() {
+        return caseInsensitive;
+    }
+
+    public boolean isStripDomain() {
+        return stripDomain;
+    }
+
+    public boolean isIdentity() {
+        return this == IDENTITY;
+    }
+
+    public String normalize(String sid) {
+        if (this == IDENTITY)
+            return sid;
+        if (stripDomain) {
+            int i = sid.indexOf('\\');
+            if (i >= 0)
+                sid = sid.substring(i + 1);
+        }
+        if (caseInsensitive)
+            sid = sid.toLowerCase(Locale.ENGLISH);
+        return sid;
+    }
+
+    /**
+     * Returns the persisted form, a space-separated list of the options that are on.
+     */
+    @Override
+    public String toString() {
+        if (caseInsensitive && stripDomain)
+            return CASE_INSENSITIVE + ' ' + STRIP_DOMAIN;
+        return caseInsensitive ? CASE_INSENSITIVE : stripDomain ? STRIP_DOMAIN : "";
+    }
+
+    /**
+     * Parses {@link #toString()}, ignoring unknown options.
+     */
+    public static SidNormalizer fromString(String s) {
+        boolean caseInsensitive = false, stripDomain = false;
+        for (String option : s.trim().split("\\s+")) {
+            if (option.equals(CASE_INSENSITIVE))
+                caseInsensitive = true;
+            else if (option.equals(STRIP_DOMAIN))
+                stripDomain = true;
+        }
+        return of(caseInsensitive, stripDomain);
+    }
+}
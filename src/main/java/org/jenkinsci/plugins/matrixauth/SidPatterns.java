@@ -0,0 +1,277 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.security.Permission;
+
+import javax.annotation.CheckForNull;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Grants to SID patterns such as <tt>team-foo-*</tt> or <tt>team-*-ops</tt>, where <tt>*</tt> stands
+ * for any run of characters, compiled into a trie keyed by the text before the first <tt>*</tt>.
+ *
+ * <p>
+ * Matching a SID walks the trie once along its characters, collecting the permissions of every pattern
+ * met on the way, so the cost does not grow with the number of patterns sharing a prefix.
+ * Patterns with a second <tt>*</tt> or text after the first are kept at the node of their prefix
+ * and only compared with the rest of SIDs that reach it.
+ */
+public final class SidPatterns {
+    public static final SidPatterns NONE = new SidPatterns(Collections.<String,BitSet>emptyMap());
+
+    /**
+     * Permissions by {@link PermissionIndex}, by normalized pattern.
+     */
+    private final Map<String,BitSet> patterns;
+
+    private final Node root = new Node();
+
+    private SidPatterns(Map<String,BitSet> patterns) {
+        this.patterns = patterns;
+        for (Entry<String,BitSet> e : patterns.entrySet()) {
+            String pattern = e.getKey();
+            int star = pattern.indexOf('*');
+            Node n = root;
+            for (int i = 0; i < star; i++)
+                n = n.child(pattern.charAt(i));
+            if (star == pattern.length() - 1)
+                n.prefixBits.or(e.getValue());
+            else
+                n.tails.add(new Tail(pattern, star + 1, e.getValue()));
+        }
+    }
+
+    private static final class Node {
+        final Map<Character,Node> children = new HashMap<Character,Node>(4);
+        /**
+         * Permissions of the patterns that end with the <tt>*</tt> following this prefix.
+         */
+        final BitSet prefixBits = new BitSet();
+        final List<Tail> tails = new ArrayList<Tail>(0);
+
+        Node child(char c) {
+            Node n = children.get(c);
+            if (n == null)
+                children.put(c, n = new Node());
+            return n;
+        }
+    }
+
+    /**
+     * What follows the first <tt>*</tt> of a pattern that is not a plain prefix.
+     */
+    private static final class Tail {
+        final String pattern;
+        final int start;
+        final BitSet bits;
+
+        Tail(String pattern, int start, BitSet bits) {
+            this.pattern = pattern;
+            this.start = start;
+            this.bits = bits;
+        }
+    }
+
+    /**
+     * Compiles pattern grants, normalizing the patterns as SIDs are.
+     */
+    public static SidPatterns compile(Map<Permission,? extends Set<String>> patternGrants, SidNormalizer normalizer) {
+        if (patternGrants.isEmpty())
+            return NONE;
+        Map<String,BitSet> patterns = new HashMap<String,BitSet>();
+        for (Entry<Permission,? extends Set<String>> e : patternGrants.entrySet()) {
+            for (String pattern : e.getValue()) {
+                pattern = normalizer.normalize(pattern);
+                BitSet bits = patterns.get(pattern);
+                if (bits == null)
+                    patterns.put(pattern, bits = new BitSet());
+                bits.set(PermissionIndex.of(e.getKey()));
+            }
+        }
+        return patterns.isEmpty() ? NONE : new SidPatterns(patterns);
+    }
+
+    /**
+     * Patterns granting whatever either of the given ones grants.
+     */
+    public static SidPatterns union(SidPatterns a, SidPatterns b) {
+        if (a.isEmpty())
+            return b;
+        if (b.isEmpty())
+            return a;
+        Map<String,BitSet> patterns = new HashMap<String,BitSet>(b.patterns);
+        for (Entry<String,BitSet> e : a.patterns.entrySet()) {
+            BitSet bits = patterns.get(e.getKey());
+            if (bits == null) {
+                patterns.put(e.getKey(), e.getValue());
+            } else {
+                bits = (BitSet) bits.clone();
+                bits.or(e.getValue());
+                patterns.put(e.getKey(), bits);
+            }
+        }
+        return new SidPatterns(patterns);
+    }
+
+    public boolean isEmpty() {
+        return patterns.isEmpty();
+    }
+
+    /**
+     * Returns the permissions granted to the given SID by all the patterns it matches, by {@link PermissionIndex}.
+     *
+     * @param sid
+     *      already {@linkplain SidNormalizer#normalize normalized}.
+     * @return
+     *      null if no pattern matches.
+     */
+    @CheckForNull
+    public BitSet match(String sid) {
+        BitSet r = null;
+        Node n = root;
+        for (int i = 0; ; i++) {
+            if (!n.prefixBits.isEmpty())
+                r = or(r, n.prefixBits);
+            for (Tail t : n.tails) {
+                if (matches(t.pattern, t.start, sid, i))
+                    r = or(r, t.bits);
+            }
+            if (i == sid.length() || (n = n.children.get(sid.charAt(i))) == null)
+                return r;
+        }
+    }
+
+    private static BitSet or(@CheckForNull BitSet r, BitSet bits) {
+        if (r == null)
+            return bits; // shared; cloned before any modification
+        if (bits == r)
+            return r;
+        BitSet b = (BitSet) r.clone();
+        b.or(bits);
+        return b;
+    }
+
+    /**
+     * Returns the first pattern, in sorted order, that matches the SID and grants the permission itself.
+     */
+    @CheckForNull
+    String find(String sid, Permission p) {
+        int i = PermissionIndex.of(p);
+        for (String pattern : new TreeSet<String>(patterns.keySet())) {
+            if (patterns.get(pattern).get(i) && matches(pattern, sid))
+                return pattern;
+        }
+        return null;
+    }
+
+    /**
+     * Whether the SID matches the pattern, where <tt>*</tt> stands for any run of characters.
+     */
+    public static boolean matches(String pattern, String sid) {
+        int star = pattern.indexOf('*');
+        if (star < 0)
+            return pattern.equals(sid);
+        return sid.startsWith(pattern.substring(0, star)) && matches(pattern, star + 1, sid, star);
+    }
+
+    /**
+     * Matches <tt>*</tt> followed by {@code pattern} from {@code p} against {@code sid} from {@code s},
+     * backtracking only to the last <tt>*</tt> seen.
+     */
+    private static boolean matches(String pattern, int p, String sid, int s) {
+        int starP = p, starS = s;
+        while (s < sid.length()) {
+            if (p < pattern.length() && pattern.charAt(p) == '*') {
+                starP = ++p;
+                starS = s;
+            } else if (p < pattern.length() && pattern.charAt(p) == sid.charAt(s)) {
+                p++;
+                s++;
+            } else {
+                p = starP;
+                s = ++starS;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*')
+            p++;
+        return p == pattern.length();
+    }
+
+    /**
+     * Whether the given string is a SID pattern rather than a SID.
+     */
+    public static boolean isPattern(@CheckForNull String sid) {
+        return sid != null && sid.indexOf('*') >= 0;
+    }
+
+    /**
+     * Parses pattern grants of the form <tt>PERMISSIONID:pattern</tt>, one per line.
+     *
+     * @throws IllegalArgumentException
+     *      if a line cannot be parsed.
+     */
+    public static Map<Permission,Set<String>> parseGrants(String text) {
+        Map<Permission,Set<String>> grants = new HashMap<Permission,Set<String>>();
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.length() == 0)
+                continue;
+            int idx = line.indexOf(':');
+            Permission p = idx < 0 ? null : Permission.fromId(line.substring(0, idx).trim());
+            String pattern = idx < 0 ? "" : line.substring(idx + 1).trim();
+            if (p == null || !isPattern(pattern))
+                throw new IllegalArgumentException("Failed to parse '" + line + "' --- expected PERMISSIONID:pattern with a *");
+            Set<String> patterns = grants.get(p);
+            if (patterns == null)
+                grants.put(p, patterns = new TreeSet<String>());
+            patterns.add(pattern);
+        }
+        return grants;
+    }
+
+    /**
+     * Formats pattern grants as {@link #parseGrants(String)} reads them.
+     */
+    public static String formatGrants(Map<Permission,? extends Set<String>> grants) {
+        Map<String,Set<String>> sorted = new TreeMap<String,Set<String>>();
+        for (Entry<Permission,? extends Set<String>> e : grants.entrySet())
+            sorted.put(e.getKey().getId(), new TreeSet<String>(e.getValue()));
+        StringBuilder b = new StringBuilder();
+        for (Entry<String,Set<String>> e : sorted.entrySet()) {
+            for (String pattern : e.getValue())
+                b.append(e.getKey()).append(':').append(pattern).append('\n');
+        }
+        return b.toString();
+    }
+}
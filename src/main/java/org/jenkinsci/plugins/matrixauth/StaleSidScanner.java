@@ -0,0 +1,407 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Item;
+import hudson.security.ACL;
+import hudson.security.Permission;
+import hudson.security.SecurityRealm;
+import hudson.security.UserMayOrMayNotExistException;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.acegisecurity.userdetails.UsernameNotFoundException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds SIDs in the matrices that the {@link SecurityRealm} no longer knows as a user or group.
+ *
+ * <p>
+ * A scan collects the distinct SIDs of the global and all job and folder matrices, then looks
+ * them up on a background thread in small batches with a pause in between, so that the user
+ * directory is not flooded. Progress is written to {@code JENKINS_HOME} after each batch and a
+ * scan interrupted by a restart picks up where it stopped.
+ *
+ * <p>
+ * Only SIDs the realm positively reports as unknown are considered missing. SIDs the realm
+ * cannot decide on, or fails to look up, are counted but never removed.
+ */
+public final class StaleSidScanner {
+    private static final Logger LOGGER = Logger.getLogger(StaleSidScanner.class.getName());
+
+    /**
+     * How many SIDs are looked up in a row.
+     */
+    static int BATCH = Integer.getInteger(StaleSidScanner.class.getName() + ".batch", 20);
+
+    /**
+     * Pause between two batches, in milliseconds.
+     */
+    static long INTERVAL = Long.getLong(StaleSidScanner.class.getName() + ".interval", 1000);
+
+    private static volatile StaleSidScanner current;
+
+    private static ScheduledExecutorService executor;
+
+    /**
+     * SIDs still to look up; empty unless a scan is in progress.
+     */
+    private LinkedList<String> pending = new LinkedList<String>();
+
+    private TreeSet<String> missing = new TreeSet<String>();
+
+    private int total, checked, undecided;
+
+    private long started, finished;
+
+    /**
+     * Whether to remove the missing SIDs once the scan completes.
+     */
+    private boolean remove;
+
+    private StaleSidScanner() {}
+
+    private Object readResolve() {
+        if (pending == null)
+            pending = new LinkedList<String>();
+        if (missing == null)
+            missing = new TreeSet<String>();
+        return this;
+    }
+
+    /**
+     * Result of looking up one SID.
+     */
+    public enum Lookup {
+        FOUND, MISSING, UNDECIDED
+    }
+
+    /**
+     * Looks up a SID as a user, then as a group, like the validation of the matrix configuration.
+     * Unlike it, failures of the directory are never taken to mean the SID does not exist.
+     */
+    public static Lookup lookup(SecurityRealm realm, String sid) {
+        if (sid.equals("anonymous") || sid.equals("authenticated"))
+            return Lookup.FOUND;
+        try {
+            try {
+                realm.loadUserByUsername(sid);
+                return Lookup.FOUND;
+            } catch (UserMayOrMayNotExistException e) {
+                return Lookup.UNDECIDED;
+            } catch (UsernameNotFoundException e) {
+                // fall through to groups
+            }
+            try {
+                realm.loadGroupByGroupname(sid);
+                return Lookup.FOUND;
+            } catch (UserMayOrMayNotExistException e) {
+                return Lookup.UNDECIDED;
+            } catch (UsernameNotFoundException e) {
+                return Lookup.MISSING;
+            }
+        } catch (RuntimeException e) {
+            // DataAccessException if the directory is unavailable, or anything else going wrong
+            LOGGER.log(Level.FINE, "Failed to look up " + sid, e);
+            return Lookup.UNDECIDED;
+        }
+    }
+
+    /**
+     * Returns the current or last scan.
+     */
+    public static StaleSidScanner get() {
+        StaleSidScanner s = current;
+        return s != null ? s : load();
+    }
+
+    /**
+     * Resumes a scan interrupted by a restart.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED, fatal = false)
+    public static void init() {
+        StaleSidScanner s = load();
+        if (s.isRunning()) {
+            LOGGER.log(Level.INFO, "Resuming the scan for stale SIDs, {0} of {1} left", new Object[] {s.pending.size(), s.total});
+            s.scheduleNext();
+        }
+    }
+
+    private static synchronized StaleSidScanner load() {
+        StaleSidScanner s = null;
+        XmlFile f = getConfigFile();
+        if (f.exists()) {
+            try {
+                s = (StaleSidScanner) f.read();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load " + f, e);
+            }
+        }
+        if (s == null)
+            s = new StaleSidScanner();
+        current = s;
+        return s;
+    }
+
+    private static XmlFile getConfigFile() {
+        return new XmlFile(Jenkins.XSTREAM2, new File(Jenkins.getActiveInstance().getRootDir(), StaleSidScanner.class.getName() + ".xml"));
+    }
+
+    /**
+     * Starts a scan in the background, unless one is already running.
+     *
+     * @param remove
+     *      whether to remove the missing SIDs from all matrices once the scan completes.
+     * @return
+     *      false if a scan was already running.
+     */
+    public boolean start(boolean remove) throws IOException {
+        if (!startNow(remove))
+            return false;
+        scheduleNext();
+        return true;
+    }
+
+    synchronized boolean startNow(boolean remove) throws IOException {
+        if (isRunning())
+            return false;
+        if (Jenkins.getActiveInstance().getSecurityRealm() == SecurityRealm.NO_AUTHENTICATION)
+            throw new IOException("There is no security realm to look up users and groups in");
+        pending = new LinkedList<String>(collectSids());
+        missing = new TreeSet<String>();
+        total = pending.size();
+        checked = undecided = 0;
+        started = System.currentTimeMillis();
+        finished = 0;
+        this.remove = remove;
+        save();
+        return true;
+    }
+
+    /**
+     * Collects the distinct SIDs granted anything anywhere, except the built-in ones.
+     */
+    static Set<String> collectSids() throws IOException {
+        final Set<String> sids = new TreeSet<String>();
+        SecurityContext orig = ACL.impersonate(ACL.SYSTEM);
+        try {
+            AuthorizationContainers.visitAll(new AuthorizationContainers.Visitor() {
+                public void visit(Item item, AuthorizationContainer matrix) {
+                    for (Set<String> s : matrix.getGrantedPermissions().values())
+                        sids.addAll(s);
+                    for (Set<String> s : matrix.getPermissionSetGrants().values())
+                        sids.addAll(s);
+                }
+            });
+        } finally {
+            SecurityContextHolder.setContext(orig);
+        }
+        sids.remove("anonymous");
+        sids.remove("authenticated");
+        return sids;
+    }
+
+    private void scheduleNext() {
+        synchronized (StaleSidScanner.class) {
+            if (executor == null)
+                executor = Executors.newSingleThreadScheduledExecutor(
+                        new NamingThreadFactory(new DaemonThreadFactory(), "Stale SID scanner"));
+            executor.schedule(new Runnable() {
+                public void run() {
+                    try {
+                        if (runBatch())
+                            scheduleNext();
+                    } catch (Throwable t) {
+                        LOGGER.log(Level.WARNING, "Scan for stale SIDs failed", t);
+                    }
+                }
+            }, INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Looks up the next batch of SIDs, and completes the scan after the last one.
+     *
+     * @return
+     *      whether SIDs remain to be looked up.
+     */
+    boolean runBatch() throws IOException {
+        List<String> batch = new ArrayList<String>();
+        synchronized (this) {
+            if (current != this)
+                return false; // Jenkins was restarted
+            for (int i = 0; i < BATCH && !pending.isEmpty(); i++)
+                batch.add(pending.get(i));
+        }
+        SecurityRealm realm = Jenkins.getActiveInstance().getSecurityRealm();
+        Map<String,Lookup> results = new HashMap<String,Lookup>();
+        for (String sid : batch)
+            results.put(sid, lookup(realm, sid));
+        boolean done;
+        synchronized (this) {
+            for (String sid : batch) {
+                pending.removeFirst();
+                checked++;
+                Lookup r = results.get(sid);
+                if (r == Lookup.MISSING)
+                    missing.add(sid);
+                else if (r == Lookup.UNDECIDED)
+                    undecided++;
+            }
+            done = pending.isEmpty();
+            if (done) {
+                finished = System.currentTimeMillis();
+                LOGGER.log(Level.INFO, "Scanned {0} SIDs, {1} missing and {2} undecided", new Object[] {checked, missing.size(), undecided});
+            }
+            save();
+        }
+        if (done && remove)
+            removeMissing();
+        return !done;
+    }
+
+    /**
+     * Removes the SIDs found missing by the last completed scan from all matrices.
+     *
+     * <p>
+     * As a safeguard against a misconfigured realm, nothing is removed if every SID scanned was missing.
+     *
+     * @return
+     *      the number of grants removed.
+     */
+    public int removeMissing() throws IOException {
+        final Set<String> dead;
+        synchronized (this) {
+            if (isRunning() || missing.isEmpty())
+                return 0;
+            if (missing.size() == checked && checked > 1) {
+                LOGGER.warning("Not removing stale SIDs: the security realm did not know any SID in the matrices");
+                return 0;
+            }
+            dead = new HashSet<String>(missing);
+        }
+        final int[] removed = {0};
+        SecurityContext orig = ACL.impersonate(ACL.SYSTEM);
+        try {
+            AuthorizationContainers.visitAll(new AuthorizationContainers.Visitor() {
+                public void visit(Item item, AuthorizationContainer matrix) throws IOException {
+                    Map<Permission,Set<String>> grants = new HashMap<Permission,Set<String>>();
+                    int n = 0;
+                    for (Entry<Permission,Set<String>> e : matrix.getGrantedPermissions().entrySet()) {
+                        Set<String> sids = new HashSet<String>(e.getValue());
+                        if (sids.removeAll(dead))
+                            n += e.getValue().size() - sids.size();
+                        grants.put(e.getKey(), sids);
+                    }
+                    Map<String,Set<String>> setGrants = new HashMap<String,Set<String>>();
+                    int s = 0;
+                    for (Entry<String,Set<String>> e : matrix.getPermissionSetGrants().entrySet()) {
+                        Set<String> sids = new HashSet<String>(e.getValue());
+                        if (sids.removeAll(dead))
+                            s += e.getValue().size() - sids.size();
+                        if (!sids.isEmpty())
+                            setGrants.put(e.getKey(), sids);
+                    }
+                    AuthorizationContainer stripped = matrix;
+                    if (n > 0)
+                        stripped = stripped.withGrantedPermissions(grants);
+                    if (s > 0)
+                        stripped = stripped.withPermissionSetGrants(setGrants);
+                    if (n + s > 0 && AuthorizationContainers.replaceLater(item, stripped))
+                        removed[0] += n + s;
+                }
+            });
+        } finally {
+            SecurityContextHolder.setContext(orig);
+        }
+        LOGGER.log(Level.INFO, "Removed {0} grants to {1} stale SIDs", new Object[] {removed[0], dead.size()});
+        return removed[0];
+    }
+
+    private synchronized void save() throws IOException {
+        getConfigFile().write(this);
+    }
+
+    public synchronized boolean isRunning() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * SIDs the realm reported as unknown, so far in a running scan.
+     */
+    public synchronized Collection<String> getMissing() {
+        return new ArrayList<String>(missing);
+    }
+
+    public synchronized int getTotal() {
+        return total;
+    }
+
+    public synchronized int getChecked() {
+        return checked;
+    }
+
+    /**
+     * How many SIDs the realm could not decide on, or failed to look up.
+     */
+    public synchronized int getUndecided() {
+        return undecided;
+    }
+
+    /**
+     * When the current or last scan started, or 0 if none did.
+     */
+    public synchronized long getStarted() {
+        return started;
+    }
+
+    /**
+     * When the last scan completed, or 0 if it did not.
+     */
+    public synchronized long getFinished() {
+        return finished;
+    }
+}
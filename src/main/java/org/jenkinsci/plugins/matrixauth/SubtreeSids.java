@@ -0,0 +1,174 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Keeps, for every folder, how many times each SID is granted something by the job and folder matrices
+ * in its subtree, so that the SIDs used under a folder can be listed without walking it.
+ *
+ * <p>
+ * Counts are kept up to date by {@link MatrixChangeTracker} as matrices are saved or replaced and as
+ * items are moved or deleted. SIDs are counted as configured, not {@link SidNormalizer normalized}.
+ * The global matrix is not counted.
+ */
+public final class SubtreeSids {
+    private SubtreeSids() {}
+
+    /**
+     * Grant counts by SID, by folder full name, the empty string standing for the root.
+     * Only SIDs with a positive count and folders with at least one SID are present.
+     */
+    @GuardedBy("index")
+    private static final Map<String,Map<String,int[]>> index = new HashMap<String,Map<String,int[]>>();
+
+    /**
+     * Returns the SIDs granted anything by a job or folder matrix in the subtree of the given folder,
+     * including its own matrix.
+     *
+     * @param folderFullName
+     *      the empty string for the whole instance.
+     * @return
+     *      empty if the folder does not exist or nothing under it has a matrix.
+     */
+    public static Set<String> get(String folderFullName) {
+        synchronized (index) {
+            Map<String,int[]> sids = index.get(folderFullName);
+            return sids == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(new HashSet<String>(sids.keySet()));
+        }
+    }
+
+    /**
+     * Records that the matrix of an item was replaced.
+     *
+     * @param before
+     *      null if the item had no matrix.
+     * @param after
+     *      null if the item no longer has one.
+     */
+    static void replaced(Item item, @CheckForNull AuthorizationContainer before, @CheckForNull AuthorizationContainer after) {
+        if (before == after)
+            return;
+        List<String> folders = folders(item.getFullName(), item instanceof ItemGroup);
+        synchronized (index) {
+            apply(folders, before, -1);
+            apply(folders, after, 1);
+        }
+    }
+
+    /**
+     * Records that an item with a matrix moved from one location to another.
+     * Only the item's own matrix is moved: the descendants of a moved folder are reported separately.
+     *
+     * @param newFullName
+     *      null if the item was deleted.
+     */
+    static void moved(Item item, String oldFullName, @CheckForNull String newFullName, AuthorizationContainer matrix) {
+        boolean folder = item instanceof ItemGroup;
+        synchronized (index) {
+            apply(folders(oldFullName, folder), matrix, -1);
+            if (newFullName != null)
+                apply(folders(newFullName, folder), matrix, 1);
+        }
+    }
+
+    /**
+     * Forgets all counts, before the matrices are recorded again.
+     */
+    static void clear() {
+        synchronized (index) {
+            index.clear();
+        }
+    }
+
+    @GuardedBy("index")
+    private static void apply(List<String> folders, @CheckForNull AuthorizationContainer matrix, int sign) {
+        if (matrix == null)
+            return;
+        Map<String,Integer> counts = counts(matrix);
+        if (counts.isEmpty())
+            return;
+        for (String folder : folders) {
+            Map<String,int[]> sids = index.get(folder);
+            if (sids == null)
+                index.put(folder, sids = new HashMap<String,int[]>());
+            for (Entry<String,Integer> e : counts.entrySet()) {
+                int[] n = sids.get(e.getKey());
+                if (n == null)
+                    sids.put(e.getKey(), n = new int[1]);
+                n[0] += sign * e.getValue();
+                if (n[0] <= 0)
+                    sids.remove(e.getKey());
+            }
+            if (sids.isEmpty())
+                index.remove(folder);
+        }
+    }
+
+    /**
+     * Number of grants of each SID in a matrix, through permission sets included.
+     */
+    private static Map<String,Integer> counts(AuthorizationContainer matrix) {
+        Map<String,Integer> counts = new HashMap<String,Integer>();
+        for (Set<String> sids : matrix.getGrantedPermissions().values())
+            count(counts, sids);
+        for (Set<String> sids : matrix.getPermissionSetGrants().values())
+            count(counts, sids);
+        return counts;
+    }
+
+    private static void count(Map<String,Integer> counts, Set<String> sids) {
+        for (String sid : sids) {
+            Integer n = counts.get(sid);
+            counts.put(sid, n == null ? 1 : n + 1);
+        }
+    }
+
+    /**
+     * Returns the folders whose subtree includes the item with the given full name: the root, every
+     * enclosing folder, and the item itself if it is a folder.
+     */
+    private static List<String> folders(String fullName, boolean folder) {
+        List<String> r = new ArrayList<String>();
+        r.add("");
+        for (int i = fullName.indexOf('/'); i >= 0; i = fullName.indexOf('/', i + 1))
+            r.add(fullName.substring(0, i));
+        if (folder)
+            r.add(fullName);
+        return r;
+    }
+}
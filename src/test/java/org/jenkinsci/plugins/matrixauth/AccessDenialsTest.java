@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.matrixauth;
+
+import com.cloudbees.hudson.plugins.folder.Folder;
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.security.ACL;
+import hudson.security.AuthorizationMatrixProperty;
+import hudson.security.Permission;
+import hudson.security.ProjectMatrixAuthorizationStrategy;
+import hudson.security.SecurityRealm;
+import java.util.Collections;
+import java.util.Set;
+import jenkins.model.Jenkins;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.providers.UsernamePasswordAuthenticationToken;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class AccessDenialsTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    @Before public void enable() {
+        AccessDenials.setEnabled(true);
+    }
+
+    @After public void disable() {
+        AccessDenials.setEnabled(false);
+    }
+
+    @Test public void aggregatesDenials() throws Exception {
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.add(Jenkins.ADMINISTER, "admin");
+        as.add(Jenkins.READ, "authenticated");
+        r.jenkins.setAuthorizationStrategy(as);
+        Folder d = r.jenkins.createProject(Folder.class, "d");
+        FreeStyleProject p1 = d.createProject(FreeStyleProject.class, "p1");
+        FreeStyleProject p2 = d.createProject(FreeStyleProject.class, "p2");
+
+        Authentication bot = new UsernamePasswordAuthenticationToken("bot", "", new GrantedAuthority[] {SecurityRealm.AUTHENTICATED_AUTHORITY});
+        Authentication admin = new UsernamePasswordAuthenticationToken("admin", "", new GrantedAuthority[] {SecurityRealm.AUTHENTICATED_AUTHORITY});
+        AccessDenials.flush();
+        for (int i = 0; i < 50; i++) {
+            assertFalse(p1.getACL().hasPermission(bot, Item.READ));
+            assertFalse(p2.getACL().hasPermission(bot, Item.READ));
+        }
+        assertFalse(r.jenkins.getACL().hasPermission(bot, Jenkins.ADMINISTER));
+        assertTrue(p1.getACL().hasPermission(admin, Item.READ));
+
+        AccessDenials.Summary s = AccessDenials.flush();
+        assertEquals(101, s.getTotal());
+        assertEquals(0, s.getUnattributed());
+        AccessDenials.Denial busiest = s.getDenials().get(0);
+        assertEquals("bot", busiest.getUser());
+        assertSame(Item.READ, busiest.getPermission());
+        assertEquals("both jobs inherit the root matrix", "", busiest.getFolder());
+        assertEquals(100, busiest.getCount());
+        assertEquals(2, s.getDenials().size());
+        assertSame(s, AccessDenials.getLastSummary());
+        assertEquals("counters start over", 0, AccessDenials.flush().getTotal());
+    }
+
+    @Test public void recordsOnlyFinalDecisions() throws Exception {
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.add(Jenkins.ADMINISTER, "admin");
+        r.jenkins.setAuthorizationStrategy(as);
+        FreeStyleProject p = r.createFreeStyleProject("p");
+        p.addProperty(new AuthorizationMatrixProperty(
+                Collections.<Permission,Set<String>>singletonMap(Item.BUILD, Collections.singleton("alice"))));
+        ACL everything = new ACL() {
+            @Override
+            public boolean hasPermission(Authentication a, Permission permission) {
+                return true;
+            }
+        };
+        ACL acl = as.getACL(p, everything);
+
+        Authentication bot = new UsernamePasswordAuthenticationToken("bot", "", new GrantedAuthority[] {SecurityRealm.AUTHENTICATED_AUTHORITY});
+        AccessDenials.flush();
+        assertTrue("granted by the parent", acl.hasPermission(bot, Item.READ));
+        assertEquals(0, AccessDenials.flush().getTotal());
+    }
+}
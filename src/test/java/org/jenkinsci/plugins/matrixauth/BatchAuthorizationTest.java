@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.model.User;
+import hudson.security.Permission;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import org.acegisecurity.Authentication;
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Checks {@link BatchAuthorization} against job by job checks, and measures its throughput.
+ *
+ * <p>
+ * The measurement only runs when asked for, as in
+ * {@code mvn test -Dtest=BatchAuthorizationTest -Dmatrixauth.latency=true}, on a {@link LargeInstance}
+ * of 10000 jobs unless {@code matrixauth.jobs} says otherwise.
+ */
+public class BatchAuthorizationTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    @Test public void sameAsJobByJob() throws Exception {
+        LargeInstance instance = new LargeInstance().jobs(200).folderDepth(2).folderFanOut(3).users(10).blocksInheritance(0.2).build(r);
+        for (int u = 0; u < instance.getUsers(); u++) {
+            Authentication a = User.get("user" + u).impersonate();
+            for (Permission p : new Permission[] {Item.READ, Item.BUILD, Item.CONFIGURE}) {
+                List<FreeStyleProject> expected = new ArrayList<FreeStyleProject>();
+                for (FreeStyleProject job : instance.getJobs()) {
+                    if (job.getACL().hasPermission(a, p))
+                        expected.add(job);
+                }
+                assertEquals("user" + u + " " + p.getId(), expected, BatchAuthorization.filter(a, p, instance.getJobs()));
+            }
+        }
+    }
+
+    @Test public void throughput() throws Exception {
+        assumeTrue(Boolean.getBoolean("matrixauth.latency"));
+        LargeInstance instance = LargeInstance.fromSystemProperties().jobs(Integer.getInteger("matrixauth.jobs", 10000)).build(r);
+        List<FreeStyleProject> jobs = instance.getJobs();
+        Authentication a = User.get("user0").impersonate();
+
+        long single = Long.MAX_VALUE, batch = Long.MAX_VALUE;
+        int allowed = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long s = System.nanoTime();
+            int n = 0;
+            for (FreeStyleProject job : jobs) {
+                if (job.getACL().hasPermission(a, Item.BUILD))
+                    n++;
+            }
+            single = Math.min(single, System.nanoTime() - s);
+
+            s = System.nanoTime();
+            int m = BatchAuthorization.filter(a, Item.BUILD, jobs).size();
+            batch = Math.min(batch, System.nanoTime() - s);
+            assertEquals(n, m);
+            allowed = n;
+        }
+
+        System.out.println("=== Batched authorization throughput ===");
+        System.out.println("shape: " + instance);
+        System.out.println(String.format(Locale.ROOT, "%d of %d jobs buildable by user0, best of %d rounds", allowed, jobs.size(), ROUNDS));
+        System.out.println(String.format(Locale.ROOT, "%-20s %9s %12s", "storm", "ms", "jobs/s"));
+        System.out.println(line("job by job", jobs.size(), single));
+        System.out.println(line("batched", jobs.size(), batch));
+    }
+
+    private static String line(String mode, int jobs, long nanos) {
+        return String.format(Locale.ROOT, "%-20s %9.1f %12.0f", mode, nanos / 1e6, jobs * 1e9 / nanos);
+    }
+
+    private static final int ROUNDS = 5;
+}
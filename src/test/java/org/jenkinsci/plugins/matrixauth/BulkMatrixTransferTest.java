@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.matrixauth;
+
+import com.cloudbees.hudson.plugins.folder.Folder;
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.security.AuthorizationMatrixProperty;
+import hudson.security.Permission;
+import hudson.security.ProjectMatrixAuthorizationStrategy;
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import jenkins.model.Jenkins;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class BulkMatrixTransferTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    @Test public void exportAndImport() throws Exception {
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.add(Jenkins.ADMINISTER, "admin");
+        as.add(Jenkins.READ, "authenticated");
+        r.jenkins.setAuthorizationStrategy(as);
+
+        Folder d = r.jenkins.createProject(Folder.class, "d");
+        Map<Permission,Set<String>> folderGrants = new HashMap<Permission,Set<String>>();
+        folderGrants.put(Item.READ, Collections.singleton("CN=devs,OU=groups"));
+        d.getProperties().add(new com.cloudbees.hudson.plugins.folder.properties.AuthorizationMatrixProperty(folderGrants));
+        FreeStyleProject p = d.createProject(FreeStyleProject.class, "p");
+
+        StringWriter csv = new StringWriter();
+        BulkMatrixTransfer.export(GrantFormat.CSV, csv);
+        assertEquals("item,sid,permission\n"
+                + ",admin," + Jenkins.ADMINISTER.getId() + "\n"
+                + ",authenticated," + Jenkins.READ.getId() + "\n"
+                + "d,\"CN=devs,OU=groups\"," + Item.READ.getId() + "\n", csv.toString());
+
+        String ndjson = "{\"item\":\"d/p\",\"sid\":\"alice\",\"permission\":\"" + Item.BUILD.getId() + "\"}\n"
+                + "{\"item\":\"d\",\"sid\":\"bob\",\"permission\":\"" + Item.READ.getId() + "\"}\n";
+        BulkMatrixTransfer.Import imp = new BulkMatrixTransfer.Import().read(GrantFormat.NDJSON, new BufferedReader(new StringReader(ndjson)));
+        assertEquals(Collections.emptyList(), imp.getErrors());
+        imp.apply(false);
+
+        AuthorizationMatrixProperty amp = p.getProperty(AuthorizationMatrixProperty.class);
+        assertNotNull(amp);
+        assertTrue(amp.hasExplicitPermission("alice", Item.BUILD));
+        AuthorizationContainer folder = AuthorizationContainers.of(d);
+        assertTrue(folder.getGrantedPermissions().get(Item.READ).contains("bob"));
+        assertTrue("added to the existing grants", folder.getGrantedPermissions().get(Item.READ).contains("CN=devs,OU=groups"));
+        assertEquals(2, imp.getChangedCount());
+
+        MatrixSaveQueue.flush();
+        BulkMatrixTransfer.Import again = new BulkMatrixTransfer.Import().read(GrantFormat.NDJSON, new BufferedReader(new StringReader(ndjson)));
+        again.apply(false);
+        assertEquals("reimporting the same grants changes nothing", 0, again.getChangedCount());
+        assertEquals(0, MatrixSaveQueue.size());
+        assertSame(amp, p.getProperty(AuthorizationMatrixProperty.class));
+    }
+
+    @Test public void rejectsInvalidImport() throws Exception {
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.add(Jenkins.ADMINISTER, "admin");
+        r.jenkins.setAuthorizationStrategy(as);
+        FreeStyleProject p = r.createFreeStyleProject("p");
+
+        String csv = "p,alice," + Item.BUILD.getId() + "\n"
+                + "p,alice,no.such.Permission\n"
+                + "missing,alice," + Item.BUILD.getId() + "\n";
+        BulkMatrixTransfer.Import imp = new BulkMatrixTransfer.Import().read(GrantFormat.CSV, new BufferedReader(new StringReader(csv)));
+        assertEquals(2, imp.getErrors().size());
+        assertNull("nothing applied", p.getProperty(AuthorizationMatrixProperty.class));
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.matrixauth;
+
+import com.cloudbees.hudson.plugins.folder.Folder;
+import com.gargoylesoftware.htmlunit.Page;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.model.User;
+import hudson.security.AuthorizationMatrixProperty;
+import hudson.security.Permission;
+import hudson.security.ProjectMatrixAuthorizationStrategy;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.acegisecurity.Authentication;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class EffectivePermissionsTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    @Test public void subtreeWithETag() throws Exception {
+        r.jenkins.setSecurityRealm(r.createDummySecurityRealm());
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.add(Jenkins.ADMINISTER, "admin");
+        as.add(Jenkins.READ, "authenticated");
+        r.jenkins.setAuthorizationStrategy(as);
+
+        Folder d = r.jenkins.createProject(Folder.class, "d");
+        d.getProperties().add(new com.cloudbees.hudson.plugins.folder.properties.AuthorizationMatrixProperty(grant(Item.READ, "alice")));
+        FreeStyleProject p = d.createProject(FreeStyleProject.class, "p");
+        p.addProperty(new AuthorizationMatrixProperty(grant(Item.BUILD, "alice")));
+        FreeStyleProject q = d.createProject(FreeStyleProject.class, "q");
+        r.createFreeStyleProject("x");
+        User.get("alice");
+
+        Authentication alice = User.get("alice").impersonate();
+        EffectivePermissions ep = new EffectivePermissions(alice);
+        for (Item i : r.jenkins.getAllItems(Item.class)) {
+            for (Permission perm : EffectivePermissions.getItemPermissions())
+                assertEquals(i.getFullName() + " " + perm.getId(), i.getACL().hasPermission(alice, perm), ep.of(i).contains(perm));
+        }
+
+        JenkinsRule.WebClient wc = r.createWebClient().login("admin");
+        wc.setThrowExceptionOnFailingStatusCode(false);
+        URL url = new URL(r.getURL(), "matrix-auth/effectivePermissions?item=d&user=alice");
+        Page page = wc.getPage(new WebRequest(url));
+        assertEquals(200, page.getWebResponse().getStatusCode());
+        String etag = page.getWebResponse().getResponseHeaderValue("ETag");
+        assertNotNull(etag);
+        JSONObject items = JSONObject.fromObject(page.getWebResponse().getContentAsString()).getJSONObject("items");
+        assertEquals("items without any permission are left out", 3, items.size());
+        assertTrue(items.getJSONArray("d/p").contains(Item.BUILD.getId()));
+        assertTrue(items.getJSONArray("d/q").contains(Item.READ.getId()));
+        assertFalse(items.getJSONArray("d/q").contains(Item.BUILD.getId()));
+        assertFalse(items.has("x"));
+
+        assertEquals(304, conditional(wc, url, etag).getWebResponse().getStatusCode());
+
+        q.addProperty(new AuthorizationMatrixProperty(grant(Item.CONFIGURE, "alice")));
+        page = conditional(wc, url, etag);
+        assertEquals("changing a matrix changes the entity tag", 200, page.getWebResponse().getStatusCode());
+        JSONArray qp = JSONObject.fromObject(page.getWebResponse().getContentAsString()).getJSONObject("items").getJSONArray("d/q");
+        assertTrue(qp.contains(Item.CONFIGURE.getId()));
+        etag = page.getWebResponse().getResponseHeaderValue("ETag");
+        assertEquals(304, conditional(wc, url, etag).getWebResponse().getStatusCode());
+
+        d.createProject(FreeStyleProject.class, "r");
+        assertEquals("creating an item changes the entity tag", 200, conditional(wc, url, etag).getWebResponse().getStatusCode());
+    }
+
+    private static Page conditional(JenkinsRule.WebClient wc, URL url, String etag) throws Exception {
+        WebRequest req = new WebRequest(url);
+        req.setAdditionalHeader("If-None-Match", etag);
+        return wc.getPage(req);
+    }
+
+    private static Map<Permission,Set<String>> grant(Permission p, String sid) {
+        Map<Permission,Set<String>> grants = new HashMap<Permission,Set<String>>();
+        grants.put(p, Collections.singleton(sid));
+        return grants;
+    }
+}
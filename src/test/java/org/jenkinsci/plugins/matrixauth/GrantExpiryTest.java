@@ -0,0 +1,143 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.model.User;
+import hudson.security.AuthorizationMatrixProperty;
+import hudson.security.ProjectMatrixAuthorizationStrategy;
+import java.util.Collections;
+import jenkins.model.Jenkins;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class GrantExpiryTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    @Test public void parseAndFormat() {
+        assertEquals(1464717600000L, GrantExpiry.parse("2016-05-31T18:00:00Z"));
+        assertEquals(1464652800000L, GrantExpiry.parse("2016-05-31"));
+        assertEquals("2016-05-31T18:00:00Z", GrantExpiry.format(1464717600000L));
+        assertEquals(Collections.singletonMap(Item.BUILD.getId() + ":alice", 1464652800000L),
+                GrantExpiry.parseLines("\n  2016-05-31   " + Item.BUILD.getId() + ":alice\n"));
+        try {
+            GrantExpiry.parseLines("2016-05-31 " + Item.BUILD.getId());
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test public void persistence() throws Exception {
+        long future = GrantExpiry.parse("2100-01-01");
+        AuthorizationMatrixProperty amp = (AuthorizationMatrixProperty) Jenkins.XSTREAM2.fromXML(
+                "<hudson.security.AuthorizationMatrixProperty>"
+                + "<permission expires='2000-01-01T00:00:00Z'>" + Item.BUILD.getId() + ":alice</permission>"
+                + "<permission expires='2100-01-01T00:00:00Z'>" + Item.CONFIGURE.getId() + ":alice</permission>"
+                + "<permission>" + Item.READ.getId() + ":alice</permission>"
+                + "</hudson.security.AuthorizationMatrixProperty>");
+        assertNull("expired while not running", amp.getGrantedPermissions().get(Item.BUILD));
+        assertEquals(Collections.singleton("alice"), amp.getGrantedPermissions().get(Item.CONFIGURE));
+        assertEquals(Collections.singletonMap(Item.CONFIGURE.getId() + ":alice", future), amp.getGrantExpiries());
+        String xml = Jenkins.XSTREAM2.toXML(amp);
+        assertTrue(xml, xml.contains("<permission expires=\"2100-01-01T00:00:00Z\">" + Item.CONFIGURE.getId() + ":alice</permission>"));
+        assertTrue(xml, xml.contains("<permission>" + Item.READ.getId() + ":alice</permission>"));
+        assertEquals(amp.getMatrixVersion(), ((AuthorizationMatrixProperty) Jenkins.XSTREAM2.fromXML(xml)).getMatrixVersion());
+    }
+
+    @Test public void expiredGrantsAreRemoved() throws Exception {
+        r.jenkins.setSecurityRealm(r.createDummySecurityRealm());
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.add(Jenkins.ADMINISTER, "admin");
+        as.add(Jenkins.READ, "alice");
+        r.jenkins.setAuthorizationStrategy(as);
+        FreeStyleProject p = r.createFreeStyleProject("p");
+        p.addProperty((AuthorizationMatrixProperty) Jenkins.XSTREAM2.fromXML(
+                "<hudson.security.AuthorizationMatrixProperty>"
+                + "<permission expires='" + GrantExpiry.format(System.currentTimeMillis() + 3000) + "'>" + Item.BUILD.getId() + ":alice</permission>"
+                + "<permission>" + Item.READ.getId() + ":alice</permission>"
+                + "</hudson.security.AuthorizationMatrixProperty>"));
+        assertTrue(p.getACL().hasPermission(User.get("alice").impersonate(), Item.BUILD));
+
+        long deadline = System.currentTimeMillis() + 60000;
+        while (p.getACL().hasPermission(User.get("alice").impersonate(), Item.BUILD)) {
+            assertTrue("grant was not removed in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(100);
+        }
+        MatrixSaveQueue.flush();
+        AuthorizationMatrixProperty amp = p.getProperty(AuthorizationMatrixProperty.class);
+        assertTrue(amp.getGrantExpiries().isEmpty());
+        assertEquals(Collections.singleton("alice"), amp.getGrantedPermissions().get(Item.READ));
+        assertTrue(p.getACL().hasPermission(User.get("alice").impersonate(), Item.READ));
+    }
+
+    @Test public void copiedGrantsExpire() throws Exception {
+        r.jenkins.setSecurityRealm(r.createDummySecurityRealm());
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.add(Jenkins.ADMINISTER, "admin");
+        as.add(Jenkins.READ, "alice");
+        r.jenkins.setAuthorizationStrategy(as);
+        FreeStyleProject p = r.createFreeStyleProject("p");
+        p.addProperty((AuthorizationMatrixProperty) Jenkins.XSTREAM2.fromXML(
+                "<hudson.security.AuthorizationMatrixProperty>"
+                + "<permission expires='" + GrantExpiry.format(System.currentTimeMillis() + 3000) + "'>" + Item.BUILD.getId() + ":alice</permission>"
+                + "</hudson.security.AuthorizationMatrixProperty>"));
+        FreeStyleProject q = r.jenkins.copy(p, "q");
+        assertTrue(q.getACL().hasPermission(User.get("alice").impersonate(), Item.BUILD));
+
+        long deadline = System.currentTimeMillis() + 60000;
+        while (q.getACL().hasPermission(User.get("alice").impersonate(), Item.BUILD)) {
+            assertTrue("copied grant was not removed in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(100);
+        }
+        MatrixSaveQueue.flush();
+        assertTrue(q.getProperty(AuthorizationMatrixProperty.class).getGrantExpiries().isEmpty());
+    }
+
+    @Test public void permanentGrantsStayPermanent() throws Exception {
+        long future = GrantExpiry.parse("2100-01-01");
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.add(Item.READ, "alice");
+        String version = as.getMatrixVersion();
+        as.add(Item.READ, "alice", future);
+        assertTrue(as.getGrantExpiries().isEmpty());
+        assertEquals(version, as.getMatrixVersion());
+        as.add(Item.BUILD, "alice", future);
+        as.add(Item.BUILD, "alice", future + 1000);
+        assertEquals("an expiring grant can be extended", Collections.singletonMap(Item.BUILD.getId() + ":alice", future + 1000), as.getGrantExpiries());
+
+        AuthorizationMatrixProperty amp = (AuthorizationMatrixProperty) Jenkins.XSTREAM2.fromXML(
+                "<hudson.security.AuthorizationMatrixProperty>"
+                + "<permission>" + Item.READ.getId() + ":alice</permission>"
+                + "<permission expires='2100-01-01T00:00:00Z'>" + Item.READ.getId() + ":alice</permission>"
+                + "</hudson.security.AuthorizationMatrixProperty>");
+        assertEquals(Collections.singleton("alice"), amp.getGrantedPermissions().get(Item.READ));
+        assertTrue(amp.getGrantExpiries().isEmpty());
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.security.AuthorizationMatrixProperty;
+import hudson.security.Permission;
+import hudson.security.ProjectMatrixAuthorizationStrategy;
+import hudson.security.SecurityRealm;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import jenkins.model.Jenkins;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.providers.UsernamePasswordAuthenticationToken;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class GrantUsageTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    @Test public void findsAndPrunesUnusedGrants() throws Exception {
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.add(Jenkins.ADMINISTER, "admin");
+        as.add(Jenkins.READ, "authenticated");
+        r.jenkins.setAuthorizationStrategy(as);
+        FreeStyleProject p = r.createFreeStyleProject("p");
+        Map<Permission,Set<String>> grants = new HashMap<Permission,Set<String>>();
+        grants.put(Item.BUILD, new HashSet<String>());
+        grants.get(Item.BUILD).add("alice");
+        grants.get(Item.BUILD).add("bob");
+        AuthorizationContainers.replace(p, new AuthorizationMatrixProperty(grants));
+
+        GrantUsage usage = GrantUsage.get();
+        assertFalse(GrantUsage.isEnabled());
+        usage.setRecording(true);
+        long since = usage.getSince();
+
+        Authentication alice = new UsernamePasswordAuthenticationToken("alice", "", new GrantedAuthority[] {SecurityRealm.AUTHENTICATED_AUTHORITY});
+        assertTrue(r.jenkins.getACL().hasPermission(alice, Jenkins.READ));
+        assertTrue(p.getACL().hasPermission(alice, Item.BUILD));
+        assertEquals(new MatrixGrant("p", "alice", Item.BUILD, null), ((MatrixACL) p.getACL()).explain(alice, Item.BUILD));
+
+        List<GrantUsage.Usage> unused = usage.getUnusedSince(since);
+        assertEquals("administrators and used grants are not listed", 1, unused.size());
+        assertEquals(new MatrixGrant("p", "bob", Item.BUILD, null), unused.get(0).getGrant());
+        assertEquals(0, unused.get(0).getCount());
+
+        assertEquals(1, usage.pruneUnusedSince(since));
+        AuthorizationContainer matrix = AuthorizationContainers.of(p);
+        assertFalse(matrix.getGrantedPermissions().get(Item.BUILD).contains("bob"));
+        assertTrue(matrix.getGrantedPermissions().get(Item.BUILD).contains("alice"));
+        assertTrue("nothing unused is reported before recording has been on long enough", usage.getUnused(1).isEmpty());
+    }
+}
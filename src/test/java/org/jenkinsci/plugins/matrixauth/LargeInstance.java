@@ -0,0 +1,259 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.matrixauth;
+
+import com.cloudbees.hudson.plugins.folder.Folder;
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.TopLevelItem;
+import hudson.security.AuthorizationMatrixProperty;
+import hudson.security.Permission;
+import hudson.security.ProjectMatrixAuthorizationStrategy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import jenkins.model.Jenkins;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Populates a {@link JenkinsRule} with many jobs, folders, users and matrices, in a shape given by its settings.
+ * The same settings and seed always produce the same instance.
+ *
+ * <p>
+ * Users are named {@code user0}, {@code user1}… with their name as password, and belong to groups named
+ * {@code group0}, {@code group1}… Everyone authenticated can read, and {@code admin} can administer.
+ */
+public class LargeInstance {
+
+    private static final Permission[] ITEM_PERMISSIONS = {Item.READ, Item.BUILD, Item.CONFIGURE, Item.WORKSPACE, Item.CANCEL};
+
+    private int jobs = 100;
+    private int folderDepth = 2;
+    private int folderFanOut = 4;
+    private int users = 20;
+    private int sidsPerMatrix = 10;
+    private int authoritiesPerUser = 5;
+    private double blocksInheritance = 0.1;
+    private long seed = 1;
+
+    private final List<FreeStyleProject> createdJobs = new ArrayList<FreeStyleProject>();
+    private final List<Folder> createdFolders = new ArrayList<Folder>();
+
+    /**
+     * Settings from the system properties {@code matrixauth.jobs}, {@code matrixauth.folderDepth} and so on,
+     * defaulting to those of a new instance.
+     */
+    public static LargeInstance fromSystemProperties() {
+        LargeInstance i = new LargeInstance();
+        i.jobs = Integer.getInteger("matrixauth.jobs", i.jobs);
+        i.folderDepth = Integer.getInteger("matrixauth.folderDepth", i.folderDepth);
+        i.folderFanOut = Integer.getInteger("matrixauth.folderFanOut", i.folderFanOut);
+        i.users = Integer.getInteger("matrixauth.users", i.users);
+        i.sidsPerMatrix = Integer.getInteger("matrixauth.sidsPerMatrix", i.sidsPerMatrix);
+        i.authoritiesPerUser = Integer.getInteger("matrixauth.authoritiesPerUser", i.authoritiesPerUser);
+        i.blocksInheritance = Double.parseDouble(System.getProperty("matrixauth.blocksInheritance", String.valueOf(i.blocksInheritance)));
+        i.seed = Long.getLong("matrixauth.seed", i.seed);
+        return i;
+    }
+
+    public LargeInstance jobs(int jobs) {
+        this.jobs = jobs;
+        return this;
+    }
+
+    /**
+     * Number of folder levels above each job, 0 to put all jobs at the top level.
+     */
+    public LargeInstance folderDepth(int folderDepth) {
+        this.folderDepth = folderDepth;
+        return this;
+    }
+
+    /**
+     * Number of subfolders of each folder, and of top-level folders.
+     */
+    public LargeInstance folderFanOut(int folderFanOut) {
+        this.folderFanOut = folderFanOut;
+        return this;
+    }
+
+    public LargeInstance users(int users) {
+        this.users = users;
+        return this;
+    }
+
+    /**
+     * Number of users and groups granted permissions by each job and folder matrix.
+     */
+    public LargeInstance sidsPerMatrix(int sidsPerMatrix) {
+        this.sidsPerMatrix = sidsPerMatrix;
+        return this;
+    }
+
+    /**
+     * Number of groups each user belongs to.
+     */
+    public LargeInstance authoritiesPerUser(int authoritiesPerUser) {
+        this.authoritiesPerUser = authoritiesPerUser;
+        return this;
+    }
+
+    /**
+     * Share of job matrices that block inheritance, from 0 to 1.
+     */
+    public LargeInstance blocksInheritance(double blocksInheritance) {
+        this.blocksInheritance = blocksInheritance;
+        return this;
+    }
+
+    public LargeInstance seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public int getUsers() {
+        return users;
+    }
+
+    public List<FreeStyleProject> getJobs() {
+        return Collections.unmodifiableList(createdJobs);
+    }
+
+    public List<Folder> getFolders() {
+        return Collections.unmodifiableList(createdFolders);
+    }
+
+    /**
+     * Number of groups users are drawn from.
+     */
+    private int groups() {
+        return Math.max(10, authoritiesPerUser * 2);
+    }
+
+    /**
+     * Creates the users, the global matrix, then the folders and jobs with their matrices.
+     */
+    public LargeInstance build(JenkinsRule r) throws Exception {
+        Random random = new Random(seed);
+        JenkinsRule.DummySecurityRealm realm = r.createDummySecurityRealm();
+        for (int u = 0; u < users; u++) {
+            realm.addGroups("user" + u, pick(random, "group", groups(), authoritiesPerUser).toArray(new String[0]));
+        }
+        r.jenkins.setSecurityRealm(realm);
+
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.add(Jenkins.ADMINISTER, "admin");
+        as.add(Jenkins.READ, "authenticated");
+        for (String group : pick(random, "group", groups(), 2)) {
+            as.add(Item.READ, group);
+        }
+        r.jenkins.setAuthorizationStrategy(as);
+
+        List<ItemGroup<?>> parents = new ArrayList<ItemGroup<?>>();
+        parents.add(r.jenkins);
+        for (int level = 0; level < folderDepth; level++) {
+            List<ItemGroup<?>> next = new ArrayList<ItemGroup<?>>();
+            for (ItemGroup<?> parent : parents) {
+                for (int i = 0; i < folderFanOut; i++) {
+                    Folder f = create(parent, Folder.class, "folder" + level + "_" + next.size());
+                    f.getProperties().add(new com.cloudbees.hudson.plugins.folder.properties.AuthorizationMatrixProperty(randomGrants(random)));
+                    createdFolders.add(f);
+                    next.add(f);
+                }
+            }
+            parents = next;
+        }
+        for (int j = 0; j < jobs; j++) {
+            FreeStyleProject p = create(parents.get(j % parents.size()), FreeStyleProject.class, "job" + j);
+            p.addProperty(jobMatrix(randomGrants(random), random.nextDouble() < blocksInheritance));
+            createdJobs.add(p);
+        }
+        return this;
+    }
+
+    private static <T extends TopLevelItem> T create(ItemGroup<?> parent, Class<T> type, String name) throws IOException {
+        if (parent instanceof Folder)
+            return ((Folder) parent).createProject(type, name);
+        return Jenkins.getActiveInstance().createProject(type, name);
+    }
+
+    private Map<Permission,Set<String>> randomGrants(Random random) {
+        Map<Permission,Set<String>> grants = new HashMap<Permission,Set<String>>();
+        List<String> sids = new ArrayList<String>();
+        int groupSids = sidsPerMatrix / 2;
+        sids.addAll(pick(random, "group", groups(), groupSids));
+        sids.addAll(pick(random, "user", users, sidsPerMatrix - groupSids));
+        for (String sid : sids) {
+            Permission p = ITEM_PERMISSIONS[random.nextInt(ITEM_PERMISSIONS.length)];
+            Set<String> set = grants.get(p);
+            if (set == null)
+                grants.put(p, set = new HashSet<String>());
+            set.add(sid);
+            if (p != Item.READ && random.nextBoolean()) {
+                set = grants.get(Item.READ);
+                if (set == null)
+                    grants.put(Item.READ, set = new HashSet<String>());
+                set.add(sid);
+            }
+        }
+        return grants;
+    }
+
+    private static AuthorizationMatrixProperty jobMatrix(Map<Permission,Set<String>> grants, boolean blocksInheritance) {
+        StringBuilder xml = new StringBuilder("<hudson.security.AuthorizationMatrixProperty>");
+        if (blocksInheritance)
+            xml.append("<blocksInheritance>true</blocksInheritance>");
+        for (Map.Entry<Permission,Set<String>> e : grants.entrySet())
+            for (String sid : e.getValue())
+                xml.append("<permission>").append(e.getKey().getId()).append(':').append(sid).append("</permission>");
+        return (AuthorizationMatrixProperty) Jenkins.XSTREAM2.fromXML(xml.append("</hudson.security.AuthorizationMatrixProperty>").toString());
+    }
+
+    /**
+     * Picks distinct names among {@code prefix0} to {@code prefix<n-1>}.
+     */
+    private static List<String> pick(Random random, String prefix, int n, int count) {
+        List<String> all = new ArrayList<String>();
+        for (int i = 0; i < n; i++)
+            all.add(prefix + i);
+        Collections.shuffle(all, random);
+        return all.subList(0, Math.min(count, n));
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT,
+                "jobs=%d folderDepth=%d folderFanOut=%d users=%d sidsPerMatrix=%d authoritiesPerUser=%d blocksInheritance=%.2f seed=%d",
+                jobs, folderDepth, folderFanOut, users, sidsPerMatrix, authoritiesPerUser, blocksInheritance, seed);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.security.AuthorizationMatrixProperty;
+import hudson.security.Permission;
+import hudson.security.ProjectMatrixAuthorizationStrategy;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import jenkins.model.Jenkins;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class LegacyFormatMigrationTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    private FreeStyleProject p;
+    private File config;
+
+    @Before public void legacyJob() throws Exception {
+        LegacyFormatMigration.awaitStartup();
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.add(Jenkins.ADMINISTER, "admin");
+        r.jenkins.setAuthorizationStrategy(as);
+        p = r.createFreeStyleProject("p");
+        Map<Permission,Set<String>> grants = new HashMap<Permission,Set<String>>();
+        grants.put(Item.READ, Collections.singleton("alice"));
+        p.addProperty(new AuthorizationMatrixProperty(grants));
+
+        config = p.getConfigFile().getFile();
+        String xml = p.getConfigFile().asString();
+        write(config, xml.replace("<hudson.security.AuthorizationMatrixProperty>",
+                "<hudson.security.AuthorizationMatrixProperty>\n      <useProjectSecurity>true</useProjectSecurity>"));
+        LegacyFormatMigration.reset();
+    }
+
+    @Test public void rewritesLegacyConfigurations() throws Exception {
+        assertFalse(LegacyFormatMigration.isCompleted());
+        assertEquals(1, LegacyFormatMigration.migrate());
+        String xml = p.getConfigFile().asString();
+        assertFalse(xml, xml.contains("useProjectSecurity"));
+        assertTrue(xml, xml.contains(Item.READ.getId() + ":alice"));
+
+        assertTrue(LegacyFormatMigration.isCompleted());
+        assertTrue(LegacyFormatMigration.getFile().isFile());
+        assertFalse(LegacyFormatMigration.getProgressFile().exists());
+        assertEquals("nothing left to do", 0, LegacyFormatMigration.migrate());
+
+        FreeStyleProject reread = (FreeStyleProject) p.getConfigFile().read();
+        assertTrue("current format is read by the fast path",
+                reread.getProperty(AuthorizationMatrixProperty.class).hasExplicitPermission("alice", Item.READ));
+    }
+
+    @Test public void readsLegacyConfigurationsAfterCompletion() throws Exception {
+        String legacy = p.getConfigFile().asString();
+        LegacyFormatMigration.migrate();
+        assertTrue(LegacyFormatMigration.isCompleted());
+
+        // as if restored from a backup taken before the migration
+        write(config, legacy);
+        FreeStyleProject reread = (FreeStyleProject) p.getConfigFile().read();
+        AuthorizationMatrixProperty amp = reread.getProperty(AuthorizationMatrixProperty.class);
+        assertNotNull(amp);
+        assertTrue(amp.hasExplicitPermission("alice", Item.READ));
+        assertEquals(1, amp.getGrantedPermissions().size());
+    }
+
+    @Test public void resumes() throws Exception {
+        write(LegacyFormatMigration.getProgressFile(), "p\n");
+        assertEquals("already rewritten before the restart", 0, LegacyFormatMigration.migrate());
+        assertTrue(LegacyFormatMigration.isCompleted());
+    }
+
+    private static void write(File f, String content) throws IOException {
+        Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+        try {
+            w.write(content);
+        } finally {
+            w.close();
+        }
+    }
+}
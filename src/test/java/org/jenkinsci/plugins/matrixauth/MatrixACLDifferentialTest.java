@@ -0,0 +1,233 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.security.ACL;
+import hudson.security.AuthorizationMatrixProperty;
+import hudson.security.GlobalMatrixAuthorizationStrategy;
+import hudson.security.Permission;
+import hudson.security.PermissionGroup;
+import hudson.security.PermissionScope;
+import hudson.security.SecurityRealm;
+import hudson.security.SidACL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import jenkins.model.Jenkins;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.GrantedAuthorityImpl;
+import org.acegisecurity.acls.sid.Sid;
+import org.acegisecurity.providers.UsernamePasswordAuthenticationToken;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Compares the decisions of {@link MatrixACL} with those of the {@link SidACL}s this plugin used before matrices
+ * were compiled, on random permission hierarchies, matrices, item trees and users.
+ * Failures report the seed of the case, which can be replayed with {@link #check(long)}.
+ */
+public class MatrixACLDifferentialTest {
+
+    private static final int HIERARCHIES = 40;
+    private static final int TREES = 10;
+    private static final int PERMISSIONS = 8;
+    private static final int ITEMS = 6;
+
+    private static final String[] SIDS = {"anonymous", "authenticated", "u0", "u1", "u2", "u3", "g0", "g1", "g2"};
+
+    private static final PermissionGroup GROUP = new PermissionGroup(MatrixACLDifferentialTest.class, null);
+
+    /**
+     * Permissions of each hierarchy, created once since permissions cannot be unregistered.
+     */
+    private static final List<List<Permission>> hierarchies = new ArrayList<List<Permission>>();
+
+    static {
+        Random r = new Random(0);
+        for (int h = 0; h < HIERARCHIES; h++) {
+            List<Permission> ps = new ArrayList<Permission>();
+            for (int i = 0; i < PERMISSIONS; i++) {
+                int implier = r.nextInt(i + 2);
+                Permission impliedBy = implier == 0 ? null : implier == 1 ? Jenkins.ADMINISTER : ps.get(implier - 2);
+                ps.add(new Permission(GROUP, "P" + h + "_" + i, null, impliedBy, true, new PermissionScope[] {PermissionScope.JENKINS}));
+            }
+            hierarchies.add(ps);
+        }
+    }
+
+    @Test public void randomCases() {
+        for (int h = 0; h < HIERARCHIES; h++) {
+            for (int t = 0; t < TREES; t++) {
+                check(h * 1000L + t);
+            }
+        }
+    }
+
+    /**
+     * Checks one random tree of matrices over hierarchy {@code seed / 1000}.
+     */
+    static void check(long seed) {
+        Random r = new Random(seed);
+        List<Permission> permissions = new ArrayList<Permission>(hierarchies.get((int) (seed / 1000)));
+        permissions.add(Jenkins.ADMINISTER);
+
+        // node 0 is the global matrix; each other node is a folder or job under an earlier node
+        GlobalMatrixAuthorizationStrategy global = new GlobalMatrixAuthorizationStrategy();
+        Map<Permission,Set<String>> globalGrants = randomGrants(r, permissions);
+        for (Map.Entry<Permission,Set<String>> e : globalGrants.entrySet())
+            for (String sid : e.getValue())
+                global.add(e.getKey(), sid);
+
+        List<Map<Permission,Set<String>>> grants = new ArrayList<Map<Permission,Set<String>>>();
+        List<AuthorizationMatrixProperty> matrices = new ArrayList<AuthorizationMatrixProperty>();
+        List<ACL> optimized = new ArrayList<ACL>();
+        List<ACL> legacy = new ArrayList<ACL>();
+        grants.add(globalGrants);
+        matrices.add(null);
+        optimized.add(global.getRootACL());
+        legacy.add(new LegacyACL(globalGrants, true));
+        for (int i = 1; i < ITEMS; i++) {
+            int parent = r.nextInt(i);
+            boolean blocksInheritance = r.nextInt(4) == 0;
+            Map<Permission,Set<String>> g = randomGrants(r, permissions);
+            AuthorizationMatrixProperty amp = new AuthorizationMatrixProperty(g);
+            LegacyACL ref = new LegacyACL(g, false);
+            grants.add(g);
+            matrices.add(amp);
+            if (blocksInheritance) {
+                optimized.add(amp.getACL());
+                legacy.add(ref);
+            } else {
+                optimized.add(((MatrixACL) amp.getACL()).inheritFrom((MatrixACL) optimized.get(parent)));
+                legacy.add(ref.newInheritingACL((SidACL) legacy.get(parent)));
+            }
+        }
+
+        List<Authentication> users = new ArrayList<Authentication>();
+        for (int i = 0; i < 6; i++)
+            users.add(randomUser(r));
+        users.add(ACL.SYSTEM);
+
+        try {
+            // twice, so that the second round runs on matrices compiled before enabled flags changed
+            for (int round = 0; round < 2; round++) {
+                for (Permission p : permissions)
+                    if (p != Jenkins.ADMINISTER)
+                        p.enabled = r.nextInt(3) != 0;
+                for (int i = 0; i < ITEMS; i++) {
+                    for (Authentication a : users) {
+                        for (Permission p : permissions) {
+                            assertEquals(describe(seed, i, a, p), legacy.get(i).hasPermission(a, p), optimized.get(i).hasPermission(a, p));
+                        }
+                    }
+                    for (String sid : SIDS) {
+                        for (Permission p : permissions) {
+                            String what = describe(seed, i, sid, p);
+                            if (i == 0) {
+                                assertEquals(what, legacyHasPermission(globalGrants, true, sid, p), global.hasPermission(sid, p));
+                                assertEquals(what, legacyHasExplicitPermission(globalGrants, true, sid, p), global.hasExplicitPermission(sid, p));
+                            } else {
+                                assertEquals(what, legacyHasPermission(grants.get(i), false, sid, p), matrices.get(i).hasPermission(sid, p));
+                                assertEquals(what, legacyHasExplicitPermission(grants.get(i), false, sid, p), matrices.get(i).hasExplicitPermission(sid, p));
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            for (Permission p : permissions)
+                p.enabled = true;
+        }
+    }
+
+    private static Map<Permission,Set<String>> randomGrants(Random r, List<Permission> permissions) {
+        Map<Permission,Set<String>> grants = new HashMap<Permission,Set<String>>();
+        for (Permission p : permissions) {
+            for (String sid : SIDS) {
+                if (r.nextInt(p == Jenkins.ADMINISTER ? 50 : 7) == 0) {
+                    Set<String> set = grants.get(p);
+                    if (set == null)
+                        grants.put(p, set = new HashSet<String>());
+                    set.add(sid);
+                }
+            }
+        }
+        return grants;
+    }
+
+    private static Authentication randomUser(Random r) {
+        List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>();
+        if (r.nextInt(4) != 0)
+            authorities.add(SecurityRealm.AUTHENTICATED_AUTHORITY);
+        for (int i = 0; i < 3; i++)
+            if (r.nextBoolean())
+                authorities.add(new GrantedAuthorityImpl("g" + i));
+        String name = r.nextInt(5) == 0 ? "anonymous" : "u" + r.nextInt(4);
+        return new UsernamePasswordAuthenticationToken(name, "", authorities.toArray(new GrantedAuthority[authorities.size()]));
+    }
+
+    private static String describe(long seed, int item, Object who, Permission p) {
+        return "seed " + seed + ", item " + item + ", " + who + ", " + p.name;
+    }
+
+    /**
+     * Permission checks as {@code GlobalMatrixAuthorizationStrategy} and {@code AuthorizationMatrixProperty}
+     * implemented them, walking {@link Permission#impliedBy} over the granted permissions.
+     * Only the global matrix ignored grants of disabled permissions.
+     */
+    static boolean legacyHasPermission(Map<Permission,Set<String>> grants, boolean global, String sid, Permission p) {
+        for (; p != null; p = p.impliedBy) {
+            Set<String> set = grants.get(p);
+            if (set != null && set.contains(sid) && (!global || p.getEnabled()))
+                return true;
+        }
+        return false;
+    }
+
+    static boolean legacyHasExplicitPermission(Map<Permission,Set<String>> grants, boolean global, String sid, Permission p) {
+        Set<String> set = grants.get(p);
+        return set != null && set.contains(sid) && (!global || p.getEnabled());
+    }
+
+    private static final class LegacyACL extends SidACL {
+        private final Map<Permission,Set<String>> grants;
+        private final boolean global;
+
+        LegacyACL(Map<Permission,Set<String>> grants, boolean global) {
+            this.grants = grants;
+            this.global = global;
+        }
+
+        @Override
+        protected Boolean hasPermission(Sid sid, Permission p) {
+            return legacyHasPermission(grants, global, toString(sid), p) ? true : null;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.model.Item;
+import hudson.security.ACL;
+import hudson.security.GlobalMatrixAuthorizationStrategy;
+import hudson.security.SecurityRealm;
+import jenkins.model.Jenkins;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.providers.UsernamePasswordAuthenticationToken;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class MatrixACLTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    @Test public void pseudoSids() throws Exception {
+        GlobalMatrixAuthorizationStrategy as = new GlobalMatrixAuthorizationStrategy();
+        as.add(Item.READ, "anonymous");
+        as.add(Jenkins.READ, "authenticated");
+        as.add(Jenkins.ADMINISTER, "admin");
+        r.jenkins.setAuthorizationStrategy(as);
+        ACL acl = as.getRootACL();
+
+        Authentication alice = new UsernamePasswordAuthenticationToken("alice", "", new GrantedAuthority[] {SecurityRealm.AUTHENTICATED_AUTHORITY});
+        Authentication unauthenticated = new UsernamePasswordAuthenticationToken("bob", "", new GrantedAuthority[0]);
+
+        assertTrue("anonymous grants apply to everyone", acl.hasPermission(alice, Item.READ));
+        assertTrue(acl.hasPermission(unauthenticated, Item.READ));
+        assertTrue(acl.hasPermission(alice, Jenkins.READ));
+        assertFalse(acl.hasPermission(unauthenticated, Jenkins.READ));
+        assertFalse(acl.hasPermission(alice, Item.CONFIGURE));
+
+        as.add(Item.CONFIGURE, "authenticated");
+        assertTrue("recompiled after a change", acl.hasPermission(alice, Item.CONFIGURE));
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.matrixauth;
+
+import com.cloudbees.hudson.plugins.folder.Folder;
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.model.Items;
+import hudson.security.AuthorizationMatrixProperty;
+import hudson.security.Permission;
+import hudson.security.ProjectMatrixAuthorizationStrategy;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import jenkins.model.Jenkins;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+public class MatrixChangeListenerTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    @Test public void reportsDeltas() throws Exception {
+        List<MatrixChange> changes = r.jenkins.getExtensionList(MatrixChangeListener.class).get(Recorder.class).changes;
+
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.add(Jenkins.ADMINISTER, "admin");
+        AuthorizationContainers.replace(null, as);
+        assertEquals(1, changes.size());
+        assertNull(changes.get(0).getItemFullName());
+        assertEquals(grant(Jenkins.ADMINISTER, "admin"), changes.get(0).getAdded());
+
+        FreeStyleProject p = r.createFreeStyleProject("p");
+        AuthorizationContainers.replace(p, new AuthorizationMatrixProperty(grant(Item.BUILD, "alice")));
+        AuthorizationContainers.replace(p, new AuthorizationMatrixProperty(grant(Item.CONFIGURE, "alice")));
+        assertEquals(3, changes.size());
+        MatrixChange c = changes.get(2);
+        assertEquals("p", c.getItemFullName());
+        assertEquals(grant(Item.CONFIGURE, "alice"), c.getAdded());
+        assertEquals(grant(Item.BUILD, "alice"), c.getRemoved());
+
+        p.save();
+        assertEquals("saving an unchanged matrix reports nothing", 3, changes.size());
+
+        as.add(Item.READ, "bob");
+        assertEquals(4, changes.size());
+        assertEquals(grant(Item.READ, "bob"), changes.get(3).getAdded());
+
+        p.delete();
+        assertEquals(5, changes.size());
+        assertEquals("p", changes.get(4).getItemFullName());
+        assertEquals(grant(Item.CONFIGURE, "alice"), changes.get(4).getRemoved());
+    }
+
+    @Test public void reportsEachMovedMatrixOnce() throws Exception {
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.add(Jenkins.ADMINISTER, "admin");
+        r.jenkins.setAuthorizationStrategy(as);
+        Folder d = r.jenkins.createProject(Folder.class, "d");
+        d.getProperties().add(new com.cloudbees.hudson.plugins.folder.properties.AuthorizationMatrixProperty(grant(Item.CONFIGURE, "alice")));
+        FreeStyleProject p = d.createProject(FreeStyleProject.class, "p");
+        p.addProperty(new AuthorizationMatrixProperty(grant(Item.BUILD, "alice")));
+        d.createProject(FreeStyleProject.class, "q");
+        Folder f = r.jenkins.createProject(Folder.class, "f");
+
+        List<MatrixChange> changes = r.jenkins.getExtensionList(MatrixChangeListener.class).get(Recorder.class).changes;
+        changes.clear();
+        Items.move(d, f);
+        List<String> names = new ArrayList<String>();
+        for (MatrixChange c : changes)
+            names.add((c.getAdded().isEmpty() ? "-" : "+") + c.getItemFullName());
+        Collections.sort(names);
+        assertEquals(Arrays.asList("+f/d", "+f/d/p", "-d", "-d/p"), names);
+    }
+
+    @Test public void reportsCopiedAndImportedMatrices() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject("p");
+        p.addProperty(new AuthorizationMatrixProperty(grant(Item.BUILD, "alice")));
+        String xml = Items.XSTREAM2.toXML(p);
+
+        List<MatrixChange> changes = r.jenkins.getExtensionList(MatrixChangeListener.class).get(Recorder.class).changes;
+        changes.clear();
+        r.jenkins.copy(p, "q");
+        r.jenkins.createProjectFromXML("x", new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        assertEquals(2, changes.size());
+        assertEquals("q", changes.get(0).getItemFullName());
+        assertEquals(grant(Item.BUILD, "alice"), changes.get(0).getAdded());
+        assertEquals("x", changes.get(1).getItemFullName());
+        assertEquals(grant(Item.BUILD, "alice"), changes.get(1).getAdded());
+    }
+
+    private static Map<Permission,Set<String>> grant(Permission p, String sid) {
+        return Collections.singletonMap(p, Collections.singleton(sid));
+    }
+
+    @TestExtension
+    public static class Recorder extends MatrixChangeListener {
+        final List<MatrixChange> changes = new ArrayList<MatrixChange>();
+
+        @Override
+        public void onChanged(MatrixChange change) {
+            changes.add(change);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.model.Descriptor.FormException;
+import hudson.model.Item;
+import hudson.security.GlobalMatrixAuthorizationStrategy;
+import hudson.security.Permission;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import net.sf.json.JSONObject;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class MatrixDeltaTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    @Test public void copyOnWrite() throws Exception {
+        GlobalMatrixAuthorizationStrategy base = new GlobalMatrixAuthorizationStrategy();
+        base.add(Item.DISCOVER, "authenticated");
+        base.add(Item.READ, "alice");
+        base.add(Item.BUILD, "alice");
+
+        JSONObject form = new JSONObject()
+                .element(MatrixDelta.DELTA_FIELD, "+" + Item.BUILD.getId() + ":bob\n-" + Item.READ.getId() + ":alice\n");
+        Map<Permission,Set<String>> grants = MatrixDelta.fromForm(form).applyTo(base);
+
+        assertSame("untouched cells are shared", base.getGrantedPermissions().get(Item.DISCOVER), grants.get(Item.DISCOVER));
+        assertFalse(grants.containsKey(Item.READ));
+        assertEquals(new HashSet<String>(Arrays.asList("alice", "bob")), grants.get(Item.BUILD));
+        assertEquals("base is left alone", Collections.singleton("alice"), base.getGrantedPermissions().get(Item.BUILD));
+    }
+
+    @Test public void mergesIntoChangedMatrix() throws Exception {
+        GlobalMatrixAuthorizationStrategy base = new GlobalMatrixAuthorizationStrategy();
+        base.add(Item.READ, "alice");
+        JSONObject form = new JSONObject()
+                .element(MatrixDelta.DELTA_FIELD, "+" + Item.BUILD.getId() + ":alice");
+
+        base.add(Item.READ, "bob"); // concurrent modification
+        base.add(Item.BUILD, "bob");
+        Map<Permission,Set<String>> grants = MatrixDelta.fromForm(form).applyTo(base);
+        assertEquals(new HashSet<String>(Arrays.asList("alice", "bob")), grants.get(Item.READ));
+        assertEquals(new HashSet<String>(Arrays.asList("alice", "bob")), grants.get(Item.BUILD));
+
+        form = new JSONObject().element(MatrixDelta.DELTA_FIELD, "-" + Item.READ.getId() + ":bob");
+        assertEquals("the last writer wins", Collections.singleton("alice"), MatrixDelta.fromForm(form).applyTo(base).get(Item.READ));
+    }
+
+    @Test public void appliesTwice() throws Exception {
+        GlobalMatrixAuthorizationStrategy base = new GlobalMatrixAuthorizationStrategy();
+        base.add(Item.READ, "alice");
+
+        // 'Apply' granting BUILD, then 'Save' after unchecking it again, from the same page
+        GlobalMatrixAuthorizationStrategy applied = new GlobalMatrixAuthorizationStrategy();
+        for (Map.Entry<Permission,Set<String>> e : MatrixDelta.fromForm(new JSONObject()
+                .element(MatrixDelta.DELTA_FIELD, "+" + Item.BUILD.getId() + ":alice")).applyTo(base).entrySet()) {
+            for (String sid : e.getValue())
+                applied.add(e.getKey(), sid);
+        }
+        assertEquals(Collections.singleton("alice"), applied.getGrantedPermissions().get(Item.BUILD));
+        Map<Permission,Set<String>> saved = MatrixDelta.fromForm(new JSONObject()
+                .element(MatrixDelta.DELTA_FIELD, "-" + Item.BUILD.getId() + ":alice")).applyTo(applied);
+        assertFalse(saved.containsKey(Item.BUILD));
+        assertEquals(Collections.singleton("alice"), saved.get(Item.READ));
+    }
+
+    @Test public void rejectsRemovedMatrix() throws Exception {
+        JSONObject form = new JSONObject()
+                .element(MatrixDelta.DELTA_FIELD, "+" + Item.BUILD.getId() + ":alice");
+        try {
+            MatrixDelta.fromForm(form).applyTo(null);
+            fail("applied to a matrix that no longer exists");
+        } catch (FormException e) {
+            // expected
+        }
+    }
+
+    @Test public void fullFormWithoutDelta() throws Exception {
+        assertNull(MatrixDelta.fromForm(new JSONObject().element("data", new JSONObject())));
+    }
+}
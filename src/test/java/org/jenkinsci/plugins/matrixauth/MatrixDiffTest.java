@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.security.AuthorizationMatrixProperty;
+import hudson.security.Permission;
+import hudson.security.ProjectMatrixAuthorizationStrategy;
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import jenkins.model.Jenkins;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class MatrixDiffTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    @Test public void sortedChanges() throws Exception {
+        Map<Permission,Set<String>> from = new HashMap<Permission,Set<String>>();
+        from.put(Item.READ, new HashSet<String>(Arrays.asList("alice", "bob", "carol")));
+        from.put(Item.BUILD, Collections.singleton("alice"));
+        Map<Permission,Set<String>> to = new HashMap<Permission,Set<String>>();
+        to.put(Item.READ, new HashSet<String>(Arrays.asList("alice", "carol", "dave")));
+        to.put(Item.CONFIGURE, Collections.singleton("alice"));
+
+        StringWriter w = new StringWriter();
+        assertEquals(4, MatrixDiff.diff("p", from, to, MatrixDiff.writeTo(GrantFormat.CSV, w)));
+        assertEquals("-,p,alice," + Item.BUILD.getId() + "\n"
+                + "+,p,alice," + Item.CONFIGURE.getId() + "\n"
+                + "-,p,bob," + Item.READ.getId() + "\n"
+                + "+,p,dave," + Item.READ.getId() + "\n", w.toString());
+        assertEquals(0, MatrixDiff.diff("p", to, to, MatrixDiff.writeTo(GrantFormat.CSV, w)));
+    }
+
+    @Test public void diffAll() throws Exception {
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.add(Jenkins.ADMINISTER, "admin");
+        r.jenkins.setAuthorizationStrategy(as);
+        FreeStyleProject p = r.createFreeStyleProject("p");
+        FreeStyleProject q = r.createFreeStyleProject("q");
+        Map<Permission,Set<String>> grants = new HashMap<Permission,Set<String>>();
+        grants.put(Item.READ, Collections.singleton("alice"));
+        q.addProperty(new AuthorizationMatrixProperty(grants));
+
+        String desired = ",admin," + Jenkins.ADMINISTER.getId() + "\n"
+                + "p,bob," + Item.READ.getId() + "\n";
+        BulkMatrixTransfer.Import imp = new BulkMatrixTransfer.Import().read(GrantFormat.CSV, new BufferedReader(new StringReader(desired)));
+        assertEquals(Collections.emptyList(), imp.getErrors());
+
+        StringWriter w = new StringWriter();
+        assertEquals("only the named matrices", 1, MatrixDiff.diffAll(imp, false, MatrixDiff.writeTo(GrantFormat.NDJSON, w)));
+        assertEquals("{\"change\":\"+\",\"item\":\"p\",\"sid\":\"bob\",\"permission\":\"" + Item.READ.getId() + "\"}\n", w.toString());
+
+        w = new StringWriter();
+        assertEquals("every matrix", 2, MatrixDiff.diffAll(imp, true, MatrixDiff.writeTo(GrantFormat.CSV, w)));
+        assertTrue(w.toString(), w.toString().contains("-,q,alice," + Item.READ.getId() + "\n"));
+        assertTrue(w.toString(), w.toString().contains("+,p,bob," + Item.READ.getId() + "\n"));
+        assertNull("nothing applied", p.getProperty(AuthorizationMatrixProperty.class));
+    }
+}
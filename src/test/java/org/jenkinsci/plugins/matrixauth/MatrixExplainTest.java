@@ -0,0 +1,96 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.matrixauth;
+
+import com.cloudbees.hudson.plugins.folder.Folder;
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.model.User;
+import hudson.security.AuthorizationMatrixProperty;
+import hudson.security.Permission;
+import hudson.security.ProjectMatrixAuthorizationStrategy;
+import hudson.security.SecurityRealm;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.providers.UsernamePasswordAuthenticationToken;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class MatrixExplainTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    @Test public void namesDecidingMatrix() throws Exception {
+        r.jenkins.setSecurityRealm(r.createDummySecurityRealm());
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.add(Jenkins.ADMINISTER, "admin");
+        as.add(Jenkins.READ, "authenticated");
+        r.jenkins.setAuthorizationStrategy(as);
+
+        Folder d = r.jenkins.createProject(Folder.class, "d");
+        d.getProperties().add(new com.cloudbees.hudson.plugins.folder.properties.AuthorizationMatrixProperty(grant(Item.CONFIGURE, "alice")));
+        FreeStyleProject p = d.createProject(FreeStyleProject.class, "p");
+        p.addProperty(new AuthorizationMatrixProperty(grant(Item.BUILD, "bob")));
+        MatrixACL acl = (MatrixACL) p.getACL();
+
+        assertEquals(new MatrixGrant(null, "admin", Jenkins.ADMINISTER, null), acl.explain(user("admin"), Item.DELETE));
+        assertEquals(new MatrixGrant("d", "alice", Item.CONFIGURE, null), acl.explain(user("alice"), Item.CONFIGURE));
+        assertEquals(new MatrixGrant("d/p", "bob", Item.BUILD, null), acl.explain(user("bob"), Item.BUILD));
+        assertEquals(new MatrixGrant(null, "authenticated", Jenkins.READ, null), acl.explain(user("bob"), Jenkins.READ));
+        assertNull(acl.explain(user("carol"), Item.BUILD));
+
+        p.renameTo("q");
+        assertEquals("provenance follows renames", new MatrixGrant("d/q", "bob", Item.BUILD, null),
+                ((MatrixACL) p.getACL()).explain(user("bob"), Item.BUILD));
+
+        User.get("alice");
+        JSONObject json = JSONObject.fromObject(r.createWebClient().login("admin")
+                .goTo("matrix-auth/explain?item=d/q&user=alice&permission=" + Item.CONFIGURE.getId(), "application/json")
+                .getWebResponse().getContentAsString());
+        assertTrue(json.getBoolean("granted"));
+        assertEquals("folder", json.getString("matrix"));
+        assertEquals("d", json.getString("item"));
+        assertEquals("alice", json.getString("sid"));
+        assertEquals(0, json.getJSONArray("impliedBy").size());
+    }
+
+    private static Map<Permission,Set<String>> grant(Permission p, String sid) {
+        Map<Permission,Set<String>> grants = new HashMap<Permission,Set<String>>();
+        grants.put(p, Collections.singleton(sid));
+        return grants;
+    }
+
+    private static Authentication user(String name) {
+        return new UsernamePasswordAuthenticationToken(name, "", new GrantedAuthority[] {SecurityRealm.AUTHENTICATED_AUTHORITY});
+    }
+}
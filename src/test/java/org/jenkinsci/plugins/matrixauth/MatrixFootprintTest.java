@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.security.AuthorizationMatrixProperty;
+import hudson.security.Permission;
+import hudson.security.ProjectMatrixAuthorizationStrategy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import jenkins.model.Jenkins;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class MatrixFootprintTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    @Test public void report() throws Exception {
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.add(Jenkins.ADMINISTER, "admin");
+        as.add(Jenkins.READ, "authenticated");
+        r.jenkins.setAuthorizationStrategy(as);
+
+        for (String name : new String[] {"a", "b"}) {
+            r.createFreeStyleProject(name).addProperty(new AuthorizationMatrixProperty(
+                    Collections.singletonMap(Item.BUILD, Collections.singleton("alice"))));
+        }
+        Map<Permission,Set<String>> grants = new HashMap<Permission,Set<String>>();
+        grants.put(Item.BUILD, new HashSet<String>(Arrays.asList("alice", "bob", "carol")));
+        grants.put(Item.CONFIGURE, new HashSet<String>(Arrays.asList("bob", "carol")));
+        FreeStyleProject c = r.createFreeStyleProject("c");
+        c.addProperty(new AuthorizationMatrixProperty(grants));
+        r.createFreeStyleProject("none");
+
+        MatrixFootprint.Report report = MatrixFootprint.compute();
+        assertEquals(2, report.getGlobal().getGrants());
+        assertEquals(2, report.getGlobal().getSids());
+        assertEquals(3, report.getMatrices());
+        assertEquals(7, report.getGrants());
+        assertEquals(3, report.getSids());
+        assertEquals("b grants the same as a", 1, report.getDuplicates());
+        assertEquals(3, report.getLargest().size());
+        MatrixFootprint.Matrix largest = report.getLargest().get(0);
+        assertEquals("c", largest.getItem());
+        assertEquals(5, largest.getSize().getGrants());
+        assertTrue(largest.getSize().getBytes() > report.getLargest().get(1).getSize().getBytes());
+        assertEquals(report.getGlobal().getBytes(), MatrixFootprint.sizeOf(as).getBytes());
+        AuthorizationMatrixProperty amp = c.getProperty(AuthorizationMatrixProperty.class);
+        assertTrue("includes the matrix flattened with the global one", largest.getSize().getBytes() > MatrixFootprint.sizeOf(amp).getBytes());
+        assertSame("measured once per version", MatrixFootprint.sizeOf(amp), MatrixFootprint.sizeOf(amp.withGrantedPermissions(grants)));
+        assertSame(report, MatrixFootprint.getReport());
+    }
+}
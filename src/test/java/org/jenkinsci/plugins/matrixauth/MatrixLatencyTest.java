@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.matrixauth;
+
+import com.cloudbees.hudson.plugins.folder.Folder;
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.model.User;
+import hudson.security.AuthorizationMatrixProperty;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import org.acegisecurity.Authentication;
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Measures the latency of pages whose cost depends on matrix authorization, on a {@link LargeInstance}.
+ *
+ * <p>
+ * The measurement only runs when asked for, as in
+ * {@code mvn test -Dtest=MatrixLatencyTest -Dmatrixauth.latency=true -Dmatrixauth.jobs=5000}.
+ * The shape is read from the system properties documented in {@link LargeInstance#fromSystemProperties()},
+ * and the number of requests measured per operation from {@code matrixauth.samples}.
+ * The report always lists the same operations in the same order, so that reports of two releases can be diffed.
+ */
+public class MatrixLatencyTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    @Test public void generatesShape() throws Exception {
+        LargeInstance instance = new LargeInstance().jobs(12).folderDepth(2).folderFanOut(2).sidsPerMatrix(4).blocksInheritance(1).build(r);
+        assertEquals(6, instance.getFolders().size());
+        assertEquals(12, instance.getJobs().size());
+        FreeStyleProject job = instance.getJobs().get(0);
+        assertEquals("folder0_0/folder1_0/job0", job.getFullName());
+        assertEquals("folder0_1/folder1_3/job11", instance.getJobs().get(11).getFullName());
+        AuthorizationMatrixProperty amp = job.getProperty(AuthorizationMatrixProperty.class);
+        assertTrue(amp.isBlocksInheritance());
+        assertEquals(4, amp.getCompiledMatrix().getSids().size());
+        assertNotNull(((Folder) job.getParent()).getProperties().get(com.cloudbees.hudson.plugins.folder.properties.AuthorizationMatrixProperty.class));
+    }
+
+    @Test public void latency() throws Exception {
+        assumeTrue(Boolean.getBoolean("matrixauth.latency"));
+        int samples = Integer.getInteger("matrixauth.samples", 20);
+        long started = System.currentTimeMillis();
+        LargeInstance instance = LargeInstance.fromSystemProperties().build(r);
+        long generated = System.currentTimeMillis() - started;
+
+        List<FreeStyleProject> jobs = instance.getJobs();
+        List<FreeStyleProject> sample = new ArrayList<FreeStyleProject>();
+        for (int i = 0; i < samples; i++)
+            sample.add(jobs.get((int) ((long) i * jobs.size() / samples)));
+
+        String user = "user0";
+        Authentication auth = User.get(user).impersonate();
+        List<FreeStyleProject> readable = new ArrayList<FreeStyleProject>();
+        for (FreeStyleProject p : jobs) {
+            if (p.getACL().hasPermission(auth, Item.READ) && readable.size() < samples)
+                readable.add(p);
+        }
+
+        JenkinsRule.WebClient wc = r.createWebClient().login(user);
+        JenkinsRule.WebClient admin = r.createWebClient().login("admin");
+        List<String> report = new ArrayList<String>();
+        report.add("=== Matrix authorization latency ===");
+        report.add("shape: " + instance);
+        report.add(String.format(Locale.ROOT, "generated in %d ms, %d of %d sampled jobs readable by %s",
+                generated, readable.size(), samples, user));
+        report.add(String.format(Locale.ROOT, "%-20s %7s %9s %9s %9s %9s", "operation (ms)", "samples", "min", "median", "p90", "max"));
+
+        long[] t = new long[samples];
+        for (int i = -WARM_UP; i < samples; i++) {
+            long s = System.nanoTime();
+            wc.goTo("");
+            record(t, i, s);
+        }
+        report.add(line("view listing", t));
+
+        Folder leaf = instance.getFolders().isEmpty() ? null : instance.getFolders().get(instance.getFolders().size() - 1);
+        if (leaf != null) {
+            for (int i = -WARM_UP; i < samples; i++) {
+                long s = System.nanoTime();
+                admin.getPage(leaf);
+                record(t, i, s);
+            }
+        }
+        report.add(line("folder listing", leaf == null ? new long[0] : t));
+
+        long[] jt = new long[readable.size()];
+        for (int i = readable.isEmpty() ? 0 : -WARM_UP; i < readable.size(); i++) {
+            long s = System.nanoTime();
+            wc.getPage(readable.get(Math.max(i, 0)));
+            record(jt, i, s);
+        }
+        report.add(line("job page", jt));
+
+        for (int i = -WARM_UP; i < samples; i++) {
+            long s = System.nanoTime();
+            admin.getPage(sample.get(Math.max(i, 0)), "configure");
+            record(t, i, s);
+        }
+        report.add(line("config page", t));
+
+        for (int i = -WARM_UP; i < samples; i++) {
+            FreeStyleProject p = sample.get(Math.max(i, 0));
+            long s = System.nanoTime();
+            r.submit(admin.getPage(p, "configure").getFormByName("config"));
+            record(t, i, s);
+        }
+        report.add(line("config save", t));
+
+        for (String l : report)
+            System.out.println(l);
+    }
+
+    private static void record(long[] times, int i, long startNanos) {
+        if (i >= 0)
+            times[i] = System.nanoTime() - startNanos;
+    }
+
+    private static String line(String operation, long[] nanos) {
+        if (nanos.length == 0)
+            return String.format(Locale.ROOT, "%-20s %7d %9s %9s %9s %9s", operation, 0, "-", "-", "-", "-");
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return String.format(Locale.ROOT, "%-20s %7d %9.1f %9.1f %9.1f %9.1f", operation, sorted.length,
+                ms(sorted[0]), ms(sorted[sorted.length / 2]), ms(sorted[(sorted.length * 9 - 1) / 10]), ms(sorted[sorted.length - 1]));
+    }
+
+    private static double ms(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * Requests made before each operation is measured, so that one-time initialization is not counted.
+     */
+    private static final int WARM_UP = 3;
+}
@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.security.AuthorizationMatrixProperty;
+import hudson.security.Permission;
+import hudson.security.ProjectMatrixAuthorizationStrategy;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import jenkins.model.Jenkins;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class MatrixSnapshotTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    @Test public void restoresUnchangedMatrices() throws Exception {
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.add(Jenkins.ADMINISTER, "admin");
+        r.jenkins.setAuthorizationStrategy(as);
+
+        Map<Permission,Set<String>> grants = new HashMap<Permission,Set<String>>();
+        grants.put(Item.BUILD, new HashSet<String>(Arrays.asList("alice", "devs")));
+        grants.put(Item.READ, Collections.singleton("devs"));
+        FreeStyleProject p1 = r.createFreeStyleProject("p1");
+        p1.addProperty(new AuthorizationMatrixProperty(grants));
+        FreeStyleProject p2 = r.createFreeStyleProject("p2");
+        p2.addProperty(new AuthorizationMatrixProperty(grants));
+
+        File f = new File(r.jenkins.getRootDir(), "snapshot.bin");
+        MatrixSnapshot.save(f);
+        AuthorizationContainers.replace(p2, new AuthorizationMatrixProperty(
+                Collections.<Permission,Set<String>>singletonMap(Item.CONFIGURE, Collections.singleton("bob"))));
+
+        assertEquals("p2 changed since", 1, MatrixSnapshot.load(f));
+        AuthorizationMatrixProperty amp = p1.getProperty(AuthorizationMatrixProperty.class);
+        CompiledMatrix c = MatrixSnapshot.take(amp);
+        assertNotNull(c);
+        assertNull("taken once", MatrixSnapshot.take(amp));
+        assertNull(MatrixSnapshot.take(p2.getProperty(AuthorizationMatrixProperty.class)));
+        assertTrue(c.isCurrent());
+        assertEquals(new HashSet<String>(Arrays.asList("alice", "devs")), c.getSids());
+        assertTrue(c.hasPermission("alice", Item.BUILD));
+        assertFalse(c.hasPermission("alice", Item.READ));
+        assertTrue(c.hasPermission("devs", Item.READ));
+
+        as.setSidNormalizer(SidNormalizer.of(true, false));
+        assertEquals("normalization changed", 0, MatrixSnapshot.load(f));
+    }
+
+    @Test public void warmUpTakesRestoredMatrices() throws Exception {
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.add(Jenkins.ADMINISTER, "admin");
+        r.jenkins.setAuthorizationStrategy(as);
+        Map<Permission,Set<String>> grants = Collections.<Permission,Set<String>>singletonMap(Item.READ, Collections.singleton("alice"));
+        FreeStyleProject p = r.createFreeStyleProject("p");
+        p.addProperty(new AuthorizationMatrixProperty(grants));
+        MatrixSnapshot.save(MatrixSnapshot.getFile());
+
+        // same configuration, but nothing compiled yet, as after a restart
+        p.removeProperty(AuthorizationMatrixProperty.class);
+        AuthorizationMatrixProperty amp = new AuthorizationMatrixProperty(grants);
+        p.addProperty(amp);
+        MatrixSnapshot.reset();
+        MatrixWarmUp.warmUp();
+        assertEquals(1, MatrixSnapshot.getTaken());
+        assertNull(MatrixSnapshot.take(amp));
+        assertTrue(amp.getCompiledMatrix().hasPermission("alice", Item.READ));
+    }
+
+    @Test public void doesNotRestoreGrantsExpiredWhileDown() throws Exception {
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.add(Jenkins.ADMINISTER, "admin");
+        r.jenkins.setAuthorizationStrategy(as);
+        FreeStyleProject p = r.createFreeStyleProject("p");
+        String xml = "<hudson.security.AuthorizationMatrixProperty>"
+                + "<permission expires='" + GrantExpiry.format(System.currentTimeMillis() + 1500) + "'>" + Item.BUILD.getId() + ":alice</permission>"
+                + "<permission>" + Item.READ.getId() + ":alice</permission>"
+                + "</hudson.security.AuthorizationMatrixProperty>";
+        p.addProperty((AuthorizationMatrixProperty) Jenkins.XSTREAM2.fromXML(xml));
+        assertTrue(p.getProperty(AuthorizationMatrixProperty.class).hasPermission("alice", Item.BUILD));
+        File f = new File(r.jenkins.getRootDir(), "snapshot.bin");
+        MatrixSnapshot.save(f);
+
+        Thread.sleep(2000); // down past the expiry, then loaded again from the same configuration
+        AuthorizationMatrixProperty amp = (AuthorizationMatrixProperty) Jenkins.XSTREAM2.fromXML(xml);
+        p.removeProperty(AuthorizationMatrixProperty.class);
+        p.addProperty(amp);
+        assertEquals(0, MatrixSnapshot.load(f));
+        assertNull(MatrixSnapshot.take(amp));
+        assertFalse(amp.hasPermission("alice", Item.BUILD));
+        assertTrue(amp.hasPermission("alice", Item.READ));
+    }
+
+    @Test public void rejectsOtherFiles() throws Exception {
+        File f = new File(r.jenkins.getRootDir(), "snapshot.bin");
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(new byte[] {'M', 'A', 'T', 'X', 0, 0});
+        } finally {
+            out.close();
+        }
+        try {
+            MatrixSnapshot.load(f);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
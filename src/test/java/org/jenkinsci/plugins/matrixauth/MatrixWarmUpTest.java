@@ -0,0 +1,80 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.matrixauth;
+
+import com.cloudbees.hudson.plugins.folder.Folder;
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.security.ACL;
+import hudson.security.AuthorizationMatrixProperty;
+import hudson.security.Permission;
+import hudson.security.ProjectMatrixAuthorizationStrategy;
+import java.util.Collections;
+import java.util.Set;
+import jenkins.model.Jenkins;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.providers.UsernamePasswordAuthenticationToken;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class MatrixWarmUpTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    @Test public void precompiledChainsFollowChanges() throws Exception {
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.add(Jenkins.READ, "alice");
+        r.jenkins.setAuthorizationStrategy(as);
+
+        Folder d = r.jenkins.createProject(Folder.class, "d");
+        d.getProperties().add(new com.cloudbees.hudson.plugins.folder.properties.AuthorizationMatrixProperty(
+                Collections.<Permission,Set<String>>singletonMap(Item.BUILD, Collections.singleton("alice"))));
+        FreeStyleProject p = d.createProject(FreeStyleProject.class, "p");
+        p.addProperty(new AuthorizationMatrixProperty(
+                Collections.<Permission,Set<String>>singletonMap(Item.CONFIGURE, Collections.singleton("bob"))));
+
+        MatrixWarmUp.Progress progress = MatrixWarmUp.compileAll();
+        assertTrue(progress.isFinished());
+        assertEquals(2, progress.getTotal());
+        assertEquals(2, progress.getDone());
+
+        ACL acl = p.getACL();
+        assertSame("chain is reused", acl, p.getACL());
+        assertTrue(acl.hasPermission(user("alice"), Item.BUILD));
+        assertTrue(acl.hasPermission(user("alice"), Jenkins.READ));
+        assertTrue(acl.hasPermission(user("bob"), Item.CONFIGURE));
+        assertFalse(acl.hasPermission(user("bob"), Item.BUILD));
+
+        as.add(Item.BUILD, "bob");
+        assertTrue("changes to the global matrix are picked up", acl.hasPermission(user("bob"), Item.BUILD));
+    }
+
+    private static Authentication user(String name) {
+        return new UsernamePasswordAuthenticationToken(name, "", new GrantedAuthority[0]);
+    }
+}
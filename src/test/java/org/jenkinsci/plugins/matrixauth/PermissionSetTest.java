@@ -0,0 +1,79 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.model.Items;
+import hudson.security.AuthorizationMatrixProperty;
+import hudson.security.ProjectMatrixAuthorizationStrategy;
+import java.util.Arrays;
+import java.util.Collections;
+import jenkins.model.Jenkins;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.providers.UsernamePasswordAuthenticationToken;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class PermissionSetTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    @Test public void grantedByName() throws Exception {
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.add(Jenkins.ADMINISTER, "admin");
+        as.addPermissionSet(new PermissionSet("dev", Arrays.asList(Item.READ, Item.BUILD)));
+        r.jenkins.setAuthorizationStrategy(as);
+
+        FreeStyleProject p = r.createFreeStyleProject("p");
+        AuthorizationMatrixProperty amp = (AuthorizationMatrixProperty) Items.XSTREAM2.fromXML(
+                "<hudson.security.AuthorizationMatrixProperty><permissionSet>dev:alice</permissionSet></hudson.security.AuthorizationMatrixProperty>");
+        p.addProperty(amp);
+        assertEquals(Collections.singletonMap("dev", Collections.singleton("alice")), amp.getPermissionSetGrants());
+        assertTrue(p.getACL().hasPermission(user("alice"), Item.BUILD));
+        assertFalse(p.getACL().hasPermission(user("alice"), Item.CONFIGURE));
+
+        ProjectMatrixAuthorizationStrategy redefined = (ProjectMatrixAuthorizationStrategy) as.withGrantedPermissions(as.getGrantedPermissions());
+        redefined.addPermissionSet(new PermissionSet("dev", Arrays.asList(Item.READ, Item.CONFIGURE)));
+        r.jenkins.setAuthorizationStrategy(redefined);
+        assertTrue("redefining the set applies to the job without changing it", p.getACL().hasPermission(user("alice"), Item.CONFIGURE));
+        assertFalse(p.getACL().hasPermission(user("alice"), Item.BUILD));
+
+        assertTrue(Items.XSTREAM2.toXML(amp).contains("<permissionSet>dev:alice</permissionSet>"));
+        assertTrue(Jenkins.XSTREAM2.toXML(redefined).contains("<permissionSet>dev:" + Item.CONFIGURE.getId() + "," + Item.READ.getId() + "</permissionSet>"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidNames() {
+        PermissionSet.parseDefinitions("not valid:" + Item.READ.getId());
+    }
+
+    private static Authentication user(String name) {
+        return new UsernamePasswordAuthenticationToken(name, "", new GrantedAuthority[0]);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.security.AuthorizationMatrixProperty;
+import hudson.security.Permission;
+import hudson.security.ProjectMatrixAuthorizationStrategy;
+import hudson.security.SecurityRealm;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import jenkins.model.Jenkins;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.GrantedAuthorityImpl;
+import org.acegisecurity.providers.UsernamePasswordAuthenticationToken;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class SidNormalizerTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    @Test public void normalize() {
+        assertEquals("CORP\\Developers", SidNormalizer.IDENTITY.normalize("CORP\\Developers"));
+        assertEquals("corp\\developers", SidNormalizer.of(true, false).normalize("CORP\\Developers"));
+        assertEquals("Developers", SidNormalizer.of(false, true).normalize("CORP\\Developers"));
+        assertSame(SidNormalizer.IDENTITY, SidNormalizer.fromString(""));
+        assertEquals("caseInsensitive stripDomain", SidNormalizer.fromString("stripDomain caseInsensitive").toString());
+    }
+
+    @Test public void projectMatrixRoundTrip() {
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.setSidNormalizer(SidNormalizer.of(true, false));
+        as.add(Jenkins.ADMINISTER, "Admin");
+        String xml = Jenkins.XSTREAM2.toXML(as);
+        assertTrue(xml, xml.contains("<sidNormalization>"));
+
+        ProjectMatrixAuthorizationStrategy read = (ProjectMatrixAuthorizationStrategy) Jenkins.XSTREAM2.fromXML(xml);
+        assertEquals(as.getSidNormalizer().toString(), read.getSidNormalizer().toString());
+        assertEquals(Collections.singleton("admin"), read.getGrantedPermissions().get(Jenkins.ADMINISTER));
+        assertEquals(as.getMatrixVersion(), read.getMatrixVersion());
+    }
+
+    @Test public void mergesAndMatchesNormalizedSids() throws Exception {
+        ProjectMatrixAuthorizationStrategy as = (ProjectMatrixAuthorizationStrategy) Jenkins.XSTREAM2.fromXML(
+                "<hudson.security.ProjectMatrixAuthorizationStrategy>"
+                + "<sidNormalization>caseInsensitive stripDomain</sidNormalization>"
+                + "<permission>" + Jenkins.ADMINISTER.getId() + ":admin</permission>"
+                + "<permission>" + Jenkins.READ.getId() + ":CORP\\Developers</permission>"
+                + "<permission>" + Jenkins.READ.getId() + ":developers</permission>"
+                + "</hudson.security.ProjectMatrixAuthorizationStrategy>");
+        assertEquals("duplicate rows are merged on load", Collections.singleton("developers"), as.getGrantedPermissions().get(Jenkins.READ));
+        r.jenkins.setAuthorizationStrategy(as);
+
+        FreeStyleProject p = r.createFreeStyleProject("p");
+        Map<Permission,Set<String>> grants = new HashMap<Permission,Set<String>>();
+        grants.put(Item.BUILD, new HashSet<String>(Arrays.asList("Alice", "alice")));
+        AuthorizationMatrixProperty amp = new AuthorizationMatrixProperty(grants);
+        p.addProperty(amp);
+        assertEquals(Collections.singleton("alice"), amp.getGrantedPermissions().get(Item.BUILD));
+
+        Authentication alice = new UsernamePasswordAuthenticationToken("ALICE", "",
+                new GrantedAuthority[] {SecurityRealm.AUTHENTICATED_AUTHORITY, new GrantedAuthorityImpl("CORP\\DEVELOPERS")});
+        assertTrue(r.jenkins.getACL().hasPermission(alice, Jenkins.READ));
+        assertTrue(p.getACL().hasPermission(alice, Item.BUILD));
+        assertFalse(p.getACL().hasPermission(alice, Item.CONFIGURE));
+        assertTrue(Jenkins.XSTREAM2.toXML(as).contains("<sidNormalization>caseInsensitive stripDomain</sidNormalization>"));
+
+        ProjectMatrixAuthorizationStrategy exact = new ProjectMatrixAuthorizationStrategy();
+        exact.add(Jenkins.ADMINISTER, "admin");
+        r.jenkins.setAuthorizationStrategy(exact);
+        assertFalse("SIDs are compared exactly again", p.getACL().hasPermission(alice, Item.BUILD));
+    }
+
+    @Test public void equivalentPoliciesKeepCompiledMatrices() throws Exception {
+        assertSame(SidNormalizer.of(true, true), SidNormalizer.fromString("caseInsensitive stripDomain"));
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.setSidNormalizer(SidNormalizer.of(true, false));
+        as.add(Jenkins.ADMINISTER, "admin");
+        r.jenkins.setAuthorizationStrategy(as);
+        assertTrue(as.hasPermission("ADMIN", Jenkins.ADMINISTER));
+        assertFalse(as.hasPermission("CORP\\admin", Jenkins.ADMINISTER));
+        FreeStyleProject p = r.createFreeStyleProject("p");
+        p.addProperty(new AuthorizationMatrixProperty(
+                Collections.<Permission,Set<String>>singletonMap(Item.BUILD, Collections.singleton("alice"))));
+        AuthorizationMatrixProperty amp = p.getProperty(AuthorizationMatrixProperty.class);
+        CompiledMatrix compiled = amp.getCompiledMatrix();
+
+        // as when the global configuration is saved without changing the policy
+        r.jenkins.setAuthorizationStrategy((ProjectMatrixAuthorizationStrategy) Jenkins.XSTREAM2.fromXML(Jenkins.XSTREAM2.toXML(as)));
+        assertTrue(compiled.isCurrent());
+        assertSame(compiled, amp.getCompiledMatrix());
+    }
+
+    @Test public void explicitPermissionsFollowPolicyChanges() throws Exception {
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.add(Jenkins.ADMINISTER, "admin");
+        r.jenkins.setAuthorizationStrategy(as);
+        FreeStyleProject p = r.createFreeStyleProject("p");
+        p.addProperty(new AuthorizationMatrixProperty(
+                Collections.<Permission,Set<String>>singletonMap(Item.BUILD, Collections.singleton("Alice"))));
+        AuthorizationMatrixProperty amp = p.getProperty(AuthorizationMatrixProperty.class);
+        assertTrue(amp.hasExplicitPermission("Alice", Item.BUILD));
+        assertFalse(amp.hasExplicitPermission("alice", Item.BUILD));
+
+        as.setSidNormalizer(SidNormalizer.of(true, false));
+        assertTrue(amp.hasExplicitPermission("Alice", Item.BUILD));
+        assertTrue(amp.hasExplicitPermission("alice", Item.BUILD));
+        assertFalse(amp.hasExplicitPermission("bob", Item.BUILD));
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.matrixauth;
+
+import com.cloudbees.hudson.plugins.folder.Folder;
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.model.Items;
+import hudson.security.AuthorizationMatrixProperty;
+import hudson.security.Permission;
+import hudson.security.ProjectMatrixAuthorizationStrategy;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import jenkins.model.Jenkins;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.GrantedAuthorityImpl;
+import org.acegisecurity.providers.UsernamePasswordAuthenticationToken;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class SidPatternsTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    @Test public void matching() {
+        assertTrue(SidPatterns.matches("team-*", "team-"));
+        assertTrue(SidPatterns.matches("team-*", "team-foo-dev"));
+        assertFalse(SidPatterns.matches("team-*", "team"));
+        assertTrue(SidPatterns.matches("team-*-ops", "team-foo-ops"));
+        assertTrue(SidPatterns.matches("team-*-ops", "team-a-ops-ops"));
+        assertFalse(SidPatterns.matches("team-*-ops", "team-foo-dev"));
+        assertTrue(SidPatterns.matches("*-ops", "-ops"));
+        assertTrue(SidPatterns.matches("a*b*c", "aXbYbc"));
+        assertFalse(SidPatterns.matches("a*b*c", "aXcYb"));
+
+        Map<Permission,Set<String>> grants = new HashMap<Permission,Set<String>>();
+        grants.put(Item.READ, new HashSet<String>(Arrays.asList("team-*", "*")));
+        grants.put(Item.BUILD, Collections.singleton("team-foo-*"));
+        grants.put(Item.CONFIGURE, Collections.singleton("team-*-ops"));
+        SidPatterns patterns = SidPatterns.compile(grants, SidNormalizer.IDENTITY);
+        assertEquals(bits(Item.READ, Item.BUILD, Item.CONFIGURE), patterns.match("team-foo-ops"));
+        assertEquals(bits(Item.READ, Item.BUILD), patterns.match("team-foo-dev"));
+        assertEquals(bits(Item.READ, Item.CONFIGURE), patterns.match("team-bar-ops"));
+        assertEquals(bits(Item.READ), patterns.match("alice"));
+        assertNull(SidPatterns.compile(Collections.singletonMap(Item.READ, Collections.singleton("team-*")), SidNormalizer.IDENTITY).match("alice"));
+    }
+
+    @Test public void grantedByPattern() throws Exception {
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.add(Jenkins.ADMINISTER, "admin");
+        r.jenkins.setAuthorizationStrategy(as);
+
+        Folder d = r.jenkins.createProject(Folder.class, "d");
+        d.getProperties().add((com.cloudbees.hudson.plugins.folder.properties.AuthorizationMatrixProperty) Items.XSTREAM2.fromXML(
+                "<com.cloudbees.hudson.plugins.folder.properties.AuthorizationMatrixProperty><sidPattern>"
+                + Item.READ.getId() + ":team-*</sidPattern></com.cloudbees.hudson.plugins.folder.properties.AuthorizationMatrixProperty>"));
+        FreeStyleProject p = d.createProject(FreeStyleProject.class, "p");
+        AuthorizationMatrixProperty amp = (AuthorizationMatrixProperty) Items.XSTREAM2.fromXML(
+                "<hudson.security.AuthorizationMatrixProperty><sidPattern>" + Item.BUILD.getId()
+                + ":team-foo-*</sidPattern></hudson.security.AuthorizationMatrixProperty>");
+        p.addProperty(amp);
+        assertEquals(Collections.singletonMap(Item.BUILD, Collections.singleton("team-foo-*")), amp.getSidPatterns());
+        assertEquals("patterns are not SIDs", Collections.emptyList(), amp.getAllSIDs());
+
+        assertTrue(p.getACL().hasPermission(user("alice", "team-foo-dev"), Item.BUILD));
+        assertTrue(p.getACL().hasPermission(user("alice", "team-bar-dev"), Item.READ));
+        assertFalse(p.getACL().hasPermission(user("alice", "team-bar-dev"), Item.BUILD));
+        assertFalse(p.getACL().hasPermission(user("alice", "other"), Item.READ));
+
+        assertEquals(new MatrixGrant("d/p", "team-foo-*", Item.BUILD, null),
+                ((MatrixACL) p.getACL()).explain(user("alice", "team-foo-dev"), Item.BUILD));
+        assertEquals(new MatrixGrant("d", "team-*", Item.READ, null),
+                ((MatrixACL) p.getACL()).explain(user("alice", "team-foo-dev"), Item.READ));
+
+        String xml = Items.XSTREAM2.toXML(amp);
+        assertTrue(xml, xml.contains("<sidPattern>" + Item.BUILD.getId() + ":team-foo-*</sidPattern>"));
+        assertFalse(xml, xml.contains("<permission>"));
+        AuthorizationMatrixProperty copy = amp.withGrantedPermissions(Collections.singletonMap(Item.READ, Collections.singleton("bob")));
+        assertEquals(amp.getSidPatterns(), copy.getSidPatterns());
+        assertFalse("patterns are part of the matrix version", amp.getMatrixVersion().equals(
+                new AuthorizationMatrixProperty(Collections.<Permission,Set<String>>emptyMap()).getMatrixVersion()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsGrantsWithoutWildcard() {
+        SidPatterns.parseGrants(Item.READ.getId() + ":team-foo");
+    }
+
+    private static BitSet bits(Permission... permissions) {
+        BitSet bits = new BitSet();
+        for (Permission p : permissions)
+            bits.set(PermissionIndex.of(p));
+        return bits;
+    }
+
+    private static Authentication user(String name, String group) {
+        return new UsernamePasswordAuthenticationToken(name, "", new GrantedAuthority[] {new GrantedAuthorityImpl(group)});
+    }
+}
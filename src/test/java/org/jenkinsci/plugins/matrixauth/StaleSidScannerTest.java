@@ -0,0 +1,125 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.matrixauth;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.security.AuthorizationMatrixProperty;
+import hudson.security.GroupDetails;
+import hudson.security.Permission;
+import hudson.security.ProjectMatrixAuthorizationStrategy;
+import hudson.security.SecurityRealm;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import jenkins.model.Jenkins;
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.userdetails.User;
+import org.acegisecurity.userdetails.UserDetails;
+import org.acegisecurity.userdetails.UsernameNotFoundException;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.springframework.dao.DataAccessResourceFailureException;
+
+public class StaleSidScannerTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    @Test public void findsAndRemovesStaleSids() throws Exception {
+        r.jenkins.setSecurityRealm(new StubRealm());
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.add(Jenkins.ADMINISTER, "admin");
+        as.add(Jenkins.READ, "authenticated");
+        as.add(Jenkins.READ, "devs");
+        as.add(Jenkins.READ, "retired-group");
+        r.jenkins.setAuthorizationStrategy(as);
+        FreeStyleProject p = r.createFreeStyleProject("p");
+        Map<Permission,Set<String>> grants = new HashMap<Permission,Set<String>>();
+        grants.put(Item.BUILD, new HashSet<String>(Arrays.asList("alice", "departed", "unreachable")));
+        AuthorizationMatrixProperty amp = (AuthorizationMatrixProperty) Jenkins.XSTREAM2.fromXML(
+                "<hudson.security.AuthorizationMatrixProperty>"
+                + "<permissionSet>builders:alice</permissionSet>"
+                + "<permissionSet>builders:departed</permissionSet>"
+                + "<permissionSet>reviewers:departed</permissionSet>"
+                + "</hudson.security.AuthorizationMatrixProperty>");
+        AuthorizationContainers.replace(p, amp.withGrantedPermissions(grants));
+
+        StaleSidScanner scanner = StaleSidScanner.get();
+        int batch = StaleSidScanner.BATCH;
+        StaleSidScanner.BATCH = 2;
+        try {
+            assertTrue(scanner.startNow(true));
+            assertFalse("only one scan at a time", scanner.startNow(true));
+            assertEquals(6, scanner.getTotal());
+            assertTrue(scanner.runBatch());
+            assertEquals(2, scanner.getChecked());
+            while (scanner.runBatch()) {
+                assertTrue(scanner.isRunning());
+            }
+        } finally {
+            StaleSidScanner.BATCH = batch;
+        }
+        assertFalse(scanner.isRunning());
+        assertEquals(Arrays.asList("departed", "retired-group"), scanner.getMissing());
+        assertEquals("failed lookups are not taken for missing SIDs", 1, scanner.getUndecided());
+
+        assertFalse(AuthorizationContainers.of(null).getGrantedPermissions().get(Jenkins.READ).contains("retired-group"));
+        assertTrue(AuthorizationContainers.of(null).getGrantedPermissions().get(Jenkins.READ).contains("devs"));
+        assertEquals(new HashSet<String>(Arrays.asList("alice", "unreachable")), AuthorizationContainers.of(p).getGrantedPermissions().get(Item.BUILD));
+        assertEquals(Collections.singletonMap("builders", Collections.singleton("alice")), AuthorizationContainers.of(p).getPermissionSetGrants());
+    }
+
+    private static class StubRealm extends SecurityRealm {
+        @Override public SecurityComponents createSecurityComponents() {
+            return new SecurityComponents();
+        }
+
+        @Override public UserDetails loadUserByUsername(String username) {
+            if (username.equals("admin") || username.equals("alice")) {
+                return new User(username, "", true, true, true, true, new GrantedAuthority[0]);
+            }
+            if (username.equals("unreachable")) {
+                throw new DataAccessResourceFailureException("directory is down");
+            }
+            throw new UsernameNotFoundException(username);
+        }
+
+        @Override public GroupDetails loadGroupByGroupname(final String groupname) {
+            if (groupname.equals("devs")) {
+                return new GroupDetails() {
+                    @Override public String getName() {
+                        return groupname;
+                    }
+                };
+            }
+            throw new UsernameNotFoundException(groupname);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.matrixauth;
+
+import com.cloudbees.hudson.plugins.folder.Folder;
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.model.Items;
+import hudson.security.AuthorizationMatrixProperty;
+import hudson.security.Permission;
+import hudson.security.ProjectMatrixAuthorizationStrategy;
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import jenkins.model.Jenkins;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class SubtreeSidsTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    @Test public void incrementalCounts() throws Exception {
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.add(Jenkins.ADMINISTER, "admin");
+        r.jenkins.setAuthorizationStrategy(as);
+
+        Folder d = r.jenkins.createProject(Folder.class, "d");
+        d.getProperties().add(new com.cloudbees.hudson.plugins.folder.properties.AuthorizationMatrixProperty(grant(Item.READ, "alice", "devs")));
+        FreeStyleProject p = d.createProject(FreeStyleProject.class, "p");
+        p.addProperty(new AuthorizationMatrixProperty(grant(Item.BUILD, "bob", "devs")));
+        FreeStyleProject q = r.createFreeStyleProject("q");
+        q.addProperty(new AuthorizationMatrixProperty(grant(Item.BUILD, "carol")));
+
+        assertEquals(sids("alice", "bob", "devs"), SubtreeSids.get("d"));
+        assertEquals("the global matrix is not counted", sids("alice", "bob", "carol", "devs"), SubtreeSids.get(""));
+        assertEquals(sids(), SubtreeSids.get("missing"));
+
+        p.delete();
+        assertEquals("still granted by the folder", sids("alice", "devs"), SubtreeSids.get("d"));
+
+        q.removeProperty(AuthorizationMatrixProperty.class);
+        assertEquals(sids("alice", "devs"), SubtreeSids.get(""));
+    }
+
+    @Test public void movedSubtrees() throws Exception {
+        ProjectMatrixAuthorizationStrategy as = new ProjectMatrixAuthorizationStrategy();
+        as.add(Jenkins.ADMINISTER, "admin");
+        r.jenkins.setAuthorizationStrategy(as);
+
+        Folder d = r.jenkins.createProject(Folder.class, "d");
+        d.getProperties().add(new com.cloudbees.hudson.plugins.folder.properties.AuthorizationMatrixProperty(grant(Item.READ, "alice")));
+        FreeStyleProject p = d.createProject(FreeStyleProject.class, "p");
+        p.addProperty(new AuthorizationMatrixProperty(grant(Item.BUILD, "bob")));
+        Folder f = r.jenkins.createProject(Folder.class, "f");
+
+        Items.move(d, f);
+        assertEquals(sids(), SubtreeSids.get("d"));
+        assertEquals(sids("alice", "bob"), SubtreeSids.get("f/d"));
+        assertEquals(sids("alice", "bob"), SubtreeSids.get("f"));
+
+        p.renameTo("q");
+        assertEquals(sids("alice", "bob"), SubtreeSids.get("f/d"));
+
+        p.removeProperty(AuthorizationMatrixProperty.class);
+        assertEquals("descendants are counted once, so one removal is enough", sids("alice"), SubtreeSids.get("f/d"));
+        assertEquals(sids("alice"), SubtreeSids.get("f"));
+        assertEquals(sids("alice"), SubtreeSids.get(""));
+    }
+
+    @Test public void copiedAndImportedItems() throws Exception {
+        Folder d = r.jenkins.createProject(Folder.class, "d");
+        d.getProperties().add(new com.cloudbees.hudson.plugins.folder.properties.AuthorizationMatrixProperty(grant(Item.READ, "alice")));
+        FreeStyleProject p = r.createFreeStyleProject("p");
+        p.addProperty(new AuthorizationMatrixProperty(grant(Item.BUILD, "bob")));
+
+        r.jenkins.copy(d, "e");
+        assertEquals(sids("alice"), SubtreeSids.get("e"));
+        r.jenkins.copy(p, "q");
+        assertEquals(sids("bob"), SubtreeSids.get("q"));
+        r.jenkins.createProjectFromXML("x", new ByteArrayInputStream(Items.XSTREAM2.toXML(p).getBytes("UTF-8")));
+        assertEquals(sids("bob"), SubtreeSids.get("x"));
+
+        p.delete();
+        ((FreeStyleProject) r.jenkins.getItem("q")).delete();
+        assertEquals("still granted by the imported job", sids("alice", "bob"), SubtreeSids.get(""));
+    }
+
+    private static Map<Permission,Set<String>> grant(Permission p, String... sids) {
+        Map<Permission,Set<String>> grants = new HashMap<Permission,Set<String>>();
+        grants.put(p, new HashSet<String>(Arrays.asList(sids)));
+        return grants;
+    }
+
+    private static Set<String> sids(String... sids) {
+        return new HashSet<String>(Arrays.asList(sids));
+    }
+}